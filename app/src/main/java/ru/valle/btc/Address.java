@@ -4,12 +4,8 @@ import android.support.annotation.IntDef;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
 
-import static ru.valle.btc.BTCUtils.decodeBase58;
-
 public final class Address {
     static final int TYPE_MAINNET = 0;
     static final int TYPE_TESTNET = 111;
@@ -42,13 +38,15 @@ public final class Address {
                 return;
             }
         }
-        byte[] decodedAddress = decodeBase58(address);
-        if (decodedAddress == null || decodedAddress.length < 6) {
+        String trimmedAddress = address.trim();
+        byte[] decodedAddress = new byte[Base58.maxDecodedLength(trimmedAddress.length())];
+        int decodedLength = Base58.decode(trimmedAddress, 0, trimmedAddress.length(), decodedAddress, 0);
+        if (decodedLength < 6) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Bad address");
         }
         keyhashType = decodedAddress[0] & 0xff;
         if (keyhashType == TYPE_MAINNET || keyhashType == TYPE_TESTNET || keyhashType == TYPE_P2SH || keyhashType == TYPE_P2SH_TESTNET) {
-            if (BTCUtils.verifyDoubleSha256Checksum(decodedAddress)) {
+            if (decodedLength == 25 && Base58.hasValidChecksum(decodedAddress, 0, decodedLength)) {
                 witnessProgram = null;
                 hash160 = new byte[20];
                 System.arraycopy(decodedAddress, 1, hash160, 0, hash160.length);
@@ -129,22 +127,10 @@ public final class Address {
     }
 
     private static String ripemd160HashToAddress(byte version, byte[] hashedPublicKey) {
-        try {
-            //4 - Add version byte in front of RIPEMD-160 hash (0x00 for Main Network)
-            byte[] addressBytes = new byte[1 + hashedPublicKey.length + 4];
-            addressBytes[0] = version;
-            System.arraycopy(hashedPublicKey, 0, addressBytes, 1, hashedPublicKey.length);
-            //5 - Perform SHA-256 hash on the extended RIPEMD-160 result
-            //6 - Perform SHA-256 hash on the result of the previous SHA-256 hash
-            MessageDigest digestSha = MessageDigest.getInstance("SHA-256");
-            digestSha.update(addressBytes, 0, addressBytes.length - 4);
-            byte[] check = digestSha.digest(digestSha.digest());
-            //7 - Take the first 4 bytes of the second SHA-256 hash. This is the address checksum
-            //8 - Add the 4 checksum bytes from point 7 at the end of extended RIPEMD-160 hash from point 4. This is the 25-byte binary Bitcoin Address.
-            System.arraycopy(check, 0, addressBytes, hashedPublicKey.length + 1, 4);
-            return BTCUtils.encodeBase58(addressBytes);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        //version byte in front of RIPEMD-160 hash (0x00 for Main Network), followed by 4 bytes of its double SHA-256 as checksum
+        byte[] payload = new byte[1 + hashedPublicKey.length];
+        payload[0] = version;
+        System.arraycopy(hashedPublicKey, 0, payload, 1, hashedPublicKey.length);
+        return Base58.encodeChecked(payload, 0, payload.length);
     }
 }
@@ -27,22 +27,14 @@ package ru.valle.btc;
 import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import org.spongycastle.asn1.ASN1InputStream;
-import org.spongycastle.asn1.ASN1Integer;
-import org.spongycastle.asn1.DERSequenceGenerator;
-import org.spongycastle.asn1.DLSequence;
-import org.spongycastle.asn1.sec.SECNamedCurves;
-import org.spongycastle.asn1.x9.X9ECParameters;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
+import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.engines.AESEngine;
 import org.spongycastle.crypto.params.ECDomainParameters;
-import org.spongycastle.crypto.params.ECPrivateKeyParameters;
-import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.crypto.params.KeyParameter;
-import org.spongycastle.crypto.params.ParametersWithRandom;
-import org.spongycastle.crypto.signers.ECDSASigner;
 import org.spongycastle.math.ec.ECPoint;
 
 import java.io.ByteArrayOutputStream;
@@ -52,15 +44,13 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Stack;
+import java.util.concurrent.Executor;
 
 import ru.valle.spongycastle.crypto.generators.SCrypt;
 
@@ -68,46 +58,34 @@ import static ru.valle.btc.Transaction.Script.convertDataToScript;
 
 @SuppressWarnings({"WeakerAccess", "TryWithIdenticalCatches", "unused"})
 public final class BTCUtils {
-    private static final ECDomainParameters EC_PARAMS;
-    private static final char[] BASE58 = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+    private static final ECDomainParameters EC_PARAMS = Secp256k1.EC_PARAMS;
     public static final TrulySecureRandom SECURE_RANDOM = new TrulySecureRandom();
+    /**
+     * Valid signatures seen by {@link #verify(byte[], byte[], byte[])}, about 6500 entries
+     */
+    static final SignatureCache SIGNATURE_CACHE = new SignatureCache(1024 * 1024);
     static final BigInteger LARGEST_PRIVATE_KEY = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);//SECP256K1_N
     public static final long MIN_FEE_PER_KB = 10000;
     public static final long MAX_ALLOWED_FEE = BTCUtils.parseValue("0.1");
     public static final float EXPECTED_BLOCKS_PER_DAY = 144.0f;//(expected confirmations per day)
     private static final int MAX_SCRIPT_ELEMENT_SIZE = 520;
+    //keys per field inversion in generateWifKeys
+    private static final int KEY_BATCH_SIZE = 64;
+    private static final int MINI_KEY_BATCH_SIZE = 16;
     public static final int TRANSACTION_TYPE_LEGACY = 0;
     public static final int TRANSACTION_TYPE_BITCOIN_CASH = 1;
     public static final int TRANSACTION_TYPE_SEGWIT = 2;
 
-    static {
-        X9ECParameters params = SECNamedCurves.getByName("secp256k1");
-        EC_PARAMS = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(), params.getH());
-    }
-
     public static byte[] generatePublicKey(BigInteger privateKey, boolean compressed) {
-        synchronized (EC_PARAMS) {
-            ECPoint uncompressed = EC_PARAMS.getG().multiply(privateKey);
-            return uncompressed.getEncoded(compressed);
-        }
+        return Secp256k1.generatePublicKey(privateKey, compressed);
     }
 
     public static byte[] doubleSha256(byte[] bytes) {
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            return sha256.digest(sha256.digest(bytes));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return Hashes.doubleSha256(bytes);
     }
 
     public static byte[] sha256(byte[] bytes) {
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            return sha256.digest(bytes);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return Hashes.sha256(bytes);
     }
 
     public static String formatValue(double value) {
@@ -240,12 +218,11 @@ public final class BTCUtils {
     public static PrivateKeyInfo decodePrivateKeyAsSHA256(String encodedPrivateKey, boolean testNet) {
         if (encodedPrivateKey.length() > 0) {
             try {
-                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-                BigInteger privateKeyBigInteger = new BigInteger(1, sha256.digest(encodedPrivateKey.getBytes()));
+                BigInteger privateKeyBigInteger = new BigInteger(1, sha256(encodedPrivateKey.getBytes()));
                 if (privateKeyBigInteger.compareTo(BigInteger.ONE) > 0 && privateKeyBigInteger.compareTo(LARGEST_PRIVATE_KEY) < 0) {
                     int type;
 
-                    if (sha256.digest((encodedPrivateKey + '?').getBytes("UTF-8"))[0] == 0) {
+                    if (sha256((encodedPrivateKey + '?').getBytes("UTF-8"))[0] == 0) {
                         type = PrivateKeyInfo.TYPE_MINI;
                     } else {
                         type = PrivateKeyInfo.TYPE_BRAIN_WALLET;
@@ -260,217 +237,168 @@ public final class BTCUtils {
     }
 
     public static boolean verifyDoubleSha256Checksum(byte[] bytesWithChecksumm) {
-        try {
-            if (bytesWithChecksumm == null || bytesWithChecksumm.length < 5) {
-                return false;
-            }
-            MessageDigest digestSha = MessageDigest.getInstance("SHA-256");
-            digestSha.update(bytesWithChecksumm, 0, bytesWithChecksumm.length - 4);
-            byte[] first = digestSha.digest();
-            byte[] calculatedDigest = digestSha.digest(first);
-            boolean checksumValid = true;
-            for (int i = 0; i < 4; i++) {
-                if (calculatedDigest[i] != bytesWithChecksumm[bytesWithChecksumm.length - 4 + i]) {
-                    checksumValid = false;
-                }
-            }
-            return checksumValid;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return bytesWithChecksumm != null && Base58.hasValidChecksum(bytesWithChecksumm, 0, bytesWithChecksumm.length);
     }
 
     public static byte[] sha256ripemd160(byte[] publicKey) {
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            //https://en.bitcoin.it/wiki/Technical_background_of_Bitcoin_addresses
-            //1 - Take the corresponding public key generated with it (65 bytes, 1 byte 0x04, 32 bytes corresponding to X coordinate, 32 bytes corresponding to Y coordinate)
-            //2 - Perform SHA-256 hashing on the public key
-            byte[] sha256hash = sha256.digest(publicKey);
-            //3 - Perform RIPEMD-160 hashing on the result of SHA-256
-            RIPEMD160Digest ripemd160Digest = new RIPEMD160Digest();
-            ripemd160Digest.update(sha256hash, 0, sha256hash.length);
-            byte[] hashedPublicKey = new byte[20];
-            ripemd160Digest.doFinal(hashedPublicKey, 0);
-            return hashedPublicKey;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        //https://en.bitcoin.it/wiki/Technical_background_of_Bitcoin_addresses
+        //RIPEMD-160 of SHA-256 of the public key
+        return Hashes.hash160(publicKey);
     }
 
-    private static final int BASE58_CHUNK_DIGITS = 10;//how many base 58 digits fits in long
-    private static final BigInteger BASE58_CHUNK_MOD = BigInteger.valueOf(0x5fa8624c7fba400L); //58^BASE58_CHUNK_DIGITS
-    private static final byte[] BASE58_VALUES = new byte[]{-1, -1, -1, -1, -1, -1, -1, -1, -1, -2, -2, -2, -2, -2, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -2, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, 0, 1, 2, 3, 4, 5, 6, 7, 8, -1, -1, -1, -1, -1, -1,
-            -1, 9, 10, 11, 12, 13, 14, 15, 16, -1, 17, 18, 19, 20, 21, -1,
-            22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, -1, -1, -1, -1, -1,
-            -1, 33, 34, 35, 36, 37, 38, 39, 40, 41, 42, 43, -1, 44, 45, 46,
-            47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 57, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1};
-
     public static byte[] decodeBase58(String input) {
         if (input == null) {
             return null;
         }
-        input = input.trim();
-        if (input.length() == 0) {
-            return new byte[0];
-        }
-        BigInteger resultNum = BigInteger.ZERO;
-        int nLeadingZeros = 0;
-        while (nLeadingZeros < input.length() && input.charAt(nLeadingZeros) == BASE58[0]) {
-            nLeadingZeros++;
-        }
-        long acc = 0;
-        int nDigits = 0;
-        int p = nLeadingZeros;
-        while (p < input.length()) {
-            int v = BASE58_VALUES[input.charAt(p) & 0xff];
-            if (v >= 0) {
-                acc *= 58;
-                acc += v;
-                nDigits++;
-                if (nDigits == BASE58_CHUNK_DIGITS) {
-                    resultNum = resultNum.multiply(BASE58_CHUNK_MOD).add(BigInteger.valueOf(acc));
-                    acc = 0;
-                    nDigits = 0;
-                }
-                p++;
-            } else {
-                break;
-            }
-        }
-        if (nDigits > 0) {
-            long mul = 58;
-            while (--nDigits > 0) {
-                mul *= 58;
-            }
-            resultNum = resultNum.multiply(BigInteger.valueOf(mul)).add(BigInteger.valueOf(acc));
-        }
-        final int BASE58_SPACE = -2;
-        while (p < input.length() && BASE58_VALUES[input.charAt(p) & 0xff] == BASE58_SPACE) {
-            p++;
-        }
-        if (p < input.length()) {
-            return null;
-        }
-        byte[] plainNumber = resultNum.toByteArray();
-        int plainNumbersOffs = plainNumber[0] == 0 ? 1 : 0;
-        byte[] result = new byte[nLeadingZeros + plainNumber.length - plainNumbersOffs];
-        System.arraycopy(plainNumber, plainNumbersOffs, result, nLeadingZeros, plainNumber.length - plainNumbersOffs);
-        return result;
+        return Base58.decode(input.trim());
     }
 
     public static String encodeBase58(byte[] input) {
         if (input == null) {
             return null;
         }
-        StringBuilder str = new StringBuilder((input.length * 350) / 256 + 1);
-        BigInteger bn = new BigInteger(1, input);
-        long rem;
-        while (true) {
-            BigInteger[] divideAndRemainder = bn.divideAndRemainder(BASE58_CHUNK_MOD);
-            bn = divideAndRemainder[0];
-            rem = divideAndRemainder[1].longValue();
-            if (bn.compareTo(BigInteger.ZERO) == 0) {
-                break;
-            }
-            for (int i = 0; i < BASE58_CHUNK_DIGITS; i++) {
-                str.append(BASE58[(int) (rem % 58)]);
-                rem /= 58;
-            }
-        }
-        while (rem != 0) {
-            str.append(BASE58[(int) (rem % 58)]);
-            rem /= 58;
-        }
-        str.reverse();
-        int nLeadingZeros = 0;
-        while (nLeadingZeros < input.length && input[nLeadingZeros] == 0) {
-            str.insert(0, BASE58[0]);
-            nLeadingZeros++;
-        }
-        return str.toString();
+        return Base58.encode(input);
     }
 
     public static KeyPair generateMiniKey() {
-        KeyPair key = null;
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            StringBuilder sb = new StringBuilder(31);
-            SECURE_RANDOM.addSeedMaterial(SystemClock.elapsedRealtime());
-            while (true) {
-                sb.append('S');
-                for (int i = 0; i < 29; i++) {
-                    sb.append(BASE58[1 + SECURE_RANDOM.nextInt(BASE58.length - 1)]);
-                }
-                if (sha256.digest((sb.toString() + '?').getBytes("UTF-8"))[0] == 0) {
-                    key = new KeyPair(decodePrivateKeyAsSHA256(sb.toString(), false));
-                    break;
+        return generateMiniKeys(1, null)[0];
+    }
+
+    /**
+     * Generates n random mini private keys. About 256 candidates are tried for every key, so candidates are built
+     * in reused buffers from blocks of random bytes and checked by a reused SHA-256 digest, without strings or
+     * other allocations, and batches of keys are searched for in parallel.
+     *
+     * @param executor runs the batches, null to search for all keys on the calling thread
+     */
+    public static KeyPair[] generateMiniKeys(int n, @Nullable Executor executor) {
+        SECURE_RANDOM.addSeedMaterial(SystemClock.elapsedRealtime());
+        final KeyPair[] keyPairs = new KeyPair[n];
+        Parallel.forEach(executor, (n + MINI_KEY_BATCH_SIZE - 1) / MINI_KEY_BATCH_SIZE, new Parallel.IndexedTask<RuntimeException>() {
+            @Override
+            public void run(int batch) {
+                SHA256Digest sha256 = new SHA256Digest();
+                //S, 29 random characters and '?' for the checksum
+                byte[] candidate = new byte[31];
+                char[] miniKey = new char[30];
+                byte[] hash = new byte[32];
+                byte[] randomBytes = new byte[1024];
+                int randomBytesPos = randomBytes.length;
+                candidate[0] = 'S';
+                miniKey[0] = 'S';
+                candidate[30] = '?';
+                for (int k = batch * MINI_KEY_BATCH_SIZE; k < Math.min(keyPairs.length, (batch + 1) * MINI_KEY_BATCH_SIZE); k++) {
+                    while (keyPairs[k] == null) {
+                        for (int i = 1; i < miniKey.length; ) {
+                            if (randomBytesPos == randomBytes.length) {
+                                SECURE_RANDOM.nextBytes(randomBytes);
+                                randomBytesPos = 0;
+                            }
+                            //uniformly from all base58 characters but '1'
+                            int v = randomBytes[randomBytesPos++] & 0x3f;
+                            if (v < Base58.ALPHABET.length - 1) {
+                                miniKey[i] = Base58.ALPHABET[1 + v];
+                                candidate[i] = (byte) miniKey[i];
+                                i++;
+                            }
+                        }
+                        sha256.update(candidate, 0, candidate.length);
+                        sha256.doFinal(hash, 0);
+                        if (hash[0] == 0) {
+                            sha256.update(candidate, 0, miniKey.length);
+                            sha256.doFinal(hash, 0);
+                            BigInteger privateKey = new BigInteger(1, hash);
+                            if (privateKey.compareTo(BigInteger.ONE) > 0 && privateKey.compareTo(LARGEST_PRIVATE_KEY) < 0) {
+                                keyPairs[k] = new KeyPair(new PrivateKeyInfo(false, PrivateKeyInfo.TYPE_MINI, new String(miniKey), privateKey, false));
+                            }
+                        }
+                    }
                 }
-                sb.setLength(0);
+                Arrays.fill(candidate, (byte) 0);
+                Arrays.fill(miniKey, ' ');
+                Arrays.fill(hash, (byte) 0);
+                Arrays.fill(randomBytes, (byte) 0);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return key;
+        });
+        return keyPairs;
     }
 
     public static KeyPair generateWifKey() {
         return generateWifKey(false);
     }
 
-    @SuppressWarnings("ConstantConditions")
     public static KeyPair generateWifKey(boolean testNet) {
         SECURE_RANDOM.addSeedMaterial(SystemClock.elapsedRealtime());
-        try {
-            MessageDigest digestSha = MessageDigest.getInstance("SHA-256");
-            byte[] rawPrivateKey = new byte[38];
-            rawPrivateKey[0] = (byte) (testNet ? 0xef : 0x80);
-            rawPrivateKey[rawPrivateKey.length - 5] = 1;
-            byte[] secret;
-            BigInteger privateKeyBigInteger;
-            do {
-                secret = new byte[32];
+        byte[] secret;
+        BigInteger privateKeyBigInteger;
+        do {
+            secret = new byte[32];
+            SECURE_RANDOM.nextBytes(secret);
+            privateKeyBigInteger = new BigInteger(1, secret);
+        }
+        while (privateKeyBigInteger.compareTo(BigInteger.ONE) < 0 || privateKeyBigInteger.compareTo(LARGEST_PRIVATE_KEY) > 0);
+        return new KeyPair(new PrivateKeyInfo(testNet, PrivateKeyInfo.TYPE_WIF, encodeWifKey(testNet, true, secret), privateKeyBigInteger, true));
+    }
+
+    /**
+     * Generates n random keys with compressed public keys, like n calls of {@link #generateWifKey(boolean)}, but
+     * entropy is taken in one go, public keys are computed in batches which share a single field inversion
+     * to get affine coordinates (Montgomery's trick) and batches are spread over the executor.
+     *
+     * @param executor runs the batches, null to compute all keys on the calling thread
+     */
+    public static KeyPair[] generateWifKeys(int n, final boolean testNet, @Nullable Executor executor) {
+        SECURE_RANDOM.addSeedMaterial(SystemClock.elapsedRealtime());
+        final byte[][] secrets = new byte[n][];
+        final BigInteger[] privateKeys = new BigInteger[n];
+        byte[] entropy = new byte[n * 32];
+        SECURE_RANDOM.nextBytes(entropy);
+        for (int i = 0; i < n; i++) {
+            byte[] secret = new byte[32];
+            System.arraycopy(entropy, i * 32, secret, 0, secret.length);
+            BigInteger privateKey = new BigInteger(1, secret);
+            while (privateKey.compareTo(BigInteger.ONE) < 0 || privateKey.compareTo(LARGEST_PRIVATE_KEY) > 0) {
                 SECURE_RANDOM.nextBytes(secret);
-                privateKeyBigInteger = new BigInteger(1, secret);
-                System.arraycopy(secret, 0, rawPrivateKey, 1, secret.length);
-                digestSha.update(rawPrivateKey, 0, rawPrivateKey.length - 4);
-                byte[] check = digestSha.digest(digestSha.digest());
-                System.arraycopy(check, 0, rawPrivateKey, rawPrivateKey.length - 4, 4);
+                privateKey = new BigInteger(1, secret);
             }
-            while (privateKeyBigInteger.compareTo(BigInteger.ONE) < 0 || privateKeyBigInteger.compareTo(LARGEST_PRIVATE_KEY) > 0 || !verifyDoubleSha256Checksum(rawPrivateKey));
-            return new KeyPair(new PrivateKeyInfo(testNet, PrivateKeyInfo.TYPE_WIF, encodeBase58(rawPrivateKey), privateKeyBigInteger, true));
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        }
+            secrets[i] = secret;
+            privateKeys[i] = privateKey;
+        }
+        Arrays.fill(entropy, (byte) 0);
+        final KeyPair[] keyPairs = new KeyPair[n];
+        Parallel.forEach(executor, (n + KEY_BATCH_SIZE - 1) / KEY_BATCH_SIZE, new Parallel.IndexedTask<RuntimeException>() {
+            @Override
+            public void run(int batch) {
+                int from = batch * KEY_BATCH_SIZE;
+                ECPoint[] publicKeyPoints = new ECPoint[Math.min(KEY_BATCH_SIZE, privateKeys.length - from)];
+                for (int i = 0; i < publicKeyPoints.length; i++) {
+                    publicKeyPoints[i] = Secp256k1.multiplyGenerator(privateKeys[from + i]);
+                }
+                Secp256k1.EC_PARAMS.getCurve().normalizeAll(publicKeyPoints);
+                for (int i = 0; i < publicKeyPoints.length; i++) {
+                    byte[] publicKey = publicKeyPoints[i].getEncoded(true);
+                    String wif = encodeWifKey(testNet, true, secrets[from + i]);
+                    Arrays.fill(secrets[from + i], (byte) 0);
+                    keyPairs[from + i] = new KeyPair(Address.publicKeyToAddress(testNet, publicKey), publicKey,
+                            new PrivateKeyInfo(testNet, PrivateKeyInfo.TYPE_WIF, wif, privateKeys[from + i], true));
+                }
+            }
+        });
+        return keyPairs;
     }
 
     public static String encodeWifKey(boolean isPublicKeyCompressed, byte[] secret) {
-        try {
-            MessageDigest digestSha = MessageDigest.getInstance("SHA-256");
-            byte[] rawPrivateKey = new byte[isPublicKeyCompressed ? 38 : 37];
-            rawPrivateKey[0] = (byte) 0x80;
-            if (isPublicKeyCompressed) {
-                rawPrivateKey[rawPrivateKey.length - 5] = 1;
-            }
-            System.arraycopy(secret, 0, rawPrivateKey, 1, secret.length);
-            digestSha.update(rawPrivateKey, 0, rawPrivateKey.length - 4);
-            byte[] check = digestSha.digest(digestSha.digest());
-            System.arraycopy(check, 0, rawPrivateKey, rawPrivateKey.length - 4, 4);
-            return encodeBase58(rawPrivateKey);
-        } catch (NoSuchAlgorithmException e) {
-            return null;
+        return encodeWifKey(false, isPublicKeyCompressed, secret);
+    }
+
+    public static String encodeWifKey(boolean testNet, boolean isPublicKeyCompressed, byte[] secret) {
+        byte[] payload = new byte[isPublicKeyCompressed ? 34 : 33];
+        payload[0] = (byte) (testNet ? 0xef : 0x80);
+        if (isPublicKeyCompressed) {
+            payload[payload.length - 1] = 1;
         }
+        System.arraycopy(secret, 0, payload, 1, secret.length);
+        return Base58.encodeChecked(payload, 0, payload.length);
     }
 
     public static String toHex(byte[] bytes) {
@@ -517,87 +445,24 @@ public final class BTCUtils {
     }
 
     public static byte[] sign(BigInteger privateKey, byte[] input) {
-        synchronized (EC_PARAMS) {
-            ECDSASigner signer = new ECDSASigner();
-            ECPrivateKeyParameters privateKeyParam = new ECPrivateKeyParameters(privateKey, EC_PARAMS);
-            signer.init(true, new ParametersWithRandom(privateKeyParam, SECURE_RANDOM));
-            BigInteger[] sign = signer.generateSignature(input);
-            BigInteger r = sign[0];
-            BigInteger s = sign[1];
-            BigInteger largestAllowedS = new BigInteger("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF5D576E7357A4501DDFE92F46681B20A0", 16);//SECP256K1_N_DIV_2
-            if (s.compareTo(largestAllowedS) > 0) {
-                //https://github.com/bitcoin/bips/blob/master/bip-0062.mediawiki#low-s-values-in-signatures
-                s = LARGEST_PRIVATE_KEY.subtract(s);
-            }
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream(72);
-                DERSequenceGenerator derGen = new DERSequenceGenerator(baos);
-                derGen.addObject(new ASN1Integer(r));
-                derGen.addObject(new ASN1Integer(s));
-                derGen.close();
-                return baos.toByteArray();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        return Secp256k1.sign(privateKey, input);
     }
 
+    /**
+     * Successful verifications are remembered in {@link #SIGNATURE_CACHE}, verifying the same signature again is almost free.
+     */
     public static boolean verify(byte[] publicKey, byte[] signature, byte[] msg) {
-        synchronized (EC_PARAMS) {
-            boolean valid;
-            ECDSASigner signerVer = new ECDSASigner();
-            if (publicKey.length == 0) {
-                return false;
-            }
-            if (signature.length == 0) {
-                return true; //likely it's incorrect. Revise after full script implementation.
-            }
-            ECPublicKeyParameters pubKey = new ECPublicKeyParameters(EC_PARAMS.getCurve().decodePoint(publicKey), EC_PARAMS);
-            signerVer.init(false, pubKey);
-            BigInteger r, s;
-            try {
-                ASN1InputStream derSigStream = new ASN1InputStream(signature);
-                DLSequence seq = (DLSequence) derSigStream.readObject();
-                r = ((ASN1Integer) seq.getObjectAt(0)).getPositiveValue();
-                s = ((ASN1Integer) seq.getObjectAt(1)).getPositiveValue();
-                derSigStream.close();
-            } catch (Exception e) {
-//                throw new RuntimeException("BIP66 requires correct DER encoding", e);
-                //ok, manual ASN1 decode to conform old bitcoin core:
-                try {
-                    int i = 0;
-                    if (signature[i++] != 0x30) {
-                        throw new RuntimeException("No ASN1 sequence in signature");
-                    }
-                    int len = signature[i++] & 0xff;
-                    if (i + len != signature.length) {
-                        throw new RuntimeException("Invalid signature ASN1 length");
-                    }
-                    byte type = signature[i++];
-                    if (type != 2) {
-                        throw new RuntimeException("R value has invalid type in signature: " + type);
-                    }
-                    len = signature[i++] & 0xff;
-                    byte[] rBytes = new byte[len];
-                    System.arraycopy(signature, i, rBytes, 0, len);
-                    r = new BigInteger(1, rBytes);
-                    i += len;
-
-                    type = signature[i++];
-                    if (type != 2) {
-                        throw new RuntimeException("S value has invalid type in signature: " + type);
-                    }
-                    len = signature[i++] & 0xff;
-                    byte[] sBytes = new byte[len];
-                    System.arraycopy(signature, i, rBytes, 0, len);
-                    s = new BigInteger(1, rBytes);
-                } catch (Exception err2) {
-                    throw new RuntimeException("Invalid ASN/DER encoding of signature", err2);
-                }
-            }
-            valid = signerVer.verifySignature(msg, r, s);
-            return valid;
+        if (publicKey.length == 0 || signature.length == 0) {
+            return Secp256k1.verify(publicKey, signature, msg);
+        }
+        if (SIGNATURE_CACHE.contains(publicKey, signature, msg)) {
+            return true;
+        }
+        boolean valid = Secp256k1.verify(publicKey, signature, msg);
+        if (valid) {
+            SIGNATURE_CACHE.put(publicKey, signature, msg);
         }
+        return valid;
     }
 
     public static byte[] reverse(byte[] bytes) {
@@ -640,14 +505,30 @@ public final class BTCUtils {
     }
 
     public static void verify(Transaction.Script[] scriptPubKeys, long[] amounts, Transaction spendTx, boolean bitcoinCash) throws Transaction.Script.ScriptInvalidException {
+        verify(scriptPubKeys, amounts, spendTx, bitcoinCash, null);
+    }
+
+    public static void verify(Transaction.Script[] scriptPubKeys, long[] amounts, Transaction spendTx, boolean bitcoinCash,
+                              @Nullable Executor executor) throws Transaction.Script.ScriptInvalidException {
         int flags = Transaction.Script.SCRIPT_ALL_SUPPORTED;
         if (bitcoinCash) {
             flags |= Transaction.Script.SCRIPT_ENABLE_SIGHASH_FORKID;
         }
-        verify(scriptPubKeys, amounts, spendTx, flags);
+        verify(scriptPubKeys, amounts, spendTx, flags, executor);
     }
 
     public static void verify(Transaction.Script[] scriptPubKeys, long[] amounts, Transaction tx, int flags) throws Transaction.Script.ScriptInvalidException {
+        verify(scriptPubKeys, amounts, tx, flags, null);
+    }
+
+    /**
+     * Same as {@link #verify(Transaction.Script[], long[], Transaction, int)}, but inputs are verified concurrently.
+     * Reports the same error as the serial verification would.
+     *
+     * @param executor runs the verification of inputs, null to verify them one by one on the calling thread
+     */
+    public static void verify(final Transaction.Script[] scriptPubKeys, final long[] amounts, final Transaction tx, final int flags,
+                              @Nullable Executor executor) throws Transaction.Script.ScriptInvalidException {
         if (tx.isCoinBase()) {
             throw new NotImplementedException("Coinbase verification");
         }
@@ -662,128 +543,243 @@ public final class BTCUtils {
                 throw new Transaction.Script.ScriptInvalidException("Duplicate inputs");
             }
         }
-        for (int i = 0; i < scriptPubKeys.length; i++) {
-            if (scriptPubKeys[i] == null || amounts[i] < 0) {
-                //verify only given inputs
-                continue;
+        final Transaction.SigHashContext sigHashContext = new Transaction.SigHashContext(tx);
+        Parallel.forEach(executor, scriptPubKeys.length, new Parallel.IndexedTask<Transaction.Script.ScriptInvalidException>() {
+            @Override
+            public void run(int i) throws Transaction.Script.ScriptInvalidException {
+                verifyInput(scriptPubKeys, amounts, tx, sigHashContext, flags, i);
             }
-            Transaction.Checker checker = new Transaction.Checker(i, i >= amounts.length ? -1 : amounts[i], tx);
-            Stack<byte[]> stack = new Stack<>();
-            Stack<byte[]> stackCopy = null;
-            Transaction.Script scriptSig = tx.inputs[i].scriptSig;
-            if ((flags & Transaction.Script.SCRIPT_VERIFY_SIGPUSHONLY) != 0 && !scriptSig.isPushOnly()) {
-                throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_SIG_PUSHONLY");
-            }
-            if (scriptSig.isNull() && tx.inputs.length > 1 && !tx.isCoinBase() && (flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) == 0) {
-                throw new Transaction.Script.ScriptInvalidException("Null txin, but without being a coinbase (because there are two inputs)");
-            }
-            if (!scriptSig.run(checker, stack, flags, Transaction.Script.SIGVERSION_BASE)) { //usually loads signature+public key
-                throw new Transaction.Script.ScriptInvalidException();
-            }
-            if ((flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0) {
-                stackCopy = new Stack<>();
-                stackCopy.addAll(stack);
+        });
+    }
+
+    private static void verifyInput(Transaction.Script[] scriptPubKeys, long[] amounts, Transaction tx, Transaction.SigHashContext sigHashContext,
+                                    int flags, int i) throws Transaction.Script.ScriptInvalidException {
+        if (scriptPubKeys[i] == null || amounts[i] < 0) {
+            //verify only given inputs
+            return;
+        }
+        Transaction.Checker checker = new Transaction.Checker(i, i >= amounts.length ? -1 : amounts[i], tx, sigHashContext);
+        try {
+            if (verifyStandardInput(scriptPubKeys[i], tx, checker, flags)) {
+                return;
             }
-            Transaction.Script scriptPubKey = scriptPubKeys[i];
-            if (!scriptPubKey.run(checker, stack, flags, Transaction.Script.SIGVERSION_BASE)) { //verify that this transaction able to spend that output
-                throw new Transaction.Script.ScriptInvalidException();
+        } catch (RuntimeException ignored) {
+            //malformed key or signature, the interpreter reports it the way it always did
+        }
+        verifyInputWithInterpreter(scriptPubKeys[i], tx, checker, flags);
+    }
+
+    static void verifyInputWithInterpreter(Transaction.Script scriptPubKey, Transaction tx, Transaction.Checker checker,
+                                           int flags) throws Transaction.Script.ScriptInvalidException {
+        int i = checker.inputIndex;
+        ScriptStack stack = new ScriptStack();
+        ScriptStack stackCopy = null;
+        Transaction.Script scriptSig = tx.inputs[i].scriptSig;
+        if ((flags & Transaction.Script.SCRIPT_VERIFY_SIGPUSHONLY) != 0 && !scriptSig.isPushOnly()) {
+            throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_SIG_PUSHONLY");
+        }
+        if (scriptSig.isNull() && tx.inputs.length > 1 && !tx.isCoinBase() && (flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) == 0) {
+            throw new Transaction.Script.ScriptInvalidException("Null txin, but without being a coinbase (because there are two inputs)");
+        }
+        if (!scriptSig.run(checker, stack, flags, Transaction.Script.SIGVERSION_BASE)) { //usually loads signature+public key
+            throw new Transaction.Script.ScriptInvalidException();
+        }
+        if ((flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0) {
+            stackCopy = new ScriptStack(Math.max(8, stack.size()));
+            stackCopy.copyFrom(stack);
+        }
+        if (!scriptPubKey.run(checker, stack, flags, Transaction.Script.SIGVERSION_BASE)) { //verify that this transaction able to spend that output
+            throw new Transaction.Script.ScriptInvalidException();
+        }
+        if (stack.isEmpty() || !stack.castToBool(0)) {
+            throw new Transaction.Script.ScriptInvalidException();
+        }
+        // Bare witness programs
+        boolean hadWitness = false;
+        if ((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0) {
+            Transaction.Script.WitnessProgram wp = scriptPubKey.getWitnessProgram();
+            if (wp != null) {
+                hadWitness = true;
+                if (scriptSig.bytes.length != 0) {
+                    // The scriptSig must be _exactly_ CScript(), otherwise we reintroduce malleability.
+                    throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_MALLEATED");
+                }
+                byte[][] witness = i < tx.scriptWitnesses.length ? tx.scriptWitnesses[i] : new byte[0][];
+                if (!verifyWitnessProgram(checker, witness, wp, flags, stack)) {
+                    throw new Transaction.Script.ScriptInvalidException("Bad signature in witness");
+                }
+                // Bypass the cleanstack check at the end. The actual stack is _obviously_ not clean
+                // for witness programs.
+                stack.clear();
+                stack.pushBool(true);
             }
-            if (stack.isEmpty() || !castToBool(stack.peek())) {
-                throw new Transaction.Script.ScriptInvalidException();
+        }
+        if ((flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0 && scriptPubKey.isPayToScriptHash()) {
+            if (!scriptSig.isPushOnly()) {
+                throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_SIG_PUSHONLY");
             }
-            // Bare witness programs
-            boolean hadWitness = false;
-            if ((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0) {
-                Transaction.Script.WitnessProgram wp = scriptPubKey.getWitnessProgram();
-                if (wp != null) {
-                    hadWitness = true;
-                    if (scriptSig.bytes.length != 0) {
-                        // The scriptSig must be _exactly_ CScript(), otherwise we reintroduce malleability.
-                        throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_MALLEATED");
-                    }
-                    byte[][] witness = i < tx.scriptWitnesses.length ? tx.scriptWitnesses[i] : new byte[0][];
-                    if (!verifyWitnessProgram(checker, witness, wp, flags)) {
-                        throw new Transaction.Script.ScriptInvalidException("Bad signature in witness");
-                    }
-                    // Bypass the cleanstack check at the end. The actual stack is _obviously_ not clean
-                    // for witness programs.
-                    stack.clear();
-                    stack.add(null);
+            stack.copyFrom(stackCopy);
+            byte[] pubKeySerialized = stack.popBytes();
+            Transaction.Script pubKey2;
+            try {
+                pubKey2 = new Transaction.Script(pubKeySerialized);
+                if (!pubKey2.run(checker, stack, flags, Transaction.Script.SIGVERSION_BASE)) {
+                    throw new Transaction.Script.ScriptInvalidException();
                 }
-            }
-            if ((flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0 && scriptPubKey.isPayToScriptHash()) {
-                if (!scriptSig.isPushOnly()) {
-                    throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_SIG_PUSHONLY");
+                if (stack.isEmpty() || !stack.castToBool(0)) {
+                    throw new Transaction.Script.ScriptInvalidException();
                 }
-                stack.clear();
-                stack.addAll(stackCopy);
-                byte[] pubKeySerialized = stack.pop();
-                Transaction.Script pubKey2;
-                try {
-                    pubKey2 = new Transaction.Script(pubKeySerialized);
-                    if (!pubKey2.run(checker, stack, flags, Transaction.Script.SIGVERSION_BASE)) {
-                        throw new Transaction.Script.ScriptInvalidException();
-                    }
-                    if (stack.isEmpty() || !castToBool(stack.pop())) {
-                        throw new Transaction.Script.ScriptInvalidException();
-                    }
-
-                    if ((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0) {
-                        Transaction.Script.WitnessProgram wp = pubKey2.getWitnessProgram();
-                        if (wp != null) {
-                            hadWitness = true;
-                            if (!Arrays.equals(scriptSig.bytes, convertDataToScript(pubKey2.bytes))) {
-                                // The scriptSig must be _exactly_ CScript(), otherwise we reintroduce malleability.
-                                throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_MALLEATED");
-                            }
-                            if (!verifyWitnessProgram(checker, tx.scriptWitnesses[i], wp, flags)) {
-                                throw new Transaction.Script.ScriptInvalidException("Bad witness");
-                            }
-                            // Bypass the cleanstack check at the end. The actual stack is _obviously_ not clean
-                            // for witness programs.
-                            stack.clear();
-                            stack.add(null);
+                stack.pop();
+
+                if ((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0) {
+                    Transaction.Script.WitnessProgram wp = pubKey2.getWitnessProgram();
+                    if (wp != null) {
+                        hadWitness = true;
+                        if (!Arrays.equals(scriptSig.bytes, convertDataToScript(pubKey2.bytes))) {
+                            // The scriptSig must be _exactly_ CScript(), otherwise we reintroduce malleability.
+                            throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_MALLEATED");
+                        }
+                        if (!verifyWitnessProgram(checker, tx.scriptWitnesses[i], wp, flags, stack)) {
+                            throw new Transaction.Script.ScriptInvalidException("Bad witness");
                         }
+                        // Bypass the cleanstack check at the end. The actual stack is _obviously_ not clean
+                        // for witness programs.
+                        stack.clear();
+                        stack.pushBool(true);
                     }
-                } catch (NotImplementedException e) {
-                    throw e;
-                } catch (Transaction.Script.ScriptInvalidException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new Transaction.Script.ScriptInvalidException(e.toString());
                 }
+            } catch (NotImplementedException e) {
+                throw e;
+            } catch (Transaction.Script.ScriptInvalidException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new Transaction.Script.ScriptInvalidException(e.toString());
             }
+        }
 
-            // The CLEANSTACK check is only performed after potential P2SH evaluation,
-            // as the non-P2SH evaluation of a P2SH script will obviously not result in
-            // a clean stack (the P2SH inputs remain). The same holds for witness evaluation.
-            if ((flags & Transaction.Script.SCRIPT_VERIFY_CLEANSTACK) != 0) {
-                // Disallow CLEANSTACK without P2SH, as otherwise a switch CLEANSTACK->P2SH+CLEANSTACK
-                // would be possible, which is not a softfork (and P2SH should be one).
+        // The CLEANSTACK check is only performed after potential P2SH evaluation,
+        // as the non-P2SH evaluation of a P2SH script will obviously not result in
+        // a clean stack (the P2SH inputs remain). The same holds for witness evaluation.
+        if ((flags & Transaction.Script.SCRIPT_VERIFY_CLEANSTACK) != 0) {
+            // Disallow CLEANSTACK without P2SH, as otherwise a switch CLEANSTACK->P2SH+CLEANSTACK
+            // would be possible, which is not a softfork (and P2SH should be one).
 //                assert((flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0);
 //                assert((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0);
-                if (stack.size() != 1) {
-                    throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_CLEANSTACK");
-                }
+            if (stack.size() != 1) {
+                throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_CLEANSTACK");
             }
+        }
 
-            if ((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0) {
-                // We can't check for correct unexpected witness data if P2SH was off, so require
-                // that WITNESS implies P2SH. Otherwise, going from WITNESS->P2SH+WITNESS would be
-                // possible, which is not a softfork.
+        if ((flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0) {
+            // We can't check for correct unexpected witness data if P2SH was off, so require
+            // that WITNESS implies P2SH. Otherwise, going from WITNESS->P2SH+WITNESS would be
+            // possible, which is not a softfork.
 //                assert((flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0);
-                if (!hadWitness && tx.scriptWitnesses.length > 0 && tx.scriptWitnesses[i].length > 0) {
-                    throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_UNEXPECTED");
-                }
-            } else if (tx.scriptWitnesses.length > 0) {
-                throw new NotImplementedException("SegWit is not supported yet");
+            if (!hadWitness && tx.scriptWitnesses.length > 0 && tx.scriptWitnesses[i].length > 0) {
+                throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_UNEXPECTED");
+            }
+        } else if (tx.scriptWitnesses.length > 0) {
+            throw new NotImplementedException("SegWit is not supported yet");
+        }
+    }
+
+    /**
+     * Verifies P2PKH, P2WPKH and P2SH-P2WPKH inputs without the interpreter: a hash160 comparison and one signature check.
+     * Only success is decided here. Other scripts and inputs which fail any check return false and go to the interpreter,
+     * so errors are reported exactly as before.
+     *
+     * @return true if the input is standard and valid
+     */
+    static boolean verifyStandardInput(Transaction.Script scriptPubKey, Transaction tx, Transaction.Checker checker, int flags) {
+        int i = checker.inputIndex;
+        ScriptType type = scriptPubKey.getType();
+        byte[] scriptSig = tx.inputs[i].scriptSig.bytes;
+        byte[][] witness = i < tx.scriptWitnesses.length ? tx.scriptWitnesses[i] : null;
+        boolean segwit = (flags & Transaction.Script.SCRIPT_VERIFY_WITNESS) != 0;
+        if (type.kind == ScriptType.P2PKH) {
+            //P2PKH, scriptSig is <signature> <public key> pushed directly
+            if ((witness != null && witness.length > 0) || (!segwit && tx.scriptWitnesses.length > 0) || scriptSig.length < 2) {
+                return false;
+            }
+            int signatureLength = scriptSig[0] & 0xff;
+            //a 20 byte signature push could be deleted from the scriptPubKey by findAndDelete, leave it to the interpreter
+            if (signatureLength == 0 || signatureLength >= Transaction.Script.OP_PUSHDATA1 || signatureLength == 20 ||
+                    signatureLength + 2 > scriptSig.length) {
+                return false;
+            }
+            int publicKeyOffset = signatureLength + 2;
+            int publicKeyLength = scriptSig[signatureLength + 1] & 0xff;
+            if (publicKeyLength >= Transaction.Script.OP_PUSHDATA1 || publicKeyOffset + publicKeyLength != scriptSig.length ||
+                    !hash160Equals(scriptSig, publicKeyOffset, publicKeyLength, type.hash160, 0)) {
+                return false;
+            }
+            if ((flags & Transaction.Script.SCRIPT_VERIFY_MINIMALDATA) != 0 &&
+                    (!Transaction.Script.isMinimalPush(signatureLength, scriptSig, 1, signatureLength) ||
+                            !Transaction.Script.isMinimalPush(publicKeyLength, scriptSig, publicKeyOffset, publicKeyLength))) {
+                return false;
+            }
+            return checkStandardSignature(checker, flags, scriptSig, 1, signatureLength,
+                    Arrays.copyOfRange(scriptSig, publicKeyOffset, scriptSig.length), scriptPubKey.bytes, Transaction.Script.SIGVERSION_BASE);
+        }
+        if (type.kind == ScriptType.WITNESS_PROGRAM && type.witnessProgram.version == 0 && type.witnessProgram.isWitnessKeyHashType()) {
+            //P2WPKH
+            return segwit && scriptSig.length == 0 && witness != null && verifyStandardWitness(checker, flags, witness, type.witnessProgram.program, 0);
+        }
+        if (type.kind == ScriptType.P2SH && scriptSig.length == 23 && scriptSig[0] == 22 && scriptSig[1] == 0 && scriptSig[2] == 20) {
+            //P2SH-P2WPKH, scriptSig pushes the witness program
+            return segwit && (flags & Transaction.Script.SCRIPT_VERIFY_P2SH) != 0 && witness != null &&
+                    hash160Equals(scriptSig, 1, 22, type.hash160, 0) && verifyStandardWitness(checker, flags, witness, scriptSig, 3);
+        }
+        return false;
+    }
+
+    /**
+     * @param program the 20 byte witness program is at programOffset
+     */
+    private static boolean verifyStandardWitness(Transaction.Checker checker, int flags, byte[][] witness, byte[] program, int programOffset) {
+        if (witness.length != 2 || witness[0].length > MAX_SCRIPT_ELEMENT_SIZE || witness[1].length > MAX_SCRIPT_ELEMENT_SIZE) {
+            return false;
+        }
+        byte[] publicKey = witness[1];
+        return hash160Equals(publicKey, 0, publicKey.length, program, programOffset) &&
+                checkStandardSignature(checker, flags, witness[0], 0, witness[0].length, publicKey,
+                        Transaction.Script.pay2PublicKeyHashScript(program, programOffset), Transaction.Script.SIGVERSION_WITNESS_V0);
+    }
+
+    /**
+     * Same checks as OP_CHECKSIG, for a signature with hash type at the end
+     */
+    private static boolean checkStandardSignature(Transaction.Checker checker, int flags, byte[] data, int offset, int length,
+                                                  byte[] publicKey, byte[] scriptCode, int sigVersion) {
+        if (length == 0 || !Transaction.Script.checkSignatureEncoding(data, offset, length, flags)) {
+            return false;
+        }
+        int hashType = data[offset + length - 1] & 0xff;
+        if ((hashType & Transaction.Script.SIGHASH_FORKID) != 0 && (flags & Transaction.Script.SCRIPT_ENABLE_SIGHASH_FORKID) == 0) {
+            return false;
+        }
+        byte[] hash = Transaction.Script.hashTransaction(checker.inputIndex, scriptCode, checker.spendTx, checker.sigHashContext, hashType,
+                checker.amount, sigVersion);
+        return verify(publicKey, Arrays.copyOfRange(data, offset, offset + length - 1), hash);
+    }
+
+    private static boolean hash160Equals(byte[] data, int offset, int length, byte[] hash, int hashOffset) {
+        byte[] actual = new byte[Hashes.HASH160_LENGTH];
+        Hashes.hash160Into(data, offset, length, actual, 0);
+        for (int i = 0; i < actual.length; i++) {
+            if (actual[i] != hash[hashOffset + i]) {
+                return false;
             }
         }
+        return true;
     }
 
-    private static boolean verifyWitnessProgram(Transaction.Checker checker, byte[][] scriptWitnesses, Transaction.Script.WitnessProgram wp, int flags)
-            throws Transaction.Script.ScriptInvalidException {
-        Stack<byte[]> stack = new Stack<>();
+    /**
+     * @param stack cleared and used to run the witness script, its former contents are lost
+     */
+    private static boolean verifyWitnessProgram(Transaction.Checker checker, byte[][] scriptWitnesses, Transaction.Script.WitnessProgram wp, int flags,
+                                                ScriptStack stack) throws Transaction.Script.ScriptInvalidException {
+        stack.clear();
         Transaction.Script scriptPubKey;
         if (wp.version == 0) {
             if (wp.isWitnessSha256Type()) {
@@ -797,26 +793,17 @@ public final class BTCUtils {
                     throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_PROGRAM_MISMATCH");
                 }
                 for (int i = 0; i < scriptWitnesses.length - 1; i++) {
-                    stack.add(scriptWitnesses[i]);
+                    stack.push(scriptWitnesses[i]);
                 }
             } else if (wp.isWitnessKeyHashType()) {
                 // Special case for pay-to-pubkeyhash; signature + pubkey in witness
                 if (scriptWitnesses.length != 2) {
                     throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_PROGRAM_MISMATCH"); // 2 items in witness
                 }
-                try {
-                    ByteArrayOutputStream os = new ByteArrayOutputStream();
-                    os.write(Transaction.Script.OP_DUP);
-                    os.write(Transaction.Script.OP_HASH160);
-                    os.write(convertDataToScript(wp.program));
-                    os.write(Transaction.Script.OP_EQUALVERIFY);
-                    os.write(Transaction.Script.OP_CHECKSIG);
-                    os.close();
-                    scriptPubKey = new Transaction.Script(os.toByteArray());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                scriptPubKey = new Transaction.Script(Transaction.Script.pay2PublicKeyHashScript(wp.program, 0));
+                for (byte[] item : scriptWitnesses) {
+                    stack.push(item);
                 }
-                stack.addAll(Arrays.asList(scriptWitnesses));
             } else {
                 throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_WITNESS_PROGRAM_WRONG_LENGTH");
             }
@@ -829,7 +816,7 @@ public final class BTCUtils {
 
         // Disallow stack item size > MAX_SCRIPT_ELEMENT_SIZE in witness stack
         for (int i = 0; i < stack.size(); i++) {
-            if (stack.get(i).length > MAX_SCRIPT_ELEMENT_SIZE) {
+            if (stack.length(i) > MAX_SCRIPT_ELEMENT_SIZE) {
                 throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_PUSH_SIZE");
             }
         }
@@ -839,21 +826,12 @@ public final class BTCUtils {
         }
 
         // Scripts inside witness implicitly require cleanstack behaviour
-        if (stack.size() != 1 || !castToBool(stack.peek())) {
+        if (stack.size() != 1 || !stack.castToBool(0)) {
             throw new Transaction.Script.ScriptInvalidException("SCRIPT_ERR_EVAL_FALSE");
         }
         return true;
     }
 
-    private static boolean castToBool(byte[] vch) {
-        for (int i = 0; i < vch.length; i++) {
-            if (vch[i] != 0) {
-                return !(i == vch.length - 1 && vch[i] == 0x80);
-            }
-        }
-        return false;
-    }
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({TRANSACTION_TYPE_LEGACY, TRANSACTION_TYPE_BITCOIN_CASH, TRANSACTION_TYPE_SEGWIT})
     public @interface TransactionType {
@@ -881,6 +859,15 @@ public final class BTCUtils {
     public static Transaction createTransaction(List<UnspentOutputInfo> unspentOutputs,
                                                 String outputAddress, String changeAddress, final long amountToSend, final long extraFee,
                                                 @TransactionType int transactionType) throws BitcoinException {
+        return createTransaction(unspentOutputs, outputAddress, changeAddress, amountToSend, extraFee, transactionType, null);
+    }
+
+    /**
+     * @param executor signs the inputs concurrently, null to sign them on the calling thread
+     */
+    public static Transaction createTransaction(List<UnspentOutputInfo> unspentOutputs,
+                                                String outputAddress, String changeAddress, final long amountToSend, final long extraFee,
+                                                @TransactionType int transactionType, @Nullable Executor executor) throws BitcoinException {
 
         if (!Address.verify(outputAddress)) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Output address is invalid", outputAddress);
@@ -907,26 +894,36 @@ public final class BTCUtils {
         }
         ArrayList<UnspentOutputInfo> outputsToSpend = processedTxData.outputsToSpend;
         Transaction.Input[] unsignedInputs = new Transaction.Input[outputsToSpend.size()];
-        Transaction unsignedTx = new Transaction(unsignedInputs, outputs, 0);
-        for (int j = 0; j < unsignedTx.inputs.length; j++) {
+        for (int j = 0; j < unsignedInputs.length; j++) {
             UnspentOutputInfo outputToSpend = outputsToSpend.get(j);
             Transaction.OutPoint outPoint = new Transaction.OutPoint(outputToSpend.txHash, outputToSpend.outputIndex);
-            unsignedTx.inputs[j] = new Transaction.Input(outPoint, null, 0xffffffff);
+            unsignedInputs[j] = new Transaction.Input(outPoint, null, 0xffffffff);
         }
+        Transaction unsignedTx = new Transaction(unsignedInputs, outputs, 0);
 
-        return sign(outputsToSpend, unsignedTx, transactionType);
+        return sign(outputsToSpend, unsignedTx, transactionType, executor);
     }
 
     @NonNull
     public static Transaction sign(List<UnspentOutputInfo> outputsToSpend, Transaction unsignedTx, @TransactionType int transactionType) throws BitcoinException {
-        int sigVersion = transactionType == TRANSACTION_TYPE_LEGACY || transactionType == TRANSACTION_TYPE_BITCOIN_CASH ?
+        return sign(outputsToSpend, unsignedTx, transactionType, null);
+    }
+
+    /**
+     * Signs all inputs of the transaction. Every input is signed against the unsigned transaction,
+     * so the inputs do not depend on each other and may be signed concurrently.
+     *
+     * @param executor signs the inputs, null to sign them one by one on the calling thread
+     */
+    @NonNull
+    public static Transaction sign(final List<UnspentOutputInfo> outputsToSpend, final Transaction unsignedTx, @TransactionType int transactionType,
+                                   @Nullable Executor executor) throws BitcoinException {
+        final int sigVersion = transactionType == TRANSACTION_TYPE_LEGACY || transactionType == TRANSACTION_TYPE_BITCOIN_CASH ?
                 Transaction.Script.SIGVERSION_BASE : Transaction.Script.SIGVERSION_WITNESS_V0;
-        Transaction.Input[] signedInputs = new Transaction.Input[unsignedTx.inputs.length];
-        byte hashType = Transaction.Script.SIGHASH_ALL;
-        if (transactionType == TRANSACTION_TYPE_BITCOIN_CASH) {
-            hashType |= Transaction.Script.SIGHASH_FORKID;
-        }
-        byte[][][] witnesses;
+        final Transaction.Input[] signedInputs = new Transaction.Input[unsignedTx.inputs.length];
+        final byte hashType = transactionType == TRANSACTION_TYPE_BITCOIN_CASH ?
+                Transaction.Script.SIGHASH_ALL | Transaction.Script.SIGHASH_FORKID : Transaction.Script.SIGHASH_ALL;
+        final byte[][][] witnesses;
         if (sigVersion == Transaction.Script.SIGVERSION_BASE) {
             witnesses = new byte[0][][];
         } else {
@@ -935,71 +932,69 @@ public final class BTCUtils {
                 witnesses[i] = new byte[0][];
             }
         }
-        for (int i = 0; i < signedInputs.length; i++) {
-            UnspentOutputInfo outputToSpend = outputsToSpend.get(i);
-            long inputValue = outputToSpend.value;
-            BigInteger privateKey = outputToSpend.keys.privateKey.privateKeyDecoded;
-            byte[] subScript = outputToSpend.scriptPubKey.bytes; //unsignedTx.inputs[i].scriptSig.bytes;
-
-            Transaction.Script scriptSig;
-            if (outputToSpend.scriptPubKey.isPay2PublicKeyHash()) {
-                byte[] signatureAndHashType = getSignatureAndHashType(unsignedTx, i, inputValue, privateKey, subScript, Transaction.Script.SIGVERSION_BASE, hashType);
-                scriptSig = new Transaction.Script(signatureAndHashType, outputToSpend.keys.publicKey);
-            } else if (outputToSpend.scriptPubKey.isPubkey()) {
-                byte[] signatureAndHashType = getSignatureAndHashType(unsignedTx, i, inputValue, privateKey, subScript, Transaction.Script.SIGVERSION_BASE, hashType);
-                scriptSig = new Transaction.Script(convertDataToScript(signatureAndHashType));
-            } else if (sigVersion != Transaction.Script.SIGVERSION_BASE) {
-                Transaction.Script.WitnessProgram wp;
-                if (outputToSpend.scriptPubKey.isPayToScriptHash()) {
-                    if (outputToSpend.keys.publicKey != null && outputToSpend.keys.publicKey.length > 33) {
-                        throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Writing uncompressed public key into witness");
-                    }
-                    wp = new Transaction.Script.WitnessProgram(0, BTCUtils.sha256ripemd160(outputToSpend.keys.publicKey));
-                    scriptSig = new Transaction.Script(convertDataToScript(wp.getBytes()));
-                } else {
-                    wp = outputToSpend.scriptPubKey.getWitnessProgram();
-                    scriptSig = new Transaction.Script(new byte[0]);
-                }
-                byte[] actualSubScriptForWitness;
-                if (wp != null) {
-                    try {
-                        ByteArrayOutputStream os = new ByteArrayOutputStream();
-                        if (wp.program.length == 20) {
-                            os.write(Transaction.Script.OP_DUP);
-                            os.write(Transaction.Script.OP_HASH160);
-                            os.write(convertDataToScript(wp.program));
-                            os.write(Transaction.Script.OP_EQUALVERIFY);
-                            os.write(Transaction.Script.OP_CHECKSIG);
-                        } else {
-                            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Unsupported scriptPubKey type: " + outputToSpend.scriptPubKey);
-                        }
-                        os.close();
-                        actualSubScriptForWitness = os.toByteArray();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                } else {
-                    throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Unsupported scriptPubKey type: " + outputToSpend.scriptPubKey);
-                }
-                byte[] signatureAndHashType = getSignatureAndHashType(unsignedTx, i, inputValue, privateKey, actualSubScriptForWitness, sigVersion, hashType);
-                if (outputToSpend.keys.publicKey == null) {
-                    throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Writing null public key into witness");
-                }
-                if (outputToSpend.keys.publicKey.length > 33) {
+        final Transaction.SigHashContext sigHashContext = new Transaction.SigHashContext(unsignedTx);
+        Parallel.forEach(executor, signedInputs.length, new Parallel.IndexedTask<BitcoinException>() {
+            @Override
+            public void run(int i) throws BitcoinException {
+                signedInputs[i] = signInput(outputsToSpend.get(i), unsignedTx, sigHashContext, i, sigVersion, hashType, witnesses);
+            }
+        });
+        return new Transaction(1, signedInputs, unsignedTx.outputs, unsignedTx.lockTime, witnesses);
+    }
+
+    /**
+     * @return signed input, its witness (if any) is put into witnesses[i]
+     */
+    private static Transaction.Input signInput(UnspentOutputInfo outputToSpend, Transaction unsignedTx, Transaction.SigHashContext sigHashContext,
+                                               int i, int sigVersion, byte hashType, byte[][][] witnesses) throws BitcoinException {
+        long inputValue = outputToSpend.value;
+        BigInteger privateKey = outputToSpend.keys.privateKey.privateKeyDecoded;
+        byte[] subScript = outputToSpend.scriptPubKey.bytes; //unsignedTx.inputs[i].scriptSig.bytes;
+
+        ScriptType scriptType = outputToSpend.scriptPubKey.getType();
+        Transaction.Script scriptSig;
+        if (scriptType.kind == ScriptType.P2PKH) {
+            byte[] signatureAndHashType = getSignatureAndHashType(unsignedTx, sigHashContext, i, inputValue, privateKey, subScript, Transaction.Script.SIGVERSION_BASE, hashType);
+            scriptSig = new Transaction.Script(signatureAndHashType, outputToSpend.keys.publicKey);
+        } else if (scriptType.kind == ScriptType.P2PK) {
+            byte[] signatureAndHashType = getSignatureAndHashType(unsignedTx, sigHashContext, i, inputValue, privateKey, subScript, Transaction.Script.SIGVERSION_BASE, hashType);
+            scriptSig = new Transaction.Script(convertDataToScript(signatureAndHashType));
+        } else if (sigVersion != Transaction.Script.SIGVERSION_BASE) {
+            Transaction.Script.WitnessProgram wp;
+            if (scriptType.kind == ScriptType.P2SH) {
+                if (outputToSpend.keys.publicKey != null && outputToSpend.keys.publicKey.length > 33) {
                     throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Writing uncompressed public key into witness");
                 }
-                witnesses[i] = new byte[][]{signatureAndHashType, outputToSpend.keys.publicKey};
+                wp = new Transaction.Script.WitnessProgram(0, BTCUtils.sha256ripemd160(outputToSpend.keys.publicKey));
+                scriptSig = new Transaction.Script(convertDataToScript(wp.getBytes()));
             } else {
-                //is it legacy P2SH?
-                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Unsupported scriptPubKey type: " + outputToSpend.scriptPubKey + " for base sig version");
+                wp = scriptType.witnessProgram;
+                scriptSig = new Transaction.Script(new byte[0]);
             }
-            signedInputs[i] = new Transaction.Input(unsignedTx.inputs[i].outPoint, scriptSig, unsignedTx.inputs[i].sequence);
+            byte[] actualSubScriptForWitness;
+            if (wp != null && wp.program.length == 20) {
+                actualSubScriptForWitness = Transaction.Script.pay2PublicKeyHashScript(wp.program, 0);
+            } else {
+                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Unsupported scriptPubKey type: " + outputToSpend.scriptPubKey);
+            }
+            byte[] signatureAndHashType = getSignatureAndHashType(unsignedTx, sigHashContext, i, inputValue, privateKey, actualSubScriptForWitness, sigVersion, hashType);
+            if (outputToSpend.keys.publicKey == null) {
+                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Writing null public key into witness");
+            }
+            if (outputToSpend.keys.publicKey.length > 33) {
+                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Writing uncompressed public key into witness");
+            }
+            witnesses[i] = new byte[][]{signatureAndHashType, outputToSpend.keys.publicKey};
+        } else {
+            //is it legacy P2SH?
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Unsupported scriptPubKey type: " + outputToSpend.scriptPubKey + " for base sig version");
         }
-        return new Transaction(1, signedInputs, unsignedTx.outputs, unsignedTx.lockTime, witnesses);
+        return new Transaction.Input(unsignedTx.inputs[i].outPoint, scriptSig, unsignedTx.inputs[i].sequence);
     }
 
-    private static byte[] getSignatureAndHashType(Transaction unsignedTx, int i, long inputValue, BigInteger privateKey, byte[] subScript, int sigVersion, byte hashType) {
-        byte[] hash = Transaction.Script.hashTransaction(i, subScript, unsignedTx, hashType, inputValue, sigVersion);
+    private static byte[] getSignatureAndHashType(Transaction unsignedTx, Transaction.SigHashContext sigHashContext, int i, long inputValue,
+                                                  BigInteger privateKey, byte[] subScript, int sigVersion, byte hashType) {
+        byte[] hash = Transaction.Script.hashTransaction(i, subScript, unsignedTx, sigHashContext, hashType, inputValue, sigVersion);
         byte[] signature = sign(privateKey, hash);
         byte[] signatureAndHashType = new byte[signature.length + 1];
         System.arraycopy(signature, 0, signatureAndHashType, 0, signature.length);
@@ -1087,7 +1082,7 @@ public final class BTCUtils {
             byte[] ownerSalt = new byte[8];
             SECURE_RANDOM.nextBytes(ownerSalt);
             byte[] passFactor = SCrypt.generate(password.getBytes("UTF-8"), ownerSalt, 16384, 8, 8, 32);
-            ECPoint uncompressed = EC_PARAMS.getG().multiply(new BigInteger(1, passFactor));
+            ECPoint uncompressed = Secp256k1.multiplyGenerator(new BigInteger(1, passFactor));
             byte[] passPoint = uncompressed.getEncoded(true);
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             baos.write(fromHex("2CE9B3E1FF39E253"));
@@ -1211,7 +1206,7 @@ public final class BTCUtils {
             byte[] encryptedPointB = new byte[33];
             System.arraycopy(confirmationBytes, 18, encryptedPointB, 0, 33);
             byte[] passFactor = SCrypt.generate(password.getBytes("UTF-8"), salt, 16384, 8, 8, 32);
-            ECPoint uncompressed = EC_PARAMS.getG().multiply(new BigInteger(1, passFactor));
+            ECPoint uncompressed = Secp256k1.multiplyGenerator(new BigInteger(1, passFactor));
             byte[] passPoint = uncompressed.getEncoded(true);
 
             byte[] addressHashAndOwnerSalt = new byte[12];
@@ -1273,21 +1268,16 @@ public final class BTCUtils {
             byte[] encryptedHalf2 = new byte[16];
             cipher.processBlock(xor, 0, encryptedHalf1, 0);
             cipher.processBlock(xor, 16, encryptedHalf2, 0);
-            byte[] result = new byte[43];
+            byte[] result = new byte[39];
             result[0] = 1;
             result[1] = 0x42;
             result[2] = (byte) (keyPair.privateKey.isPublicKeyCompressed ? 0xe0 : 0xc0);
             System.arraycopy(addressHash, 0, result, 3, 4);
             System.arraycopy(encryptedHalf1, 0, result, 7, 16);
             System.arraycopy(encryptedHalf2, 0, result, 23, 16);
-            MessageDigest digestSha = MessageDigest.getInstance("SHA-256");
-            digestSha.update(result, 0, result.length - 4);
-            System.arraycopy(digestSha.digest(digestSha.digest()), 0, result, 39, 4);
-            return encodeBase58(result);
+            return Base58.encodeChecked(result, 0, 39);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -1334,7 +1324,7 @@ public final class BTCUtils {
                     byte[] ownerSalt = new byte[8];
                     System.arraycopy(encryptedPrivateKeyBytes, 7, ownerSalt, 0, 8);
                     byte[] passFactor = SCrypt.generate(password.getBytes("UTF-8"), ownerSalt, 16384, 8, 8, 32);
-                    ECPoint uncompressed = EC_PARAMS.getG().multiply(new BigInteger(1, passFactor));
+                    ECPoint uncompressed = Secp256k1.multiplyGenerator(new BigInteger(1, passFactor));
                     byte[] passPoint = uncompressed.getEncoded(true);
                     byte[] addressHashAndOwnerSalt = new byte[12];
                     System.arraycopy(encryptedPrivateKeyBytes, 3, addressHashAndOwnerSalt, 0, 12);
@@ -0,0 +1,239 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Base58 and Base58Check on 32-bit limbs. Encoding divides the number by 58^5 per pass over the limbs, decoding
+ * multiplies it by 58^5 per five digits, so there is one pass per five digits and no BigInteger.
+ * Limbs are sized by the input length, for 25-byte addresses, 37/38-byte WIF keys and 43-byte BIP38 keys
+ * that is 7, 10 and 11 limbs.
+ * The buffer-based methods write into caller-supplied arrays and allocate only the limbs.
+ */
+final class Base58 {
+    static final char[] ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+    private static final int CHUNK_DIGITS = 5;
+    private static final long CHUNK_MOD = 58L * 58 * 58 * 58 * 58;
+    private static final long LIMB_MASK = 0xffffffffL;
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private Base58() {
+    }
+
+    /**
+     * @return max number of characters encoding of length bytes can take, log(256)/log(58) is about 1.37
+     */
+    static int maxEncodedLength(int length) {
+        return length * 138 / 100 + 1;
+    }
+
+    /**
+     * @return max number of bytes length characters can be decoded to, every leading '1' is a zero byte
+     */
+    static int maxDecodedLength(int length) {
+        return length;
+    }
+
+    /**
+     * @return max number of bytes length characters without leading '1's can be decoded to,
+     * log(58)/log(256) is about 0.73
+     */
+    private static int maxSignificantLength(int length) {
+        return length * 733 / 1000 + 1;
+    }
+
+    static String encode(byte[] input) {
+        char[] output = new char[maxEncodedLength(input.length)];
+        return new String(output, 0, encode(input, 0, input.length, output, 0));
+    }
+
+    /**
+     * @param output has room for {@link #maxEncodedLength(int)} characters from outputOffset
+     * @return number of characters written
+     */
+    static int encode(byte[] input, int offset, int length, char[] output, int outputOffset) {
+        int zeros = 0;
+        while (zeros < length && input[offset + zeros] == 0) {
+            output[outputOffset + zeros] = ALPHABET[0];
+            zeros++;
+        }
+        int significant = length - zeros;
+        //big-endian
+        int[] limbs = new int[(significant + 3) / 4];
+        for (int i = 0; i < significant; i++) {
+            limbs[limbs.length - 1 - i / 4] |= (input[offset + length - 1 - i] & 0xff) << (8 * (i % 4));
+        }
+        //digits are produced least significant first, they are put at the end of the output and moved in place afterwards
+        int end = outputOffset + zeros + maxEncodedLength(significant);
+        int p = end;
+        int first = 0;
+        while (first < limbs.length) {
+            long remainder = 0;
+            for (int i = first; i < limbs.length; i++) {
+                long current = (remainder << 32) | (limbs[i] & LIMB_MASK);
+                limbs[i] = (int) (current / CHUNK_MOD);
+                remainder = current % CHUNK_MOD;
+            }
+            while (first < limbs.length && limbs[first] == 0) {
+                first++;
+            }
+            if (first < limbs.length) {
+                for (int i = 0; i < CHUNK_DIGITS; i++) {
+                    output[--p] = ALPHABET[(int) (remainder % 58)];
+                    remainder /= 58;
+                }
+            } else {
+                while (remainder != 0) {
+                    output[--p] = ALPHABET[(int) (remainder % 58)];
+                    remainder /= 58;
+                }
+            }
+        }
+        System.arraycopy(output, p, output, outputOffset + zeros, end - p);
+        return zeros + end - p;
+    }
+
+    /**
+     * @return decoded bytes or null if input contains not base58 characters
+     */
+    @Nullable
+    static byte[] decode(CharSequence input) {
+        byte[] output = new byte[maxDecodedLength(input.length())];
+        int length = decode(input, 0, input.length(), output, 0);
+        return length < 0 ? null : Arrays.copyOf(output, length);
+    }
+
+    /**
+     * @param output has room for {@link #maxDecodedLength(int)} bytes from outputOffset
+     * @return number of bytes written or -1 if input contains not base58 characters
+     */
+    static int decode(CharSequence input, int from, int to, byte[] output, int outputOffset) {
+        int zeros = 0;
+        while (from + zeros < to && input.charAt(from + zeros) == ALPHABET[0]) {
+            output[outputOffset + zeros] = 0;
+            zeros++;
+        }
+        //big-endian
+        int[] limbs = new int[(maxSignificantLength(to - from - zeros) + 3) / 4];
+        long chunk = 0;
+        long chunkMultiplier = 1;
+        for (int i = from + zeros; i < to; i++) {
+            char c = input.charAt(i);
+            int digit = c < VALUES.length ? VALUES[c] : -1;
+            if (digit < 0) {
+                return -1;
+            }
+            chunk = chunk * 58 + digit;
+            chunkMultiplier *= 58;
+            if (chunkMultiplier == CHUNK_MOD) {
+                multiplyAdd(limbs, chunkMultiplier, chunk);
+                chunk = 0;
+                chunkMultiplier = 1;
+            }
+        }
+        if (chunkMultiplier > 1) {
+            multiplyAdd(limbs, chunkMultiplier, chunk);
+        }
+        int p = outputOffset + zeros;
+        boolean leading = true;
+        for (int limb : limbs) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                byte b = (byte) (limb >>> shift);
+                if (b != 0 || !leading) {
+                    output[p++] = b;
+                    leading = false;
+                }
+            }
+        }
+        return p - outputOffset;
+    }
+
+    private static void multiplyAdd(int[] limbs, long multiplier, long addend) {
+        long carry = addend;
+        for (int i = limbs.length - 1; i >= 0; i--) {
+            long current = (limbs[i] & LIMB_MASK) * multiplier + carry;
+            limbs[i] = (int) current;
+            carry = current >>> 32;
+        }
+    }
+
+    /**
+     * @return Base58 of payload followed by the first 4 bytes of its double SHA-256
+     */
+    static String encodeChecked(byte[] payload, int offset, int length) {
+        byte[] data = new byte[length + 4];
+        System.arraycopy(payload, offset, data, 0, length);
+        writeChecksum(data, 0, length, data, length);
+        char[] output = new char[maxEncodedLength(data.length)];
+        return new String(output, 0, encode(data, 0, data.length, output, 0));
+    }
+
+    /**
+     * Decodes Base58Check and verifies its checksum.
+     *
+     * @param output has room for {@link #maxDecodedLength(int)} bytes from outputOffset
+     * @return length of the payload, which is followed by 4 checksum bytes in output, or -1 if input contains
+     * not base58 characters, is too short or the checksum does not match
+     */
+    static int decodeChecked(CharSequence input, int from, int to, byte[] output, int outputOffset) {
+        int length = decode(input, from, to, output, outputOffset);
+        if (length < 5 || !hasValidChecksum(output, outputOffset, length)) {
+            return -1;
+        }
+        return length - 4;
+    }
+
+    /**
+     * @return true if the last 4 bytes of data are the first 4 bytes of double SHA-256 of the rest
+     */
+    static boolean hasValidChecksum(byte[] data, int offset, int length) {
+        if (length < 5) {
+            return false;
+        }
+        int end = offset + length;
+        int stored = (data[end - 4] & 0xff) << 24 | (data[end - 3] & 0xff) << 16 | (data[end - 2] & 0xff) << 8 | (data[end - 1] & 0xff);
+        return Hashes.checksum(data, offset, length - 4) == stored;
+    }
+
+    /**
+     * Writes first 4 bytes of double SHA-256 of data to output
+     */
+    private static void writeChecksum(byte[] data, int offset, int length, byte[] output, int outputOffset) {
+        int checksum = Hashes.checksum(data, offset, length);
+        output[outputOffset] = (byte) (checksum >>> 24);
+        output[outputOffset + 1] = (byte) (checksum >>> 16);
+        output[outputOffset + 2] = (byte) (checksum >>> 8);
+        output[outputOffset + 3] = (byte) checksum;
+    }
+}
@@ -25,54 +25,274 @@ package ru.valle.btc;
 
 import android.support.annotation.NonNull;
 
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Locale;
 
+/**
+ * BIP173 codec. The checksum is computed with a 32-entry table indexed by the 5 bits shifted out of the state,
+ * and the state after the human-readable part is cached, so an address is validated, checksummed and converted
+ * from 5 to 8 bit groups in one pass over its characters with no allocations.
+ */
 final class Bech32 {
     private static final String charset = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
     private static final int[] generator = {0x3b6a57b2, 0x26508e6d, 0x1ea119fa, 0x3d4233dd, 0x2a1462b3};
+    private static final int[] GENERATOR_TABLE = new int[32];
+    private static final byte[] CHARSET_VALUES = new byte[128];
+    private static final int MAX_LENGTH = 90;
+    private static final int CHECKSUM_LENGTH = 6;
+    static final int MAX_PROGRAM_LENGTH = 40;
+
+    private static final int ERR_TOO_LONG = -1;
+    private static final int ERR_MIXED_CASE = -2;
+    private static final int ERR_INVALID_HRP = -3;
+    private static final int ERR_INVALID_CHARACTER = -4;
+    private static final int ERR_INVALID_CHECKSUM = -5;
+    private static final int ERR_INVALID_VERSION = -6;
+    private static final int ERR_INVALID_PROGRAM_LENGTH = -7;
+    private static final int ERR_INVALID_PADDING = -8;
+
+    static {
+        for (int top = 0; top < GENERATOR_TABLE.length; top++) {
+            for (int j = 0; j < 5; j++) {
+                if (((top >> j) & 1) == 1) {
+                    GENERATOR_TABLE[top] ^= generator[j];
+                }
+            }
+        }
+        Arrays.fill(CHARSET_VALUES, (byte) -1);
+        for (int i = 0; i < charset.length(); i++) {
+            CHARSET_VALUES[charset.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * Checksum state after the expanded human-readable part, the last used one is cached
+     */
+    private static final class HrpState {
+        final String hrp;
+        final int checksum;
+
+        HrpState(String hrp) {
+            this.hrp = hrp;
+            int chk = 1;
+            for (int i = 0; i < hrp.length(); i++) {
+                chk = polymodStep(chk, hrp.charAt(i) >> 5);
+            }
+            chk = polymodStep(chk, 0);
+            for (int i = 0; i < hrp.length(); i++) {
+                chk = polymodStep(chk, hrp.charAt(i) & 31);
+            }
+            checksum = chk;
+        }
+    }
+
+    private static volatile HrpState lastHrpState = new HrpState("bc");
+
+    private static int hrpChecksum(String lowercaseHrp) {
+        HrpState state = lastHrpState;
+        if (!state.hrp.equals(lowercaseHrp)) {
+            state = new HrpState(lowercaseHrp);
+            lastHrpState = state;
+        }
+        return state.checksum;
+    }
+
+    private static int polymodStep(int chk, int value) {
+        return (chk & 0x1ffffff) << 5 ^ value ^ GENERATOR_TABLE[chk >>> 25];
+    }
 
     static String encodeSegwitAddress(String hrp, int version, byte[] program) throws BitcoinException {
         if (version < 0 || version > 16) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid witness version: " + version);
         }
-        if (program.length < 2 || program.length > 40) {
+        if (program.length < 2 || program.length > MAX_PROGRAM_LENGTH) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid program length: " + program.length);
         }
         if (version == 0 && program.length != 20 && program.length != 32) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid program length for witness version 0 (per BIP141): " + program.length);
         }
-        byte[] data = convertBits(program, 8, 5, true);
-        byte[] versionPlusData = new byte[1 + data.length];
-        versionPlusData[0] = (byte) version;
-        System.arraycopy(data, 0, versionPlusData, 1, data.length);
-        return encode(hrp, versionPlusData);
+        boolean lower = checkHrp(hrp);
+        String lowercaseHrp = hrp.toLowerCase(Locale.ENGLISH);
+        char[] out = new char[hrp.length() + 2 + (program.length * 8 + 4) / 5 + CHECKSUM_LENGTH];
+        if (out.length > MAX_LENGTH) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "too long: hrp length=" + hrp.length() + ", program length=" + program.length);
+        }
+        int p = lowercaseHrp.length();
+        lowercaseHrp.getChars(0, p, out, 0);
+        out[p++] = '1';
+        int chk = polymodStep(hrpChecksum(lowercaseHrp), version);
+        out[p++] = charset.charAt(version);
+        int acc = 0;
+        int bits = 0;
+        for (byte b : program) {
+            acc = (acc << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                int value = (acc >>> bits) & 31;
+                chk = polymodStep(chk, value);
+                out[p++] = charset.charAt(value);
+            }
+        }
+        if (bits > 0) {
+            int value = (acc << (5 - bits)) & 31;
+            chk = polymodStep(chk, value);
+            out[p++] = charset.charAt(value);
+        }
+        writeChecksum(chk, out, p);
+        return toCase(out, lower);
     }
 
-    @NonNull
-    static Transaction.Script.WitnessProgram decodeSegwitAddress(String hrp, String address) throws BitcoinException {
-        DecodeResult decoded = decode(address);
-        String dechrp = decoded.dechrp;
-        byte[] data = decoded.data;
-        if (!dechrp.equals(hrp)) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid human-readable part: " + hrp + " != " + dechrp);
+    /**
+     * Validates and decodes a SegWit address in one pass.
+     *
+     * @param lowercaseHrp expected human-readable part
+     * @param program      receives the witness program, at least {@link #MAX_PROGRAM_LENGTH} bytes
+     * @return witness version in bits 8-12 and program length in bits 0-7, or a negative error code
+     */
+    private static int decodeSegwitAddress(String lowercaseHrp, CharSequence address, byte[] program) {
+        int length = address.length();
+        if (length > MAX_LENGTH) {
+            return ERR_TOO_LONG;
+        }
+        int pos = lowercaseHrp.length();
+        if (pos < 1 || pos + 1 + CHECKSUM_LENGTH > length) {
+            return ERR_INVALID_HRP;
+        }
+        int caseBits = 0;
+        for (int i = 0; i < pos; i++) {
+            char c = address.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                caseBits |= 2;
+                c += 'a' - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                caseBits |= 1;
+            }
+            if (c != lowercaseHrp.charAt(i)) {
+                return ERR_INVALID_HRP;
+            }
+        }
+        if (address.charAt(pos) != '1') {
+            return ERR_INVALID_HRP;
+        }
+        int dataEnd = length - CHECKSUM_LENGTH;
+        int programBits = (dataEnd - pos - 2) * 5;
+        if (programBits < 0) {
+            return ERR_INVALID_PROGRAM_LENGTH;
+        }
+        int programLength = programBits / 8;
+        if (programLength < 2 || programLength > MAX_PROGRAM_LENGTH) {
+            return ERR_INVALID_PROGRAM_LENGTH;
         }
-        if (data.length == 0) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid decode data length: " + data.length);
+        int chk = hrpChecksum(lowercaseHrp);
+        int version = -1;
+        int acc = 0;
+        int bits = 0;
+        int out = 0;
+        for (int i = pos + 1; i < length; i++) {
+            char c = address.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                caseBits |= 2;
+                c += 'a' - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                caseBits |= 1;
+            }
+            int value = c < CHARSET_VALUES.length ? CHARSET_VALUES[c] : -1;
+            if (value < 0) {
+                return ERR_INVALID_CHARACTER;
+            }
+            chk = polymodStep(chk, value);
+            if (i >= dataEnd) {
+                continue;
+            }
+            if (version < 0) {
+                version = value;
+            } else {
+                acc = (acc << 5) | value;
+                bits += 5;
+                if (bits >= 8) {
+                    bits -= 8;
+                    program[out++] = (byte) (acc >>> bits);
+                }
+            }
+        }
+        if (caseBits == 3) {
+            return ERR_MIXED_CASE;
+        }
+        if (chk != 1) {
+            return ERR_INVALID_CHECKSUM;
         }
-        if ((data[0] & 0xff) > 16) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid witness version: " + (data[0] & 0xff));
+        if (version > 16) {
+            return ERR_INVALID_VERSION;
         }
-        byte[] dataWithNoVersion = new byte[data.length - 1];
-        System.arraycopy(data, 1, dataWithNoVersion, 0, dataWithNoVersion.length);
-        byte[] res = convertBits(dataWithNoVersion, 5, 8, false);
-        if (res.length < 2 || res.length > 40) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid convertbits length: " + res.length);
+        if (bits >= 5 || ((acc << (8 - bits)) & 0xff) != 0) {
+            return ERR_INVALID_PADDING;
         }
-        if (data[0] == 0 && res.length != 20 && res.length != 32) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid program length for witness version 0 (per BIP141): " + res.length);
+        if (version == 0 && programLength != 20 && programLength != 32) {
+            return ERR_INVALID_PROGRAM_LENGTH;
+        }
+        return version << 8 | programLength;
+    }
+
+    @NonNull
+    static Transaction.Script.WitnessProgram decodeSegwitAddress(String hrp, String address) throws BitcoinException {
+        byte[] program = new byte[MAX_PROGRAM_LENGTH];
+        int result = decodeSegwitAddress(hrp.toLowerCase(Locale.ENGLISH), address, program);
+        if (result < 0) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, errorMessage(result) + ": " + address);
+        }
+        return new Transaction.Script.WitnessProgram(result >> 8, Arrays.copyOf(program, result & 0xff));
+    }
+
+    /**
+     * @return true if address is a valid SegWit address with the human-readable part hrp
+     */
+    static boolean isValidSegwitAddress(String hrp, CharSequence address) {
+        return address != null && decodeSegwitAddress(hrp.toLowerCase(Locale.ENGLISH), address, new byte[MAX_PROGRAM_LENGTH]) >= 0;
+    }
+
+    /**
+     * Validates many SegWit addresses with the same human-readable part, e.g. from a payout file,
+     * reusing one buffer for all of them.
+     *
+     * @param valid receives the result for each address
+     * @return number of valid addresses
+     */
+    static int validateSegwitAddresses(String hrp, CharSequence[] addresses, boolean[] valid) {
+        String lowercaseHrp = hrp.toLowerCase(Locale.ENGLISH);
+        byte[] program = new byte[MAX_PROGRAM_LENGTH];
+        int validCount = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            valid[i] = addresses[i] != null && decodeSegwitAddress(lowercaseHrp, addresses[i], program) >= 0;
+            if (valid[i]) {
+                validCount++;
+            }
+        }
+        Arrays.fill(program, (byte) 0);
+        return validCount;
+    }
+
+    private static String errorMessage(int error) {
+        switch (error) {
+            case ERR_TOO_LONG:
+                return "too long";
+            case ERR_MIXED_CASE:
+                return "mixed case";
+            case ERR_INVALID_HRP:
+                return "invalid human-readable part";
+            case ERR_INVALID_CHARACTER:
+                return "invalid character data part";
+            case ERR_INVALID_CHECKSUM:
+                return "invalid checksum";
+            case ERR_INVALID_VERSION:
+                return "invalid witness version";
+            case ERR_INVALID_PROGRAM_LENGTH:
+                return "invalid program length";
+            case ERR_INVALID_PADDING:
+                return "invalid padding";
+            default:
+                return "invalid address";
         }
-        return new Transaction.Script.WitnessProgram(data[0], res);
     }
 
     static class DecodeResult {
@@ -86,157 +306,122 @@ final class Bech32 {
     }
 
     static DecodeResult decode(String bechString) throws BitcoinException {
-        if (bechString.length() > 90) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "too long: len=" + bechString.length());
-        }
-        String lowercased = bechString.toLowerCase(Locale.ENGLISH);
-        String uppercased = bechString.toUpperCase(Locale.ENGLISH);
-        if (lowercased.equals(bechString) && uppercased.equals(bechString)) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "mixed case");
+        int length = bechString.length();
+        if (length > MAX_LENGTH) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "too long: len=" + length);
         }
-        bechString = lowercased;
         int pos = bechString.lastIndexOf('1');
-        if (pos < 1 || pos + 7 > bechString.length()) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "separator '1' at invalid position: pos=" + pos + ", len=" + bechString.length());
+        if (pos < 1 || pos + 1 + CHECKSUM_LENGTH > length) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "separator '1' at invalid position: pos=" + pos + ", len=" + length);
         }
-        String hrp = bechString.substring(0, pos);
-        for (int i = 0; i < hrp.length(); i++) {
-            char c = hrp.charAt(i);
-            if (c < 33 || c > 126) {
+        int caseBits = 0;
+        for (int i = 0; i < length; i++) {
+            char c = bechString.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                caseBits |= 2;
+            } else if (c >= 'a' && c <= 'z') {
+                caseBits |= 1;
+            }
+            if (i < pos && (c < 33 || c > 126)) {
                 throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid character human-readable part: bechString[" + i + "]=" + c);
             }
         }
-        byte[] data = new byte[bechString.length() - pos - 1];
-        for (int p = pos + 1, i = 0; p < bechString.length(); p++, i++) {
-            int d = charset.indexOf(bechString.charAt(p));
+        if (caseBits == 3) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "mixed case");
+        }
+        String hrp = bechString.substring(0, pos).toLowerCase(Locale.ENGLISH);
+        int chk = hrpChecksum(hrp);
+        byte[] data = new byte[length - pos - 1 - CHECKSUM_LENGTH];
+        for (int p = pos + 1, i = 0; p < length; p++, i++) {
+            char c = bechString.charAt(p);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            int d = c < CHARSET_VALUES.length ? CHARSET_VALUES[c] : -1;
             if (d == -1) {
-                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid character data part : bechString[" + p + "]=" + bechString.charAt(p));
+                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid character data part : bechString[" + p + "]=" + c);
+            }
+            chk = polymodStep(chk, d);
+            if (i < data.length) {
+                data[i] = (byte) d;
             }
-            data[i] = (byte) d;
         }
-        if (!verifyChecksum(hrp, data)) {
+        if (chk != 1) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid checksum");
         }
-        byte[] outData = new byte[data.length - 6];
-        System.arraycopy(data, 0, outData, 0, outData.length);
-        return new DecodeResult(hrp, outData);
-    }
-
-    private static boolean verifyChecksum(String hrp, byte[] data) {
-        byte[] ehrp = hrpExpand(hrp);
-        byte[] values = new byte[ehrp.length + data.length];
-        System.arraycopy(ehrp, 0, values, 0, ehrp.length);
-        System.arraycopy(data, 0, values, ehrp.length, data.length);
-        return polymod(values) == 1;
+        return new DecodeResult(hrp, data);
     }
 
     static String encode(String hrp, byte[] data) throws BitcoinException {
-        if ((hrp.length() + data.length + 7) > 90) {
+        if ((hrp.length() + data.length + 7) > MAX_LENGTH) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "too long: hrp length=" + hrp.length() + ", data length=" + data.length);
         }
+        boolean lower = checkHrp(hrp);
+        String lowercaseHrp = hrp.toLowerCase(Locale.ENGLISH);
+        char[] out = new char[hrp.length() + 1 + data.length + CHECKSUM_LENGTH];
+        int p = lowercaseHrp.length();
+        lowercaseHrp.getChars(0, p, out, 0);
+        out[p++] = '1';
+        int chk = hrpChecksum(lowercaseHrp);
+        for (int i = 0; i < data.length; i++) {
+            int value = data[i] & 0xff;
+            if (value >= charset.length()) {
+                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid data: data[" + i + "]=" + value);
+            }
+            chk = polymodStep(chk, value);
+            out[p++] = charset.charAt(value);
+        }
+        writeChecksum(chk, out, p);
+        return toCase(out, lower);
+    }
+
+    /**
+     * @return true if hrp is lowercase, false if it's uppercase
+     */
+    private static boolean checkHrp(String hrp) throws BitcoinException {
         if (hrp.length() == 0) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "no hrp");
         }
+        int caseBits = 0;
         for (int i = 0; i < hrp.length(); i++) {
             char c = hrp.charAt(i);
             if (c < 33 || c > 126) {
                 throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid character human-readable part: hrp[" + i + "]=" + c);
             }
+            if (c >= 'A' && c <= 'Z') {
+                caseBits |= 2;
+            } else if (c >= 'a' && c <= 'z') {
+                caseBits |= 1;
+            }
         }
-        String uppercased = hrp.toUpperCase(Locale.ENGLISH);
-        String lowercased = hrp.toLowerCase(Locale.ENGLISH);
-        if (!uppercased.equals(hrp) && !lowercased.equals(hrp)) {
+        if (caseBits == 3) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "mixed case: hrp=" + hrp);
         }
-        boolean lower = lowercased.equals(hrp);
-        hrp = lowercased;
-        byte[] checksum = createChecksum(hrp, data);
-        byte[] combined = new byte[data.length + checksum.length];
-        System.arraycopy(data, 0, combined, 0, data.length);
-        System.arraycopy(checksum, 0, combined, data.length, checksum.length);
-        StringBuilder ret = new StringBuilder();
-        ret.append(hrp);
-        ret.append("1");
-        for (int i = 0; i < combined.length; i++) {
-            int p = combined[i] & 0xff;
-            if (p >= charset.length()) {
-                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid data: data[" + i + "]=" + p);
-            }
-            ret.append(charset.charAt(p));
-        }
-        if (lower) {
-            return ret.toString();
-        }
-        return ret.toString().toUpperCase(Locale.ENGLISH);
-    }
-
-    private static byte[] createChecksum(String hrp, byte[] data) {
-        byte[] ehrp = hrpExpand(hrp);
-        byte[] values = new byte[ehrp.length + data.length + 6];
-        System.arraycopy(ehrp, 0, values, 0, ehrp.length);
-        System.arraycopy(data, 0, values, ehrp.length, data.length);
-        int mod = polymod(values) ^ 1;
-        byte[] ret = new byte[6];
-        for (int p = 0; p < ret.length; p++) {
-            ret[p] = (byte) ((mod >>> (5 * (5 - p))) & 31);
-        }
-        return ret;
-    }
-
-    private static int polymod(byte[] values) {
-        int chk = 1;
-        for (byte value : values) {
-            int v = value & 0xff;
-            int top = chk >>> 25;
-            chk = (chk & 0x1ffffff) << 5 ^ v;
-            for (int j = 0; j < 5; j++) {
-                if (((top >> j) & 1) == 1) {
-                    chk ^= generator[j];
-                }
-            }
-        }
-        return chk;
+        return caseBits != 2;
     }
 
-    private static byte[] hrpExpand(String hrp) {
-        byte[] ret = new byte[hrp.length() * 2 + 1];
-        for (int i = 0; i < hrp.length(); i++) {
-            char c = hrp.charAt(i);
-            ret[i] = (byte) (c >> 5);
+    /**
+     * Feeds 6 zero values into chk and writes the resulting checksum characters to the end of out
+     */
+    private static void writeChecksum(int chk, char[] out, int p) {
+        for (int i = 0; i < CHECKSUM_LENGTH; i++) {
+            chk = polymodStep(chk, 0);
         }
-        for (int i = 0; i < hrp.length(); i++) {
-            char c = hrp.charAt(i);
-            ret[i + hrp.length() + 1] = (byte) (c & 31);
+        int mod = chk ^ 1;
+        for (int i = 0; i < CHECKSUM_LENGTH; i++) {
+            out[p + i] = charset.charAt((mod >>> (5 * (5 - i))) & 31);
         }
-        return ret;
     }
 
-    private static byte[] convertBits(byte[] data, int frombits, int tobits, boolean pad) throws BitcoinException {
-        int acc = 0;
-        int bits = 0;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int maxv = (1 << tobits) - 1;
-        for (int i = 0; i < data.length; i++) {
-            int value = data[i] & 0xff;
-            if ((value >>> frombits) != 0) {
-                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "invalid data range: data[" + i + "]=" + value + " (frombits=" + frombits + ")");
-            }
-            acc = (acc << frombits) | value;
-            bits += frombits;
-            while (bits >= tobits) {
-                bits -= tobits;
-                baos.write((acc >>> bits) & maxv);
-            }
-        }
-        if (pad) {
-            if (bits > 0) {
-                baos.write((acc << (tobits - bits)) & maxv);
+    private static String toCase(char[] out, boolean lower) {
+        if (!lower) {
+            for (int i = 0; i < out.length; i++) {
+                char c = out[i];
+                if (c >= 'a' && c <= 'z') {
+                    out[i] = (char) (c - ('a' - 'A'));
+                }
             }
-        } else if (bits >= frombits) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "illegal zero padding");
-        } else if (((acc << (tobits - bits)) & maxv) != 0) {
-            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "non-zero padding");
         }
-        return baos.toByteArray();
+        return new String(out);
     }
 }
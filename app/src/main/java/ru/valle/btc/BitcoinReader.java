@@ -0,0 +1,153 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+package ru.valle.btc;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+/**
+ * Little-endian reader of bitcoin serialized data. Unlike {@link BitcoinInputStream} it is not synchronized,
+ * multi-byte values are assembled from the array directly and byte ranges can be skipped as slices,
+ * offsets into {@link #array()}, instead of being copied. Not thread-safe.
+ * <p/>
+ * Reading past the end throws {@link EOFException} and leaves the position unchanged.
+ */
+public final class BitcoinReader {
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    public BitcoinReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public BitcoinReader(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || length > bytes.length - offset) {
+            throw new IndexOutOfBoundsException("offset " + offset + " length " + length + " array length " + bytes.length);
+        }
+        this.bytes = bytes;
+        position = offset;
+        end = offset + length;
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer, its position is not changed.
+     * Heap buffers are read in place, direct ones are copied once.
+     */
+    public BitcoinReader(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            position = buffer.arrayOffset() + buffer.position();
+            end = position + buffer.remaining();
+        } else {
+            bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            position = 0;
+            end = bytes.length;
+        }
+    }
+
+    /**
+     * @return the array slices point into
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * @return offset of the next byte in {@link #array()}
+     */
+    public int position() {
+        return position;
+    }
+
+    public int remaining() {
+        return end - position;
+    }
+
+    private int advance(int count) throws EOFException {
+        if (count < 0 || count > end - position) {
+            throw new EOFException();
+        }
+        int offset = position;
+        position += count;
+        return offset;
+    }
+
+    public int readByte() throws EOFException {
+        return bytes[advance(1)] & 0xff;
+    }
+
+    public int readInt16() throws EOFException {
+        int offset = advance(2);
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    public int readInt32() throws EOFException {
+        return int32At(bytes, advance(4));
+    }
+
+    public long readInt64() throws EOFException {
+        return int64At(bytes, advance(8));
+    }
+
+    public long readVarInt() throws EOFException {
+        int first = readByte();
+        if (first < 0xfd) {
+            return first;
+        } else if (first == 0xfd) {
+            return readInt16();
+        } else if (first == 0xfe) {
+            return readInt32() & 0xffffffffL;
+        } else {
+            return readInt64();
+        }
+    }
+
+    /**
+     * Skips count bytes
+     *
+     * @return offset of the skipped bytes in {@link #array()}
+     */
+    public int readSlice(int count) throws EOFException {
+        return advance(count);
+    }
+
+    public byte[] readBytes(int count) throws EOFException {
+        byte[] result = new byte[count];
+        readBytes(result, 0, count);
+        return result;
+    }
+
+    public void readBytes(byte[] destination, int offset, int count) throws EOFException {
+        System.arraycopy(bytes, advance(count), destination, offset, count);
+    }
+
+    static int int32At(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    static long int64At(byte[] bytes, int offset) {
+        return (int32At(bytes, offset) & 0xffffffffL) | (int32At(bytes, offset + 4) & 0xffffffffL) << 32;
+    }
+}
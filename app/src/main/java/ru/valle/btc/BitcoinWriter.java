@@ -0,0 +1,212 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+package ru.valle.btc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Little-endian writer with the encoding methods of {@link BitcoinOutputStream} which fills a buffer of known size:
+ * the serialized length is computed first, see {@link #varIntSize(long)}, then the data is written into one array or
+ * {@link ByteBuffer} which is never grown or copied. Writing past the end throws. Not thread-safe.
+ */
+public final class BitcoinWriter {
+    //arrays larger than that are not kept by the per-thread writers
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<BitcoinWriter> POOL = new ThreadLocal<BitcoinWriter>() {
+        @Override
+        protected BitcoinWriter initialValue() {
+            return new BitcoinWriter(new byte[256]);
+        }
+    };
+
+    private byte[] bytes;
+    private final ByteBuffer buffer;
+    private int position;
+    private int end;
+
+    public BitcoinWriter(byte[] bytes) {
+        this(bytes, 0);
+    }
+
+    public BitcoinWriter(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        buffer = null;
+        position = offset;
+        end = bytes.length;
+    }
+
+    /**
+     * Writes from the position of the buffer up to its limit, the position itself is not changed.
+     * Heap buffers are written through their array.
+     */
+    public BitcoinWriter(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            this.buffer = null;
+            position = buffer.arrayOffset() + buffer.position();
+            end = buffer.arrayOffset() + buffer.limit();
+        } else {
+            this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * @return this thread's writer over an array of at least size bytes, positioned at 0.
+     * It stays valid until the next call on this thread, so it must not be held across calls which may use the pool too.
+     */
+    static BitcoinWriter pooled(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return new BitcoinWriter(new byte[size]);
+        }
+        BitcoinWriter writer = POOL.get();
+        if (writer.bytes.length < size) {
+            writer.bytes = new byte[Math.max(size, writer.bytes.length * 2)];
+            writer.end = writer.bytes.length;
+        }
+        writer.position = 0;
+        return writer;
+    }
+
+    public static int varIntSize(long value) {
+        if (value < 0xfd) {
+            return 1;
+        } else if (value <= 0xffff) {
+            return 3;
+        } else if (value <= 0xffffffffL) {
+            return 5;
+        } else {
+            return 9;
+        }
+    }
+
+    /**
+     * @return array being filled, null when writing into a direct buffer
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * @return offset of the next byte in {@link #array()} or position of the direct buffer
+     */
+    public int position() {
+        return buffer == null ? position : buffer.position();
+    }
+
+    private int reserve(int count) {
+        if (count > end - position) {
+            throw new IndexOutOfBoundsException("no space for " + count + " bytes");
+        }
+        int offset = position;
+        position += count;
+        return offset;
+    }
+
+    public void write(int b) {
+        if (buffer == null) {
+            bytes[reserve(1)] = (byte) b;
+        } else {
+            buffer.put((byte) b);
+        }
+    }
+
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        if (buffer == null) {
+            System.arraycopy(b, off, bytes, reserve(len), len);
+        } else {
+            buffer.put(b, off, len);
+        }
+    }
+
+    /**
+     * Writes bytes in reverse order, as hashes are stored in outpoints
+     */
+    public void writeReversed(byte[] b) {
+        if (buffer == null) {
+            int offset = reserve(b.length) + b.length - 1;
+            for (byte value : b) {
+                bytes[offset--] = value;
+            }
+        } else {
+            for (int i = b.length - 1; i >= 0; i--) {
+                buffer.put(b[i]);
+            }
+        }
+    }
+
+    public void writeInt16(int value) {
+        if (buffer == null) {
+            int offset = reserve(2);
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >> 8);
+        } else {
+            buffer.putShort((short) value);
+        }
+    }
+
+    public void writeInt32(int value) {
+        if (buffer == null) {
+            putInt32(reserve(4), value);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+
+    public void writeInt64(long value) {
+        if (buffer == null) {
+            int offset = reserve(8);
+            putInt32(offset, (int) value);
+            putInt32(offset + 4, (int) (value >>> 32));
+        } else {
+            buffer.putLong(value);
+        }
+    }
+
+    private void putInt32(int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    public void writeVarInt(long value) {
+        if (value < 0xfd) {
+            write((int) value);
+        } else if (value <= 0xffff) {
+            write(0xfd);
+            writeInt16((int) value);
+        } else if (value <= 0xffffffffL) {
+            write(0xfe);
+            writeInt32((int) value);
+        } else {
+            write(0xff);
+            writeInt64(value);
+        }
+    }
+}
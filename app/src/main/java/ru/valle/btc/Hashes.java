@@ -0,0 +1,140 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256, double SHA-256 and hash160 on per-thread digests. MessageDigest.getInstance looks the provider up on every
+ * call, here every thread does it once and then reuses its digests.
+ * The *Into methods write into caller-supplied arrays and allocate nothing, out may be the same array as in.
+ */
+final class Hashes {
+    static final int SHA256_LENGTH = 32;
+    static final int HASH160_LENGTH = 20;
+
+    private static final ThreadLocal<Hashes> LOCAL = new ThreadLocal<Hashes>() {
+        @Override
+        protected Hashes initialValue() {
+            return new Hashes();
+        }
+    };
+
+    private final MessageDigest sha256;
+    private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+    private final byte[] scratch = new byte[SHA256_LENGTH];
+
+    private Hashes() {
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void finishSha256(byte[] out, int outOffset) {
+        try {
+            sha256.digest(out, outOffset, SHA256_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes 32 bytes of SHA-256 of in[offset..offset+length) to out at outOffset
+     */
+    static void sha256Into(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        Hashes hashes = LOCAL.get();
+        hashes.sha256.update(in, offset, length);
+        hashes.finishSha256(out, outOffset);
+    }
+
+    /**
+     * Writes 32 bytes of SHA-256 of SHA-256 of in[offset..offset+length) to out at outOffset
+     */
+    static void doubleSha256Into(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        Hashes hashes = LOCAL.get();
+        hashes.sha256.update(in, offset, length);
+        hashes.finishSha256(hashes.scratch, 0);
+        hashes.sha256.update(hashes.scratch, 0, SHA256_LENGTH);
+        hashes.finishSha256(out, outOffset);
+    }
+
+    /**
+     * Writes 20 bytes of RIPEMD-160 of SHA-256 of in[offset..offset+length) to out at outOffset
+     */
+    static void hash160Into(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        Hashes hashes = LOCAL.get();
+        hashes.sha256.update(in, offset, length);
+        hashes.finishSha256(hashes.scratch, 0);
+        hashes.ripemd160.update(hashes.scratch, 0, SHA256_LENGTH);
+        hashes.ripemd160.doFinal(out, outOffset);
+    }
+
+    /**
+     * @return first 4 bytes of double SHA-256 of in[offset..offset+length) as a big-endian int,
+     * the checksum of Base58Check and BIP38
+     */
+    static int checksum(byte[] in, int offset, int length) {
+        Hashes hashes = LOCAL.get();
+        byte[] hash = hashes.scratch;
+        hashes.sha256.update(in, offset, length);
+        hashes.finishSha256(hash, 0);
+        hashes.sha256.update(hash, 0, SHA256_LENGTH);
+        hashes.finishSha256(hash, 0);
+        return (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+    }
+
+    static byte[] sha256(byte[] in) {
+        byte[] hash = new byte[SHA256_LENGTH];
+        sha256Into(in, 0, in.length, hash, 0);
+        return hash;
+    }
+
+    static byte[] doubleSha256(byte[] in) {
+        byte[] hash = new byte[SHA256_LENGTH];
+        doubleSha256Into(in, 0, in.length, hash, 0);
+        return hash;
+    }
+
+    static byte[] hash160(byte[] in) {
+        byte[] hash = new byte[HASH160_LENGTH];
+        hash160Into(in, 0, in.length, hash, 0);
+        return hash;
+    }
+
+    /**
+     * @return this thread's SHA-256 digest, reset. It's shared with the other methods of this class,
+     * so the hash must be finished before any of them is called.
+     */
+    static MessageDigest threadSha256() {
+        MessageDigest sha256 = LOCAL.get().sha256;
+        sha256.reset();
+        return sha256;
+    }
+}
@@ -478,17 +478,13 @@ public final class MainActivity extends Activity {
                             //1. decode tx or json
                             byte[] rawTx = BTCUtils.fromHex(unspentOutputsInfoStr.trim());
                             if (rawTx != null) {
-                                Transaction baseTx = Transaction.decodeTransaction(rawTx);
-                                byte[] rawTxReconstructed = baseTx.getBytes();
-                                if (!Arrays.equals(rawTxReconstructed, rawTx)) {
-                                    throw new IllegalArgumentException("Unable to decode given transaction");
-                                }
+                                //the view accepts only complete, canonically encoded transactions
+                                TransactionView baseTx = new TransactionView(rawTx);
                                 jsonInput = false;
                                 byte[] txHash = baseTx.hash();
-                                for (int outputIndex = 0; outputIndex < baseTx.outputs.length; outputIndex++) {
-                                    Transaction.Output output = baseTx.outputs[outputIndex];
-                                    if (Arrays.equals(outputScriptWeAreAbleToSpend, output.scriptPubKey.bytes)) {
-                                        unspentOutputs.add(new UnspentOutputInfo(keyPair, txHash, output.scriptPubKey, output.value, outputIndex));
+                                for (int outputIndex = 0; outputIndex < baseTx.getOutputsCount(); outputIndex++) {
+                                    if (baseTx.isScriptPubKeyEqualTo(outputIndex, outputScriptWeAreAbleToSpend)) {
+                                        unspentOutputs.add(new UnspentOutputInfo(keyPair, txHash, baseTx.getScriptPubKey(outputIndex), baseTx.getValue(outputIndex), outputIndex));
                                     }
                                 }
                             } else {
@@ -1071,10 +1067,10 @@ public final class MainActivity extends Activity {
                             extraFee = FeePreference.PREF_EXTRA_FEE_DEFAULT;
                         }
                         btcSpendTx = BTCUtils.createTransaction(unspentOutputs,
-                                outputAddress, keyPair.address, amount, extraFee, BTCUtils.TRANSACTION_TYPE_LEGACY
+                                outputAddress, keyPair.address, amount, extraFee, BTCUtils.TRANSACTION_TYPE_LEGACY, Parallel.sharedExecutor()
                         );
                         bchSpendTx = BTCUtils.createTransaction(unspentOutputs,
-                                outputAddress, keyPair.address, amount, extraFee, BTCUtils.TRANSACTION_TYPE_BITCOIN_CASH);
+                                outputAddress, keyPair.address, amount, extraFee, BTCUtils.TRANSACTION_TYPE_BITCOIN_CASH, Parallel.sharedExecutor());
 
                         //6. double check that generated transaction is valid
                         Transaction.Script[] relatedScripts = new Transaction.Script[btcSpendTx.inputs.length];
@@ -1089,8 +1085,8 @@ public final class MainActivity extends Activity {
                                 }
                             }
                         }
-                        BTCUtils.verify(relatedScripts, amounts, btcSpendTx, false);
-                        BTCUtils.verify(relatedScripts, amounts, bchSpendTx, true);
+                        BTCUtils.verify(relatedScripts, amounts, btcSpendTx, false, Parallel.sharedExecutor());
+                        BTCUtils.verify(relatedScripts, amounts, bchSpendTx, true, Parallel.sharedExecutor());
                     } catch (BitcoinException e) {
                         switch (e.errorCode) {
                             case BitcoinException.ERR_INSUFFICIENT_FUNDS:
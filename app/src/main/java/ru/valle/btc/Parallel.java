@@ -0,0 +1,167 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent indexed tasks (inputs of a transaction, keys of a batch) on several threads.
+ * <p/>
+ * Workers take indices in increasing order from a shared counter, so a slow item never holds back the others.
+ * The calling thread works too, which means the loop completes even if the executor is busy with other jobs.
+ * After the first failure no new indices are taken, and the failure with the lowest index is rethrown:
+ * every lower index had already been taken and finished by then, so it is the same failure a plain loop would report.
+ */
+final class Parallel {
+
+    interface IndexedTask<E extends Exception> {
+        void run(int index) throws E;
+    }
+
+    private Parallel() {
+    }
+
+    static int parallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    static Executor sharedExecutor() {
+        return SharedExecutorHolder.EXECUTOR;
+    }
+
+    private static final class SharedExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(parallelism(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@SuppressWarnings("NullableProblems") Runnable r) {
+                Thread thread = new Thread(r, "btc-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Calls task.run(i) for every i in [0, count). Runs on the calling thread only when executor is null.
+     */
+    static <E extends Exception> void forEach(Executor executor, int count, IndexedTask<E> task) throws E {
+        if (executor == null || count < 2) {
+            for (int i = 0; i < count; i++) {
+                task.run(i);
+            }
+            return;
+        }
+        Loop<E> loop = new Loop<>(count, task);
+        int helpers = Math.min(count, Math.max(2, parallelism())) - 1;
+        for (int i = 0; i < helpers; i++) {
+            executor.execute(loop);
+        }
+        loop.runOnCallerThread();
+    }
+
+    private static final class Loop<E extends Exception> implements Runnable {
+        private final int count;
+        private final IndexedTask<E> task;
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private volatile boolean failed;
+        //guarded by this
+        private int runningHelpers;
+        private boolean closed;
+        private Throwable error;
+        private int errorIndex = Integer.MAX_VALUE;
+
+        Loop(int count, IndexedTask<E> task) {
+            this.count = count;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                runningHelpers++;
+            }
+            try {
+                work();
+            } finally {
+                synchronized (this) {
+                    runningHelpers--;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void work() {
+            int i;
+            while (!failed && (i = nextIndex.getAndIncrement()) < count) {
+                try {
+                    task.run(i);
+                } catch (Throwable e) {
+                    synchronized (this) {
+                        if (i < errorIndex) {
+                            errorIndex = i;
+                            error = e;
+                        }
+                    }
+                    failed = true;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void runOnCallerThread() throws E {
+            work();
+            Throwable e;
+            synchronized (this) {
+                closed = true;
+                boolean interrupted = false;
+                while (runningHelpers > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                e = error;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            } else if (e != null) {
+                throw (E) e;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+package ru.valle.btc;
+
+/**
+ * Script numbers: little endian sign-magnitude integers, the top bit of the last byte is the sign.
+ * Zero is the empty array. Arithmetic operands are limited to {@link #MAX_SIZE} bytes, results may be longer.
+ * Decoding and encoding into a given array allocate nothing.
+ */
+final class ScriptNum {
+    static final int MAX_SIZE = 4;
+    /**
+     * Lock times go up to 2^39-1, one byte more than arithmetic operands
+     */
+    static final int LOCKTIME_MAX_SIZE = 5;
+
+    private ScriptNum() {
+    }
+
+    /**
+     * @param requireMinimal reject encodings with unneeded trailing zero bytes, SCRIPT_VERIFY_MINIMALDATA
+     * @throws Transaction.Script.ScriptInvalidException if the number is longer than maxSize or not minimal when required
+     */
+    static long decode(byte[] data, int offset, int length, boolean requireMinimal, int maxSize) throws Transaction.Script.ScriptInvalidException {
+        if (length > maxSize) {
+            throw new Transaction.Script.ScriptInvalidException("script number overflow");
+        }
+        if (requireMinimal && !isMinimal(data, offset, length)) {
+            throw new Transaction.Script.ScriptInvalidException("non-minimally encoded script number");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+            result |= (data[offset + i] & 0xffL) << (8 * i);
+        }
+        long signBit = 0x80L << (8 * (length - 1));
+        return (result & signBit) == 0 ? result : -(result & ~signBit);
+    }
+
+    static boolean isMinimal(byte[] data, int offset, int length) {
+        //the last byte may be 0x00 or 0x80 only to hold the sign when the byte before it uses its top bit
+        return length == 0 || (data[offset + length - 1] & 0x7f) != 0 ||
+                (length > 1 && (data[offset + length - 2] & 0x80) != 0);
+    }
+
+    static int encodedLength(long value) {
+        if (value == 0) {
+            return 0;
+        }
+        long magnitude = Math.abs(value);
+        int length = (71 - Long.numberOfLeadingZeros(magnitude)) / 8;
+        return (magnitude >>> (8 * length - 1)) != 0 ? length + 1 : length;
+    }
+
+    /**
+     * Writes the minimal encoding of value
+     *
+     * @return number of bytes written, {@link #encodedLength(long)}
+     */
+    static int encode(long value, byte[] out, int offset) {
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        int pos = offset;
+        while (magnitude != 0) {
+            out[pos++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        if (pos > offset) {
+            if ((out[pos - 1] & 0x80) != 0) {
+                out[pos++] = (byte) (negative ? 0x80 : 0);
+            } else if (negative) {
+                out[pos - 1] |= 0x80;
+            }
+        }
+        return pos - offset;
+    }
+
+    static byte[] encode(long value) {
+        byte[] result = new byte[encodedLength(value)];
+        encode(value, result, 0);
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+package ru.valle.btc;
+
+/**
+ * Script decoded into instructions once, so running it does not parse the bytes again.
+ * Pushes keep offset and length of their data in the script, conditionals keep the index of the matching
+ * OP_ELSE or OP_ENDIF to jump over the branch which is not taken. Immutable.
+ */
+final class ScriptProgram {
+    final byte[] script;
+    /**
+     * Number of instructions
+     */
+    final int length;
+    final byte[] opcodes;
+    /**
+     * Offset in the script right after the instruction, where the subScript of OP_CODESEPARATOR starts
+     */
+    final int[] ends;
+    /**
+     * Offset of the pushed data, or for OP_IF, OP_NOTIF and OP_ELSE the index of the next OP_ELSE or OP_ENDIF of the same level
+     */
+    final int[] operands;
+    final int[] dataLengths;
+    /**
+     * False if a push runs past the end of the script or conditionals are unbalanced, such a script always fails
+     */
+    final boolean valid;
+
+    private ScriptProgram(byte[] script, int length, byte[] opcodes, int[] ends, int[] operands, int[] dataLengths, boolean valid) {
+        this.script = script;
+        this.length = length;
+        this.opcodes = opcodes;
+        this.ends = ends;
+        this.operands = operands;
+        this.dataLengths = dataLengths;
+        this.valid = valid;
+    }
+
+    static ScriptProgram compile(byte[] script) {
+        int count = 0;
+        for (int pos = 0; pos < script.length; count++) {
+            int end = instructionEnd(script, pos);
+            if (end < 0) {
+                return new ScriptProgram(script, 0, null, null, null, null, false);
+            }
+            pos = end;
+        }
+        byte[] opcodes = new byte[count];
+        int[] ends = new int[count];
+        int[] operands = new int[count];
+        int[] dataLengths = new int[count];
+        //indexes of the last OP_IF, OP_NOTIF or OP_ELSE of every open conditional
+        int[] open = new int[count];
+        int depth = 0;
+        for (int i = 0, pos = 0; i < count; i++) {
+            int op = script[pos] & 0xff;
+            int end = instructionEnd(script, pos);
+            opcodes[i] = (byte) op;
+            ends[i] = end;
+            if (op <= Transaction.Script.OP_PUSHDATA4) {
+                int headerLength = op < Transaction.Script.OP_PUSHDATA1 ? 1 : op == Transaction.Script.OP_PUSHDATA1 ? 2 :
+                        op == Transaction.Script.OP_PUSHDATA2 ? 3 : 5;
+                operands[i] = pos + headerLength;
+                dataLengths[i] = end - pos - headerLength;
+            } else if (op == Transaction.Script.OP_IF || op == Transaction.Script.OP_NOTIF) {
+                open[depth++] = i;
+            } else if (op == Transaction.Script.OP_ELSE || op == Transaction.Script.OP_ENDIF) {
+                if (depth == 0) {
+                    return new ScriptProgram(script, 0, null, null, null, null, false);
+                }
+                operands[open[depth - 1]] = i;
+                if (op == Transaction.Script.OP_ELSE) {
+                    open[depth - 1] = i;
+                } else {
+                    depth--;
+                }
+            }
+            pos = end;
+        }
+        return new ScriptProgram(script, count, opcodes, ends, operands, dataLengths, depth == 0);
+    }
+
+    /**
+     * @return offset of the next instruction or -1 if pushed data does not fit into the script
+     */
+    static int instructionEnd(byte[] script, int pos) {
+        int op = script[pos] & 0xff;
+        if (op < Transaction.Script.OP_PUSHDATA1) {
+            int end = pos + 1 + op;
+            return end > script.length ? -1 : end;
+        } else if (op > Transaction.Script.OP_PUSHDATA4) {
+            return pos + 1;
+        }
+        long end;
+        if (op == Transaction.Script.OP_PUSHDATA1) {
+            end = pos + 2L > script.length ? -1 : pos + 2L + (script[pos + 1] & 0xff);
+        } else if (op == Transaction.Script.OP_PUSHDATA2) {
+            end = pos + 3L > script.length ? -1 : pos + 3L + ((script[pos + 1] & 0xff) | (script[pos + 2] & 0xff) << 8);
+        } else {
+            end = pos + 5L > script.length ? -1 : pos + 5L + ((script[pos + 1] & 0xff) | (script[pos + 2] & 0xff) << 8 |
+                    (script[pos + 3] & 0xff) << 16 | (script[pos + 4] & 0xffL) << 24);
+        }
+        return end > script.length ? -1 : (int) end;
+    }
+}
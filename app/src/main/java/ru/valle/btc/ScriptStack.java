@@ -0,0 +1,295 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+package ru.valle.btc;
+
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.List;
+
+/**
+ * Script execution stack. Items are slices of arrays: data pushed by a script points into the script bytes and
+ * booleans and small numbers point into shared one-byte arrays, so pushing copies nothing.
+ * Items are materialized into arrays of their own only when asked for, see {@link #get(int)}.
+ * Not synchronized, one stack is reused for all the scripts of an input.
+ * <p/>
+ * Items are addressed by depth, 0 is the top. Taking more items than there are throws {@link EmptyStackException}.
+ */
+final class ScriptStack {
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[][] SINGLE_BYTES = new byte[256][];
+
+    static {
+        for (int i = 0; i < SINGLE_BYTES.length; i++) {
+            SINGLE_BYTES[i] = new byte[]{(byte) i};
+        }
+    }
+
+    private byte[][] arrays;
+    private int[] offsets;
+    private int[] lengths;
+    private int size;
+
+    ScriptStack() {
+        this(8);
+    }
+
+    ScriptStack(int capacity) {
+        arrays = new byte[capacity][];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(arrays, 0, size, null);
+        size = 0;
+    }
+
+    void push(byte[] array) {
+        push(array, 0, array.length);
+    }
+
+    void push(byte[] array, int offset, int length) {
+        if (size == arrays.length) {
+            int capacity = Math.max(8, size * 2);
+            arrays = Arrays.copyOf(arrays, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        arrays[size] = array;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    void pushEmpty() {
+        push(EMPTY, 0, 0);
+    }
+
+    /**
+     * Pushes one byte item, {value & 0xff}, without allocating
+     */
+    void pushByte(int value) {
+        push(SINGLE_BYTES[value & 0xff], 0, 1);
+    }
+
+    /**
+     * Pushes 1 or, as Bitcoin Core does, an empty item for false
+     */
+    void pushBool(boolean value) {
+        if (value) {
+            push(SINGLE_BYTES[1], 0, 1);
+        } else {
+            pushEmpty();
+        }
+    }
+
+    /**
+     * Pushes the minimal encoding of value, numbers within one byte come from the shared constants
+     */
+    void pushNumber(long value) {
+        if (value == 0) {
+            pushEmpty();
+        } else if (value > 0 && value < 0x80) {
+            push(SINGLE_BYTES[(int) value], 0, 1);
+        } else if (value < 0 && value > -0x80) {
+            push(SINGLE_BYTES[(int) -value | 0x80], 0, 1);
+        } else {
+            push(ScriptNum.encode(value));
+        }
+    }
+
+    private int index(int depth) {
+        if (depth < 0 || depth >= size) {
+            throw new EmptyStackException();
+        }
+        return size - 1 - depth;
+    }
+
+    byte[] array(int depth) {
+        return arrays[index(depth)];
+    }
+
+    int offset(int depth) {
+        return offsets[index(depth)];
+    }
+
+    int length(int depth) {
+        return lengths[index(depth)];
+    }
+
+    /**
+     * @return the item as an array. Whole arrays longer than a byte are returned as they are, otherwise the slice is copied,
+     * so shared constants never leak out.
+     */
+    byte[] get(int depth) {
+        int i = index(depth);
+        byte[] array = arrays[i];
+        int length = lengths[i];
+        if (offsets[i] == 0 && length == array.length && length > 1) {
+            return array;
+        }
+        return Arrays.copyOfRange(array, offsets[i], offsets[i] + length);
+    }
+
+    void drop(int count) {
+        if (count > size) {
+            throw new EmptyStackException();
+        }
+        Arrays.fill(arrays, size - count, size, null);
+        size -= count;
+    }
+
+    void pop() {
+        drop(1);
+    }
+
+    /**
+     * @see ScriptNum#decode(byte[], int, int, boolean, int)
+     */
+    long number(int depth, boolean requireMinimal, int maxSize) throws Transaction.Script.ScriptInvalidException {
+        int i = index(depth);
+        return ScriptNum.decode(arrays[i], offsets[i], lengths[i], requireMinimal, maxSize);
+    }
+
+    long popNumber(boolean requireMinimal) throws Transaction.Script.ScriptInvalidException {
+        long result = number(0, requireMinimal, ScriptNum.MAX_SIZE);
+        pop();
+        return result;
+    }
+
+    byte[] popBytes() {
+        byte[] result = get(0);
+        pop();
+        return result;
+    }
+
+    /**
+     * Pushes a copy of the item at depth, the data itself is shared
+     */
+    void pick(int depth) {
+        int i = index(depth);
+        push(arrays[i], offsets[i], lengths[i]);
+    }
+
+    void dup() {
+        pick(0);
+    }
+
+    void swap() {
+        int a = index(0);
+        int b = index(1);
+        byte[] array = arrays[a];
+        int offset = offsets[a];
+        int length = lengths[a];
+        arrays[a] = arrays[b];
+        offsets[a] = offsets[b];
+        lengths[a] = lengths[b];
+        arrays[b] = array;
+        offsets[b] = offset;
+        lengths[b] = length;
+    }
+
+    /**
+     * Removes the item below the top one
+     */
+    void nip() {
+        int a = index(0);
+        int b = index(1);
+        arrays[b] = arrays[a];
+        offsets[b] = offsets[a];
+        lengths[b] = lengths[a];
+        pop();
+    }
+
+    /**
+     * @return true if two top items have equal contents
+     */
+    boolean topEquals() {
+        int a = index(0);
+        int b = index(1);
+        int length = lengths[a];
+        if (length != lengths[b]) {
+            return false;
+        }
+        byte[] arrayA = arrays[a];
+        byte[] arrayB = arrays[b];
+        for (int i = 0, offsetA = offsets[a], offsetB = offsets[b]; i < length; i++) {
+            if (arrayA[offsetA + i] != arrayB[offsetB + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false for an item of zeroes or negative zero, true otherwise
+     */
+    boolean castToBool(int depth) {
+        int i = index(depth);
+        byte[] array = arrays[i];
+        int end = offsets[i] + lengths[i];
+        for (int j = offsets[i]; j < end; j++) {
+            if (array[j] != 0) {
+                return !(j == end - 1 && array[j] == (byte) 0x80);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes this stack hold the same items as other, the data is shared
+     */
+    void copyFrom(ScriptStack other) {
+        clear();
+        for (int i = 0; i < other.size; i++) {
+            push(other.arrays[i], other.offsets[i], other.lengths[i]);
+        }
+    }
+
+    /**
+     * Pushes all the arrays, first one ends up at the bottom
+     */
+    void pushAll(List<byte[]> items) {
+        for (byte[] item : items) {
+            push(item);
+        }
+    }
+
+    /**
+     * Replaces the contents of items with the items of this stack, bottom first
+     */
+    void copyTo(List<byte[]> items) {
+        items.clear();
+        for (int depth = size - 1; depth >= 0; depth--) {
+            items.add(get(depth));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+package ru.valle.btc;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.Nullable;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+
+/**
+ * What a script is, found in one pass over its bytes, see {@link Transaction.Script#getType()}.
+ * Immutable, the arrays it holds must not be modified.
+ */
+final class ScriptType {
+    static final int UNKNOWN = 0;
+    /**
+     * DUP HASH160 &lt;20 bytes&gt; EQUALVERIFY CHECKSIG
+     */
+    static final int P2PKH = 1;
+    /**
+     * HASH160 &lt;20 bytes&gt; EQUAL
+     */
+    static final int P2SH = 2;
+    /**
+     * &lt;public key&gt; CHECKSIG
+     */
+    static final int P2PK = 3;
+    /**
+     * Version and a 2 to 40 bytes push, see {@link #witnessProgram}
+     */
+    static final int WITNESS_PROGRAM = 4;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({UNKNOWN, P2PKH, P2SH, P2PK, WITNESS_PROGRAM})
+    @interface Kind {
+    }
+
+    @Kind
+    final int kind;
+    /**
+     * Only pushes data or numbers. False if a push runs past the end.
+     */
+    final boolean pushOnly;
+    /**
+     * Public key hash of P2PKH or script hash of P2SH
+     */
+    @Nullable
+    final byte[] hash160;
+    @Nullable
+    final Transaction.Script.WitnessProgram witnessProgram;
+
+    private ScriptType(@Kind int kind, boolean pushOnly, @Nullable byte[] hash160, @Nullable Transaction.Script.WitnessProgram witnessProgram) {
+        this.kind = kind;
+        this.pushOnly = pushOnly;
+        this.hash160 = hash160;
+        this.witnessProgram = witnessProgram;
+    }
+
+    static ScriptType of(byte[] bytes) {
+        int length = bytes.length;
+        boolean pushOnly = true;
+        int firstInstructionEnd = length == 0 ? 0 : ScriptProgram.instructionEnd(bytes, 0);
+        for (int pos = 0; pos < length && pushOnly; ) {
+            int end = ScriptProgram.instructionEnd(bytes, pos);
+            pushOnly = end > 0 && (bytes[pos] & 0xff) <= Transaction.Script.OP_16;
+            pos = end;
+        }
+        if (length == 25 && bytes[0] == Transaction.Script.OP_DUP && bytes[1] == Transaction.Script.OP_HASH160 && bytes[2] == 20 &&
+                bytes[23] == Transaction.Script.OP_EQUALVERIFY && bytes[24] == Transaction.Script.OP_CHECKSIG) {
+            return new ScriptType(P2PKH, false, Arrays.copyOfRange(bytes, 3, 23), null);
+        }
+        if (length == 23 && bytes[0] == Transaction.Script.OP_HASH160 && bytes[1] == 20 && bytes[22] == Transaction.Script.OP_EQUAL) {
+            return new ScriptType(P2SH, false, Arrays.copyOfRange(bytes, 2, 22), null);
+        }
+        if (length > 2 && firstInstructionEnd == length - 1 && bytes[length - 1] == Transaction.Script.OP_CHECKSIG) {
+            return new ScriptType(P2PK, false, null, null);
+        }
+        if (length >= 4 && length <= 42 && (bytes[1] & 0xff) == length - 2) {
+            int versionByte = bytes[0] & 0xff;
+            if (versionByte == Transaction.Script.OP_FALSE) {
+                return new ScriptType(WITNESS_PROGRAM, pushOnly, null, new Transaction.Script.WitnessProgram(0, Arrays.copyOfRange(bytes, 2, length)));
+            }
+            if (versionByte >= Transaction.Script.OP_TRUE && versionByte <= Transaction.Script.OP_16) {
+                return new ScriptType(WITNESS_PROGRAM, pushOnly, null,
+                        new Transaction.Script.WitnessProgram(versionByte - (Transaction.Script.OP_TRUE - 1), Arrays.copyOfRange(bytes, 2, length)));
+            }
+        }
+        return new ScriptType(UNKNOWN, pushOnly, null, null);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import org.spongycastle.asn1.ASN1InputStream;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.DERSequenceGenerator;
+import org.spongycastle.asn1.DLSequence;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.ec.CustomNamedCurves;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.spongycastle.math.ec.ECMultiplier;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+import org.spongycastle.math.ec.FixedPointUtil;
+import org.spongycastle.math.ec.WNafUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * ECDSA over secp256k1.
+ * <p/>
+ * Spongycastle keeps precomputed multiples of a point attached to the point itself and grows these tables in place
+ * on first use, which is not safe when several threads hit the same generator for the first time. All tables for
+ * the shared generator are built here, in the static initializer, so afterwards the curve and the generator are
+ * only read and every method of this class may be called concurrently without locking.
+ * Signing uses deterministic RFC 6979 nonces, so there is no shared random generator on the signing path either.
+ * <p/>
+ * The curve is spongycastle's dedicated secp256k1 implementation, multiplications split scalars in halves
+ * with the GLV endomorphism, so the tables above are built for the half-length scalars.
+ */
+final class Secp256k1 {
+    static final ECDomainParameters EC_PARAMS;
+    private static final BigInteger HALF_CURVE_ORDER;
+    //widest window spongycastle ever picks for 256-bit scalars (see WNafUtil.getWindowSize)
+    private static final int MAX_WNAF_WIDTH = 5;
+    //the comb width ECDSASigner asks for on 256-bit curves
+    private static final int COMB_WIDTH = 5;
+
+    static {
+        //SecP256K1Curve: fixed-width field arithmetic and GLV endomorphism instead of generic BigInteger Fp curve
+        X9ECParameters params = CustomNamedCurves.getByName("secp256k1");
+        EC_PARAMS = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(), params.getH());
+        HALF_CURVE_ORDER = EC_PARAMS.getN().shiftRight(1);
+        ECPoint g = EC_PARAMS.getG();
+        FixedPointUtil.precompute(g, COMB_WIDTH);
+        WNafUtil.precompute(g, MAX_WNAF_WIDTH, true);
+    }
+
+    private Secp256k1() {
+    }
+
+    /**
+     * Fixed-base comb for k*G with a table of all 2^8 combinations of G*2^(32*i), i=0..7. A multiplication is then
+     * 32 doublings and 32 additions, compared to 52 of each with the width 5 table spongycastle builds for itself.
+     * The table is attached to a private copy of the generator and built by the class initializer on first use,
+     * so it is complete and never changes by the time any thread can see it.
+     */
+    private static final class GeneratorTable {
+        private static final int WIDTH = 8;
+        static final ECPoint G;
+        static final ECMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+
+        static {
+            ECPoint g = EC_PARAMS.getG().normalize();
+            G = EC_PARAMS.getCurve().createPoint(g.getAffineXCoord().toBigInteger(), g.getAffineYCoord().toBigInteger());
+            FixedPointUtil.precompute(G, WIDTH);
+        }
+    }
+
+    /**
+     * Multiplies the generator using the shared comb table, the point argument is ignored.
+     * Given to ECDSASigner, which only multiplies G with it.
+     */
+    private static final class GeneratorMultiplier implements ECMultiplier {
+        static final GeneratorMultiplier INSTANCE = new GeneratorMultiplier();
+
+        @Override
+        public ECPoint multiply(ECPoint p, BigInteger k) {
+            return multiplyGenerator(k);
+        }
+    }
+
+    /**
+     * @return k*G, not normalized
+     */
+    static ECPoint multiplyGenerator(BigInteger k) {
+        return GeneratorTable.MULTIPLIER.multiply(GeneratorTable.G, k);
+    }
+
+    static byte[] generatePublicKey(BigInteger privateKey, boolean compressed) {
+        return multiplyGenerator(privateKey).getEncoded(compressed);
+    }
+
+    /**
+     * @return DER-encoded signature with low S value
+     */
+    static byte[] sign(BigInteger privateKey, byte[] hash) {
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest())) {
+            @Override
+            protected ECMultiplier createBasePointMultiplier() {
+                return GeneratorMultiplier.INSTANCE;
+            }
+        };
+        signer.init(true, new ECPrivateKeyParameters(privateKey, EC_PARAMS));
+        BigInteger[] sign = signer.generateSignature(hash);
+        BigInteger r = sign[0];
+        BigInteger s = sign[1];
+        if (s.compareTo(HALF_CURVE_ORDER) > 0) {
+            //https://github.com/bitcoin/bips/blob/master/bip-0062.mediawiki#low-s-values-in-signatures
+            s = EC_PARAMS.getN().subtract(s);
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(72);
+            DERSequenceGenerator derGen = new DERSequenceGenerator(baos);
+            derGen.addObject(new ASN1Integer(r));
+            derGen.addObject(new ASN1Integer(s));
+            derGen.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static boolean verify(byte[] publicKey, byte[] signature, byte[] hash) {
+        if (publicKey.length == 0) {
+            return false;
+        }
+        if (signature.length == 0) {
+            return true; //likely it's incorrect. Revise after full script implementation.
+        }
+        BigInteger[] rs = decodeSignature(signature);
+        ECDSASigner signerVer = new ECDSASigner();
+        signerVer.init(false, new ECPublicKeyParameters(EC_PARAMS.getCurve().decodePoint(publicKey), EC_PARAMS));
+        return signerVer.verifySignature(hash, rs[0], rs[1]);
+    }
+
+    private static BigInteger[] decodeSignature(byte[] signature) {
+        try {
+            ASN1InputStream derSigStream = new ASN1InputStream(signature);
+            DLSequence seq = (DLSequence) derSigStream.readObject();
+            BigInteger r = ((ASN1Integer) seq.getObjectAt(0)).getPositiveValue();
+            BigInteger s = ((ASN1Integer) seq.getObjectAt(1)).getPositiveValue();
+            derSigStream.close();
+            return new BigInteger[]{r, s};
+        } catch (Exception e) {
+//                throw new RuntimeException("BIP66 requires correct DER encoding", e);
+            //ok, manual ASN1 decode to conform old bitcoin core:
+            try {
+                int i = 0;
+                if (signature[i++] != 0x30) {
+                    throw new RuntimeException("No ASN1 sequence in signature");
+                }
+                int len = signature[i++] & 0xff;
+                if (i + len != signature.length) {
+                    throw new RuntimeException("Invalid signature ASN1 length");
+                }
+                byte type = signature[i++];
+                if (type != 2) {
+                    throw new RuntimeException("R value has invalid type in signature: " + type);
+                }
+                len = signature[i++] & 0xff;
+                byte[] rBytes = new byte[len];
+                System.arraycopy(signature, i, rBytes, 0, len);
+                BigInteger r = new BigInteger(1, rBytes);
+                i += len;
+
+                type = signature[i++];
+                if (type != 2) {
+                    throw new RuntimeException("S value has invalid type in signature: " + type);
+                }
+                len = signature[i++] & 0xff;
+                byte[] sBytes = new byte[len];
+                System.arraycopy(signature, i, sBytes, 0, len);
+                BigInteger s = new BigInteger(1, sBytes);
+                return new BigInteger[]{r, s};
+            } catch (Exception err2) {
+                throw new RuntimeException("Invalid ASN/DER encoding of signature", err2);
+            }
+        }
+    }
+}
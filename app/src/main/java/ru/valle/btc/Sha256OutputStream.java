@@ -0,0 +1,109 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.io.OutputStream;
+
+/**
+ * Stream with the same encoding methods as {@link BitcoinOutputStream} which feeds everything written straight into SHA-256,
+ * so a transaction can be hashed without serializing it into a byte array first.
+ */
+final class Sha256OutputStream extends OutputStream {
+    private final SHA256Digest digest;
+
+    public Sha256OutputStream() {
+        digest = new SHA256Digest();
+    }
+
+    /**
+     * @param midstate stream to continue from, it is not affected by writes to the new one
+     */
+    public Sha256OutputStream(Sha256OutputStream midstate) {
+        digest = new SHA256Digest(midstate.digest);
+    }
+
+    @Override
+    public void write(int b) {
+        digest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        digest.update(b, off, len);
+    }
+
+    public void write(byte[] b) {
+        digest.update(b, 0, b.length);
+    }
+
+    /**
+     * Writes bytes in reverse order, as hashes are stored in outpoints
+     */
+    public void writeReversed(byte[] b) {
+        for (int i = b.length - 1; i >= 0; i--) {
+            digest.update(b[i]);
+        }
+    }
+
+    public void writeInt32(int value) {
+        digest.update((byte) value);
+        digest.update((byte) (value >> 8));
+        digest.update((byte) (value >> 16));
+        digest.update((byte) (value >>> 24));
+    }
+
+    public void writeInt64(long value) {
+        writeInt32((int) (value & 0xFFFFFFFFL));
+        writeInt32((int) ((value >>> 32) & 0xFFFFFFFFL));
+    }
+
+    public void writeVarInt(long value) {
+        if (value < 0xfd) {
+            write((int) (value & 0xff));
+        } else if (value <= 0xffff) {
+            write(0xfd);
+            write((int) value);
+            write((int) (value >> 8));
+        } else if (value <= 0xffffffffL) {
+            write(0xfe);
+            writeInt32((int) value);
+        } else {
+            write(0xff);
+            writeInt64(value);
+        }
+    }
+
+    /**
+     * @return SHA-256 of SHA-256 of everything written so far, the stream is reset afterwards
+     */
+    public byte[] doubleSha256() {
+        byte[] hash = new byte[32];
+        digest.doFinal(hash, 0);
+        digest.update(hash, 0, hash.length);
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers (public key, signature, hash) triples which passed ECDSA verification, so verifying the same input again,
+ * e.g. right after signing or for BTC and BCH transactions built from the same keys, skips the elliptic curve math.
+ * Only successful verifications are stored, a failed one is always recomputed.
+ * <p/>
+ * Entries are kept in several independently locked LRU segments, so concurrent verifications rarely wait for each other.
+ * The whole cache never takes more than the given number of bytes (estimated).
+ */
+public final class SignatureCache {
+    //SHA-256 key, its wrapper, map entry and LinkedHashMap links, as measured on a 64-bit VM with compressed references
+    static final int ENTRY_SIZE_BYTES = 160;
+    private static final int SEGMENTS_COUNT = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS_COUNT];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache(int maxSizeBytes) {
+        int maxEntriesPerSegment = Math.max(1, maxSizeBytes / ENTRY_SIZE_BYTES / SEGMENTS_COUNT);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxEntriesPerSegment);
+        }
+    }
+
+    /**
+     * @return true if this signature of hash by publicKey is known to be valid
+     */
+    public boolean contains(byte[] publicKey, byte[] signature, byte[] hash) {
+        Key key = new Key(publicKey, signature, hash);
+        Segment segment = segmentFor(key);
+        boolean found;
+        synchronized (segment) {
+            found = segment.get(key) != null;
+        }
+        if (found) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return found;
+    }
+
+    /**
+     * Call only after the signature was successfully verified
+     */
+    public void put(byte[] publicKey, byte[] signature, byte[] hash) {
+        Key key = new Key(publicKey, signature, hash);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, Boolean.TRUE);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return segments.length * segments[0].maxEntries;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[(key.hashCode() & 0x7fffffff) % segments.length];
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, Boolean> {
+        private static final long serialVersionUID = 1L;
+        final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    /**
+     * SHA-256 of all three parts, length-prefixed so different splits of the same bytes never collide
+     */
+    private static final class Key {
+        private final byte[] digest;
+        private final int hashCode;
+
+        Key(byte[] publicKey, byte[] signature, byte[] hash) {
+            MessageDigest sha256 = Hashes.threadSha256();
+            update(sha256, publicKey);
+            update(sha256, signature);
+            update(sha256, hash);
+            digest = sha256.digest();
+            hashCode = (digest[0] & 0xff) | (digest[1] & 0xff) << 8 | (digest[2] & 0xff) << 16 | (digest[3] & 0xff) << 24;
+        }
+
+        private static void update(MessageDigest sha256, byte[] data) {
+            sha256.update((byte) data.length);
+            sha256.update((byte) (data.length >> 8));
+            sha256.update(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -29,11 +29,15 @@ import android.support.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.Stack;
 
+/**
+ * Serialized bytes, txid, wtxid and weight are computed once and kept. The inputs, outputs and scriptWitnesses arrays
+ * are public, but they must not be modified once {@link #getBytes()}, {@link #hash()}, {@link #witnessHash()} or
+ * {@link #getWeight()} may have been called, otherwise stale values are returned. Build a new transaction instead.
+ */
 @SuppressWarnings("WeakerAccess")
 public final class Transaction {
     public final int version;
@@ -41,16 +45,14 @@ public final class Transaction {
     public final Output[] outputs;
     public final byte[][][] scriptWitnesses;
     public final int lockTime;
+    //computed on first use, threads racing on an empty field compute equal values
+    private volatile byte[] legacyBytes, witnessBytes, txid, wtxid;
+    private volatile int weight;
 
     public static Transaction decodeTransaction(byte[] rawBytes) throws BitcoinException {
-        try {
-            return new Transaction(rawBytes, true);
-        } catch (BitcoinException e) {
-            if (e.errorCode == BitcoinException.ERR_WRONG_TYPE) {
-                return new Transaction(rawBytes, false);
-            }
-            throw e;
-        }
+        //BIP144 marker and flag, checked upfront so the bytes are parsed only once
+        boolean withWitness = rawBytes != null && rawBytes.length > 5 && rawBytes[4] == 0 && rawBytes[5] != 0;
+        return new Transaction(rawBytes, withWitness);
     }
 
     /**
@@ -64,73 +66,68 @@ public final class Transaction {
         if (rawBytes == null) {
             throw new BitcoinException(BitcoinException.ERR_NO_INPUT, "empty input");
         }
-        BitcoinInputStream bais = null;
         try {
-            bais = new BitcoinInputStream(rawBytes);
-            version = bais.readInt32();
+            BitcoinReader reader = new BitcoinReader(rawBytes);
+            version = reader.readInt32();
             if (withWitness) {
-                if (bais.readByte() != 0) {
+                if (reader.readByte() != 0) {
                     throw new BitcoinException(BitcoinException.ERR_WRONG_TYPE, "", version);
                 }
-                if (bais.readByte() == 0) {
+                if (reader.readByte() == 0) {
                     throw new BitcoinException(BitcoinException.ERR_WRONG_TYPE, "", version);
                 }
             }
-            int inputsCount = (int) bais.readVarInt();
+            int inputsCount = readSize(reader, "Inputs count", -1, -1);
             inputs = new Input[inputsCount];
             for (int i = 0; i < inputsCount; i++) {
-                OutPoint outPoint = new OutPoint(BTCUtils.reverse(bais.readChars(32)), bais.readInt32());
-                byte[] script = bais.readChars((int) bais.readVarInt());
-                int sequence = bais.readInt32();
+                OutPoint outPoint = new OutPoint(BTCUtils.reverseInPlace(reader.readBytes(32)), reader.readInt32());
+                byte[] script = reader.readBytes(readSize(reader, "Script size for input", i, -1));
+                int sequence = reader.readInt32();
                 inputs[i] = new Input(outPoint, new Script(script), sequence);
             }
-            int outputsCount = (int) bais.readVarInt();
+            int outputsCount = readSize(reader, "Outputs count", -1, -1);
             outputs = new Output[outputsCount];
             for (int i = 0; i < outputsCount; i++) {
-                long value = bais.readInt64();
-                long scriptSize = bais.readVarInt();
-                if (scriptSize < 0 || scriptSize > 10_000_000) {
-                    throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Script size for output " + i +
-                            " is strange (" + scriptSize + " bytes).");
-                }
-                byte[] script = bais.readChars((int) scriptSize);
+                long value = reader.readInt64();
+                byte[] script = reader.readBytes(readSize(reader, "Script size for output", i, -1));
                 outputs[i] = new Output(value, new Script(script));
             }
             scriptWitnesses = new byte[withWitness ? inputsCount : 0][][];
             for (int i = 0; i < scriptWitnesses.length; i++) {
-                long stackItemsCount = bais.readVarInt();
-                if (stackItemsCount < 0 || stackItemsCount > 10_000_000) {
-                    throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Stack count size " + i +
-                            " is strange (" + stackItemsCount + ").");
-                }
-                scriptWitnesses[i] = new byte[(int) stackItemsCount][];
+                int stackItemsCount = readSize(reader, "Stack count size", i, -1);
+                scriptWitnesses[i] = new byte[stackItemsCount][];
                 for (int j = 0; j < stackItemsCount; j++) {
-                    long itemLength = bais.readVarInt();
-                    if (itemLength < 0 || itemLength > 10_000_000) {
-                        throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Item length " + i + ' ' + j +
-                                " is strange (" + itemLength + " bytes).");
-                    }
-                    scriptWitnesses[i][j] = bais.readChars((int) itemLength);
+                    scriptWitnesses[i][j] = reader.readBytes(readSize(reader, "Item length", i, j));
                 }
             }
-            lockTime = bais.readInt32();
+            lockTime = reader.readInt32();
         } catch (EOFException e) {
             throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "TX incomplete");
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Unable to read TX");
         } catch (Error e) {
             throw new IllegalArgumentException("Unable to read TX: " + e);
-        } finally {
-            if (bais != null) {
-                try {
-                    bais.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
+    /**
+     * i and j are indexes of the input or output and of the stack item, -1 when not applicable.
+     * The error message is built only when it is thrown.
+     */
+    private static int readSize(BitcoinReader reader, String what, int i, int j) throws EOFException, BitcoinException {
+        long size = reader.readVarInt();
+        if (size < 0 || size > 10_000_000) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, describe(what, i, j) + " is strange (" + size + ").");
+        }
+        if (size > reader.remaining()) {
+            //every counted item takes at least a byte, so don't allocate before hitting the end
+            throw new EOFException();
+        }
+        return (int) size;
+    }
+
+    static String describe(String what, int i, int j) {
+        return i < 0 ? what : j < 0 ? what + ' ' + i : what + ' ' + i + ' ' + j;
+    }
+
     public Transaction(Input[] inputs, Output[] outputs, int lockTime) {
         this(1, inputs, outputs, lockTime, new byte[0][][]);
     }
@@ -152,8 +149,124 @@ public final class Transaction {
     }
 
 
+    /**
+     * @return txid, computed once and copied on every call
+     */
     public byte[] hash() {
-        return BTCUtils.reverseInPlace(BTCUtils.doubleSha256(getBytes(false)));
+        return txid().clone();
+    }
+
+    private byte[] txid() {
+        byte[] hash = txid;
+        if (hash == null) {
+            Sha256OutputStream os = new Sha256OutputStream();
+            writeForHashing(os, -1, null, 0, 0);
+            hash = BTCUtils.reverseInPlace(os.doubleSha256());
+            txid = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return wtxid in the same byte order as {@link #hash()}, it equals txid when there are no witnesses
+     */
+    public byte[] witnessHash() {
+        byte[] hash = wtxid;
+        if (hash == null) {
+            if (scriptWitnesses.length == 0) {
+                hash = txid();
+            } else {
+                byte[] bytes = serialized(true);
+                hash = new byte[32];
+                Hashes.doubleSha256Into(bytes, 0, bytes.length, hash, 0);
+                BTCUtils.reverseInPlace(hash);
+            }
+            wtxid = hash;
+        }
+        return hash.clone();
+    }
+
+    /**
+     * @return BIP141 weight, three times the size without witness data plus the full size
+     */
+    public int getWeight() {
+        int w = weight;
+        if (w == 0) {
+            w = 3 * getSerializedSize(false) + getSerializedSize(true);
+            weight = w;
+        }
+        return w;
+    }
+
+    /**
+     * @return virtual size, weight divided by 4 and rounded up
+     */
+    public int getVirtualSize() {
+        return (getWeight() + 3) / 4;
+    }
+
+    /**
+     * Writes this transaction without witness data. When subScript is not null the transaction is written the way
+     * the legacy signature of input inputIndex sees it: subScript in place of its scriptSig, other scriptSigs empty
+     * and inputs and outputs dropped or blanked according to hashType. Nothing is copied on the way.
+     *
+     * @param subScriptOffset subScript is written from this offset to its end
+     */
+    void writeForHashing(Sha256OutputStream os, int inputIndex, @Nullable byte[] subScript, int subScriptOffset, int hashType) {
+        writeForHashing(os, inputIndex, subScript, subScriptOffset, hashType, -1);
+    }
+
+    /**
+     * @param firstInput -1 to write the whole transaction, otherwise the version, the inputs count and all inputs
+     *                   before firstInput are considered to be already written into os, see {@link SigHashContext#getLegacyPrefix}
+     */
+    private void writeForHashing(Sha256OutputStream os, int inputIndex, @Nullable byte[] subScript, int subScriptOffset, int hashType, int firstInput) {
+        boolean signing = subScript != null;
+        int hashTypeBase = hashType & Script.SIGHASH_MASK;
+        boolean otherSequencesBlank = signing && (hashTypeBase == Script.SIGHASH_NONE || hashTypeBase == Script.SIGHASH_SINGLE);
+        boolean anyoneCanPay = signing && (hashType & Script.SIGHASH_ANYONECANPAY) != 0;
+        if (firstInput < 0) {
+            os.writeInt32(version);
+            os.writeVarInt(anyoneCanPay ? 1 : inputs.length);
+            firstInput = anyoneCanPay ? inputIndex : 0;
+        }
+        for (int i = firstInput, end = anyoneCanPay ? inputIndex + 1 : inputs.length; i < end; i++) {
+            Input input = inputs[i];
+            byte[] script;
+            int scriptOffset = 0;
+            if (signing) {
+                script = i == inputIndex ? subScript : null;
+                scriptOffset = subScriptOffset;
+            } else {
+                script = input.scriptSig == null ? null : input.scriptSig.bytes;
+            }
+            writeInputForHashing(os, input, script, scriptOffset, otherSequencesBlank && i != inputIndex ? 0 : input.sequence);
+        }
+        int outputsCount;
+        if (signing && hashTypeBase == Script.SIGHASH_NONE) {
+            outputsCount = 0;
+        } else if (signing && hashTypeBase == Script.SIGHASH_SINGLE) {
+            outputsCount = inputIndex + 1;
+        } else {
+            outputsCount = outputs.length;
+        }
+        os.writeVarInt(outputsCount);
+        for (int i = 0; i < outputsCount; i++) {
+            if (signing && hashTypeBase == Script.SIGHASH_SINGLE && i != inputIndex) {
+                os.writeInt64(-1);
+                os.writeVarInt(0);
+            } else {
+                Output output = outputs[i];
+                os.writeInt64(output.value);
+                if (output.scriptPubKey == null) {
+                    os.writeVarInt(0);
+                } else {
+                    os.writeVarInt(output.scriptPubKey.bytes.length);
+                    os.write(output.scriptPubKey.bytes);
+                }
+            }
+        }
+        os.writeInt32(lockTime);
     }
 
     public byte[] getBytes() {
@@ -161,61 +274,103 @@ public final class Transaction {
     }
 
     public String toHexEncodedString() {
-        return BTCUtils.toHex(getBytes(true));
+        return BTCUtils.toHex(serialized(true));
     }
 
+    /**
+     * @return serialized transaction, computed once and copied on every call
+     */
     public byte[] getBytes(boolean withWitness) {
+        return serialized(withWitness).clone();
+    }
+
+    private byte[] serialized(boolean withWitness) {
         if (withWitness && scriptWitnesses.length == 0) {
             withWitness = false;
         }
-        BitcoinOutputStream baos = new BitcoinOutputStream();
-        try {
-            baos.writeInt32(version);
+        byte[] bytes = withWitness ? witnessBytes : legacyBytes;
+        if (bytes == null) {
+            bytes = new byte[getSerializedSize(withWitness)];
+            writeTo(new BitcoinWriter(bytes), withWitness);
             if (withWitness) {
-                baos.write(0);
-                baos.write(1);
-            }
-            baos.writeVarInt(inputs.length);
-            for (Input input : inputs) {
-                baos.write(BTCUtils.reverse(input.outPoint.hash));
-                baos.writeInt32(input.outPoint.index);
-                int scriptLen = input.scriptSig == null ? 0 : input.scriptSig.bytes.length;
-                baos.writeVarInt(scriptLen);
-                if (scriptLen > 0) {
-                    baos.write(input.scriptSig.bytes);
-                }
-                baos.writeInt32(input.sequence);
-            }
-            baos.writeVarInt(outputs.length);
-            for (Output output : outputs) {
-                baos.writeInt64(output.value);
-                int scriptLen = output.scriptPubKey == null ? 0 : output.scriptPubKey.bytes.length;
-                baos.writeVarInt(scriptLen);
-                if (scriptLen > 0) {
-                    baos.write(output.scriptPubKey.bytes);
-                }
+                witnessBytes = bytes;
+            } else {
+                legacyBytes = bytes;
             }
-            if (withWitness) {
-                for (byte[][] witness : scriptWitnesses) {
-                    baos.writeVarInt(witness.length);
-                    for (byte[] stackEntry : witness) {
-                        baos.writeVarInt(stackEntry.length);
-                        baos.write(stackEntry);
-                    }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return exact length of {@link #getBytes(boolean)}
+     */
+    public int getSerializedSize(boolean withWitness) {
+        if (withWitness && scriptWitnesses.length == 0) {
+            withWitness = false;
+        }
+        int size = 4 + BitcoinWriter.varIntSize(inputs.length) + BitcoinWriter.varIntSize(outputs.length) + 4;
+        for (Input input : inputs) {
+            int scriptLen = input.scriptSig == null ? 0 : input.scriptSig.bytes.length;
+            size += 32 + 4 + BitcoinWriter.varIntSize(scriptLen) + scriptLen + 4;
+        }
+        for (Output output : outputs) {
+            int scriptLen = output.scriptPubKey == null ? 0 : output.scriptPubKey.bytes.length;
+            size += 8 + BitcoinWriter.varIntSize(scriptLen) + scriptLen;
+        }
+        if (withWitness) {
+            size += 2;
+            for (byte[][] witness : scriptWitnesses) {
+                size += BitcoinWriter.varIntSize(witness.length);
+                for (byte[] stackEntry : witness) {
+                    size += BitcoinWriter.varIntSize(stackEntry.length) + stackEntry.length;
                 }
             }
-            baos.writeInt32(lockTime);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                baos.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
-        return baos.toByteArray();
+        return size;
+    }
 
+    /**
+     * Writes the same bytes as {@link #getBytes(boolean)}, writer must have {@link #getSerializedSize(boolean)} bytes left
+     */
+    public void writeTo(BitcoinWriter writer, boolean withWitness) {
+        if (withWitness && scriptWitnesses.length == 0) {
+            withWitness = false;
+        }
+        writer.writeInt32(version);
+        if (withWitness) {
+            writer.write(0);
+            writer.write(1);
+        }
+        writer.writeVarInt(inputs.length);
+        for (Input input : inputs) {
+            writer.writeReversed(input.outPoint.hash);
+            writer.writeInt32(input.outPoint.index);
+            int scriptLen = input.scriptSig == null ? 0 : input.scriptSig.bytes.length;
+            writer.writeVarInt(scriptLen);
+            if (scriptLen > 0) {
+                writer.write(input.scriptSig.bytes);
+            }
+            writer.writeInt32(input.sequence);
+        }
+        writer.writeVarInt(outputs.length);
+        for (Output output : outputs) {
+            writer.writeInt64(output.value);
+            int scriptLen = output.scriptPubKey == null ? 0 : output.scriptPubKey.bytes.length;
+            writer.writeVarInt(scriptLen);
+            if (scriptLen > 0) {
+                writer.write(output.scriptPubKey.bytes);
+            }
+        }
+        if (withWitness) {
+            for (byte[][] witness : scriptWitnesses) {
+                writer.writeVarInt(witness.length);
+                for (byte[] stackEntry : witness) {
+                    writer.writeVarInt(stackEntry.length);
+                    writer.write(stackEntry);
+                }
+            }
+        }
+        writer.writeInt32(lockTime);
     }
 
     @Override
@@ -368,36 +523,47 @@ public final class Transaction {
 
         @Nullable
         public String getP2pkhAddress(boolean testNet) {
-            if (scriptPubKey.isPay2PublicKeyHash()) {
-                byte[] hash = new byte[20];
-                System.arraycopy(scriptPubKey.bytes, 2, hash, 0, hash.length);
-                return Address.ripemd160HashToAddress(testNet, hash);
-            } else {
-                return null;
-            }
+            ScriptType type = scriptPubKey.getType();
+            return type.kind == ScriptType.P2PKH ? Address.ripemd160HashToAddress(testNet, type.hash160) : null;
         }
 
         @Nullable
         public String getP2shAddress(boolean testNet) {
-            if (scriptPubKey.isPayToScriptHash()) {
-                byte[] hash = new byte[20];
-                System.arraycopy(scriptPubKey.bytes, 2, hash, 0, hash.length);
-                return Address.ripemd160HashToP2shAddress(testNet, hash);
-            } else {
-                return null;
-            }
+            ScriptType type = scriptPubKey.getType();
+            return type.kind == ScriptType.P2SH ? Address.ripemd160HashToP2shAddress(testNet, type.hash160) : null;
         }
     }
 
+    private static void writeInputForHashing(Sha256OutputStream os, Input input, @Nullable byte[] script, int scriptOffset, int sequence) {
+        os.writeReversed(input.outPoint.hash);
+        os.writeInt32(input.outPoint.index);
+        if (script == null) {
+            os.writeVarInt(0);
+        } else {
+            os.writeVarInt(script.length - scriptOffset);
+            os.write(script, scriptOffset, script.length - scriptOffset);
+        }
+        os.writeInt32(sequence);
+    }
+
     public static class Checker {
         final int inputIndex;
         final long amount;
         final Transaction spendTx;
+        final SigHashContext sigHashContext;
 
         public Checker(int inputIndex, long amount, Transaction spendTx) {
+            this(inputIndex, amount, spendTx, spendTx == null ? null : new SigHashContext(spendTx));
+        }
+
+        /**
+         * @param sigHashContext context of spendTx, shared by checkers of all its inputs
+         */
+        public Checker(int inputIndex, long amount, Transaction spendTx, SigHashContext sigHashContext) {
             this.inputIndex = inputIndex;
             this.amount = amount;
             this.spendTx = spendTx;
+            this.sigHashContext = sigHashContext;
         }
 
         @Override
@@ -410,6 +576,121 @@ public final class Transaction {
         }
     }
 
+    /**
+     * Parts of the BIP143 signature hash which do not depend on the input being signed: hashPrevouts,
+     * hashSequence and hashOutputs. They are computed once, on first use, and then shared by all inputs,
+     * so hashing every input of a transaction is linear in its size rather than quadratic.
+     * Safe to share between threads, the transaction must not be modified while the context is in use.
+     */
+    public static final class SigHashContext {
+        final Transaction tx;
+        private volatile byte[] hashPrevouts, hashSequence, hashOutputs;
+        private static final int LEGACY_PREFIX_INTERVAL = 16;
+        private volatile Sha256OutputStream[] legacyPrefixes;
+
+        public SigHashContext(@NonNull Transaction tx) {
+            this.tx = tx;
+        }
+
+        byte[] getHashPrevouts() {
+            byte[] hash = hashPrevouts;
+            if (hash == null) {
+                BitcoinWriter prevOuts = BitcoinWriter.pooled(tx.inputs.length * 36);
+                for (Input input : tx.inputs) {
+                    prevOuts.writeReversed(input.outPoint.hash);
+                    prevOuts.writeInt32(input.outPoint.index);
+                }
+                hash = doubleSha256(prevOuts);
+                hashPrevouts = hash;
+            }
+            return hash;
+        }
+
+        byte[] getHashSequence() {
+            byte[] hash = hashSequence;
+            if (hash == null) {
+                BitcoinWriter sequences = BitcoinWriter.pooled(tx.inputs.length * 4);
+                for (Input input : tx.inputs) {
+                    sequences.writeInt32(input.sequence);
+                }
+                hash = doubleSha256(sequences);
+                hashSequence = hash;
+            }
+            return hash;
+        }
+
+        byte[] getHashOutputs() {
+            byte[] hash = hashOutputs;
+            if (hash == null) {
+                int size = 0;
+                for (Output output : tx.outputs) {
+                    size += outputSize(output);
+                }
+                BitcoinWriter outputsWriter = BitcoinWriter.pooled(size);
+                for (Output output : tx.outputs) {
+                    writeOutput(output, outputsWriter);
+                }
+                hash = doubleSha256(outputsWriter);
+                hashOutputs = hash;
+            }
+            return hash;
+        }
+
+        /**
+         * @return double SHA-256 of everything written into a pooled writer, which is free to be reused afterwards
+         */
+        static byte[] doubleSha256(BitcoinWriter writer) {
+            byte[] hash = new byte[32];
+            Hashes.doubleSha256Into(writer.array(), 0, writer.position(), hash, 0);
+            return hash;
+        }
+
+        /**
+         * Legacy SIGHASH_ALL preimages of all inputs start with the version, the inputs count and the inputs with empty
+         * scriptSigs up to the signed one. SHA-256 states after every {@link #LEGACY_PREFIX_INTERVAL}-th of these prefixes
+         * are computed in a single pass over the inputs, then the hash of input i continues from a copy of the nearest one.
+         * Bytes after the signed input still have to be hashed for every input, so legacy sighashing stays quadratic
+         * and this only halves the work on average. A SHA-256 state takes about 350 bytes, one per interval keeps the
+         * memory below the size of the transaction itself, at the cost of rehashing at most 15 empty inputs per hash.
+         *
+         * @return copy of SHA-256 state after the version, the inputs count and inputs [0, inputIndex) with empty scriptSigs
+         */
+        Sha256OutputStream getLegacyPrefix(int inputIndex) {
+            Sha256OutputStream[] prefixes = legacyPrefixes;
+            if (prefixes == null) {
+                prefixes = new Sha256OutputStream[(tx.inputs.length + LEGACY_PREFIX_INTERVAL - 1) / LEGACY_PREFIX_INTERVAL];
+                Sha256OutputStream os = new Sha256OutputStream();
+                os.writeInt32(tx.version);
+                os.writeVarInt(tx.inputs.length);
+                for (int i = 0; i < tx.inputs.length; i++) {
+                    if (i % LEGACY_PREFIX_INTERVAL == 0) {
+                        prefixes[i / LEGACY_PREFIX_INTERVAL] = new Sha256OutputStream(os);
+                    }
+                    writeInputForHashing(os, tx.inputs[i], null, 0, tx.inputs[i].sequence);
+                }
+                legacyPrefixes = prefixes;
+            }
+            Sha256OutputStream os = new Sha256OutputStream(prefixes[inputIndex / LEGACY_PREFIX_INTERVAL]);
+            for (int i = inputIndex - inputIndex % LEGACY_PREFIX_INTERVAL; i < inputIndex; i++) {
+                writeInputForHashing(os, tx.inputs[i], null, 0, tx.inputs[i].sequence);
+            }
+            return os;
+        }
+
+        static int outputSize(Output output) {
+            return 8 + Script.scriptDataSize(output.scriptPubKey == null ? 0 : output.scriptPubKey.bytes.length);
+        }
+
+        static void writeOutput(Output output, BitcoinWriter writer) {
+            writer.writeInt64(output.value);
+            if (output.scriptPubKey == null) {
+                writer.write(0);
+            } else {
+                Script.writeBytes(output.scriptPubKey.bytes, writer);
+            }
+        }
+    }
+
     public static final class Script {
 
         private static final int LOCKTIME_THRESHOLD = 500000000;
@@ -418,6 +699,7 @@ public final class Transaction {
         public static final int SCRIPT_VERIFY_DERSIG = 1 << 2;
         public static final int SCRIPT_VERIFY_LOW_S = 1 << 3;
         public static final int SCRIPT_VERIFY_SIGPUSHONLY = 1 << 5;
+        public static final int SCRIPT_VERIFY_MINIMALDATA = 1 << 6;
         public static final int SCRIPT_VERIFY_WITNESS = 1 << 11;
         public static final int SCRIPT_VERIFY_CLEANSTACK = 1 << 8;
         public static final int SCRIPT_VERIFY_NULLFAIL = 1 << 14;
@@ -472,6 +754,7 @@ public final class Transaction {
         public static final byte OP_NIP = 0x77;
         public static final byte OP_WITHIN = (byte) 0xa5;
         public static final byte OP_IF = 0x63;
+        public static final byte OP_NOTIF = 0x64;
         public static final byte OP_ELSE = 0x67;
         public static final byte OP_ENDIF = 0x68;
         public static final byte OP_NOT = (byte) 0x91;
@@ -492,9 +775,13 @@ public final class Transaction {
         public static final byte SIGHASH_FORKID = 0x40;
         public static final int SIGHASH_ANYONECANPAY = 0x80;
         private static final int SIGHASH_MASK = 0x1f;
+        private static final byte[] ZERO_HASH = new byte[32];
 
 
         public final byte[] bytes;
+        private volatile ScriptProgram program;//compiled on first run
+        private volatile ScriptType type;//classified on first use
+        private volatile int hashCode;
 
         public Script(byte[] rawBytes) {
             bytes = rawBytes;
@@ -532,32 +819,90 @@ public final class Transaction {
             baos.write(data);
         }
 
+        /**
+         * @return number of bytes {@link #writeBytes(byte[], BitcoinWriter)} writes for data of the given length
+         */
+        static int scriptDataSize(int length) {
+            if (length < OP_PUSHDATA1) {
+                return 1 + length;
+            } else if (length < 0xff) {
+                return 2 + length;
+            } else if (length < 0xffff) {
+                return 3 + length;
+            } else {
+                return 5 + length;
+            }
+        }
+
+        static void writeBytes(byte[] data, BitcoinWriter writer) {
+            if (data.length < OP_PUSHDATA1) {
+                writer.write(data.length);
+            } else if (data.length < 0xff) {
+                writer.write(OP_PUSHDATA1);
+                writer.write(data.length);
+            } else if (data.length < 0xffff) {
+                writer.write(OP_PUSHDATA2);
+                writer.writeInt16(data.length);
+            } else {
+                writer.write(OP_PUSHDATA4);
+                writer.writeInt32(data.length);
+            }
+            writer.write(data);
+        }
+
         @SuppressWarnings({"ConstantConditions", "UnusedReturnValue"})
         public boolean run(Stack<byte[]> stack) throws ScriptInvalidException {
             return run(new Checker(0, -1, null), stack, SCRIPT_ALL_SUPPORTED, SIGVERSION_BASE);
         }
 
-        @SuppressWarnings("ConstantConditions")
+        /**
+         * Runs the script on a copy of stack in a {@link ScriptStack}, then puts the resulting items back into stack
+         */
         public boolean run(Checker checker, Stack<byte[]> stack, int flags, int sigVersion) throws ScriptInvalidException {
-            boolean withinIf = false;
-            boolean skip = false;
+            ScriptStack scriptStack = new ScriptStack(Math.max(8, stack.size()));
+            scriptStack.pushAll(stack);
+            try {
+                return run(checker, scriptStack, flags, sigVersion);
+            } finally {
+                scriptStack.copyTo(stack);
+            }
+        }
+
+        ScriptProgram getProgram() {
+            ScriptProgram p = program;
+            if (p == null) {
+                p = ScriptProgram.compile(bytes);
+                program = p;
+            }
+            return p;
+        }
+
+        @SuppressWarnings("ConstantConditions")
+        boolean run(Checker checker, ScriptStack stack, int flags, int sigVersion) throws ScriptInvalidException {
+            ScriptProgram program = getProgram();
+            if (!program.valid) {
+                return false;
+            }
+            byte[] opcodes = program.opcodes;
+            boolean minimalData = (flags & SCRIPT_VERIFY_MINIMALDATA) != 0;
             int pbegincodehash = 0;
-            for (int pos = 0; pos < bytes.length; pos++) {
-                if (withinIf) {
-                    if (bytes[pos] == OP_ELSE) {
-                        skip = !skip;
-                        continue;
-                    }
-                    if (bytes[pos] == OP_ENDIF) {
-                        withinIf = false;
-                        continue;
-                    }
-                    if (skip) {
-                        continue;
-                    }
-                }
-                switch (bytes[pos]) {
+            for (int pc = 0; pc < program.length; pc++) {
+                byte opcode = opcodes[pc];
+                switch (opcode) {
                     case OP_NOP:
+                    case OP_ENDIF:
+                        break;
+                    case OP_IF:
+                    case OP_NOTIF:
+                        boolean taken = stack.castToBool(0);
+                        stack.pop();
+                        if (taken == (opcode == OP_NOTIF)) {
+                            pc = program.operands[pc];//continue after the matching OP_ELSE or OP_ENDIF
+                        }
+                        break;
+                    case OP_ELSE:
+                        //the branch before it was taken, skip to the matching OP_ENDIF
+                        pc = program.operands[pc];
                         break;
                     case OP_DROP:
                         if (stack.isEmpty()) {
@@ -569,24 +914,31 @@ public final class Transaction {
                         if (stack.isEmpty()) {
                             throw new IllegalArgumentException("stack empty on OP_DUP");
                         }
-                        stack.push(stack.peek());
+                        stack.dup();
                         break;
-                    case OP_HASH160:
+                    case OP_HASH160: {
                         if (stack.isEmpty()) {
                             throw new IllegalArgumentException("stack empty on OP_HASH160");
                         }
-                        stack.push(BTCUtils.sha256ripemd160(stack.pop()));
+                        byte[] hash = new byte[Hashes.HASH160_LENGTH];
+                        Hashes.hash160Into(stack.array(0), stack.offset(0), stack.length(0), hash, 0);
+                        stack.pop();
+                        stack.push(hash);
                         break;
+                    }
                     case OP_EQUAL:
                     case OP_EQUALVERIFY:
                         if (stack.size() < 2) {
                             throw new IllegalArgumentException("not enough elements to perform OP_EQUAL");
                         }
-                        stack.push(new byte[]{(byte) (Arrays.equals(stack.pop(), stack.pop()) ? 1 : 0)});
-                        if (bytes[pos] == OP_EQUALVERIFY) {
-                            if (verifyFails(stack)) {
+                        boolean equal = stack.topEquals();
+                        stack.drop(2);
+                        if (opcode == OP_EQUALVERIFY) {
+                            if (!equal) {
                                 return false;
                             }
+                        } else {
+                            stack.pushBool(equal);
                         }
                         break;
                     case OP_VERIFY:
@@ -595,162 +947,126 @@ public final class Transaction {
                         }
                         break;
                     case OP_CHECKSIG:
-                    case OP_CHECKSIGVERIFY:
+                    case OP_CHECKSIGVERIFY: {
                         if (stack.size() < 2) {
                             return false;
                         }
-                        byte[] publicKey = stack.pop();
-                        byte[] signatureAndHashType = stack.pop();
+                        int signatureAndHashTypeLength = stack.length(1);
                         boolean valid = false;
-                        if (signatureAndHashType.length != 0) {
-                            if (!checkSignatureEncoding(signatureAndHashType, flags)) {// || !checkPubKeyEncoding(vchPubKey, flags, sigversion, serror)) {
+                        if (signatureAndHashTypeLength != 0) {
+                            byte[] signatureAndHashType = stack.array(1);
+                            int signatureOffset = stack.offset(1);
+                            if (!checkSignatureEncoding(signatureAndHashType, signatureOffset, signatureAndHashTypeLength, flags)) {
                                 return false;
                             }
-                            byte[] signature = new byte[signatureAndHashType.length - 1];
-                            System.arraycopy(signatureAndHashType, 0, signature, 0, signature.length);
-                            byte[] subScript;
-                            if (pbegincodehash == 0) {
-                                subScript = bytes;
-                            } else {
-                                subScript = new byte[bytes.length - pbegincodehash];
-                                System.arraycopy(bytes, pbegincodehash, subScript, 0, subScript.length);
-                            }
-                            int hashType = signatureAndHashType[signatureAndHashType.length - 1] & 0xff;
+                            //subScript is bytes from pbegincodehash, unless deleting the signature makes a copy
+                            byte[] subScript = bytes;
+                            int subScriptOffset = pbegincodehash;
+                            int hashType = signatureAndHashType[signatureOffset + signatureAndHashTypeLength - 1] & 0xff;
                             if ((hashType & Script.SIGHASH_FORKID) == 0) {
                                 if (sigVersion == SIGVERSION_BASE) {
-                                    subScript = findAndDelete(subScript, convertDataToScript(signatureAndHashType));
+                                    subScript = findAndDeletePush(bytes, pbegincodehash, signatureAndHashType, signatureOffset, signatureAndHashTypeLength);
+                                    if (subScript != bytes) {
+                                        subScriptOffset = 0;
+                                    }
                                 }
                             } else if ((flags & SCRIPT_ENABLE_SIGHASH_FORKID) == 0) {
                                 return false; //set_error(serror, SCRIPT_ERR_ILLEGAL_FORKID);
                             }
-                            byte[] hash = hashTransaction(checker.inputIndex, subScript, checker.spendTx, hashType, checker.amount, sigVersion);
-                            valid = BTCUtils.verify(publicKey, signature, hash);
+                            byte[] signature = Arrays.copyOfRange(signatureAndHashType, signatureOffset, signatureOffset + signatureAndHashTypeLength - 1);
+                            byte[] hash = hashTransaction(checker.inputIndex, subScript, subScriptOffset, checker.spendTx, checker.sigHashContext, hashType,
+                                    checker.amount, sigVersion);
+                            valid = BTCUtils.verify(stack.get(0), signature, hash);
                         }
-                        if (!valid && (flags & SCRIPT_VERIFY_NULLFAIL) != 0 && signatureAndHashType.length > 0) {
+                        if (!valid && (flags & SCRIPT_VERIFY_NULLFAIL) != 0 && signatureAndHashTypeLength > 0) {
                             return false;
                         }
-                        stack.push(new byte[]{(byte) (valid ? 1 : 0)});
-                        if (bytes[pos] == OP_CHECKSIGVERIFY) {
-                            if (verifyFails(stack)) {
+                        stack.drop(2);
+                        if (opcode == OP_CHECKSIGVERIFY) {
+                            if (!valid) {
                                 return false;
                             }
+                        } else {
+                            stack.pushBool(valid);
                         }
                         break;
+                    }
                     case OP_FALSE:
-                        stack.push(new byte[]{});
-                        break;
-                    case OP_TRUE:
-                        stack.push(new byte[]{1});
-                        break;
-                    case OP_2:
-                        stack.push(new byte[]{2});
-                        break;
-                    case OP_3:
-                        stack.push(new byte[]{3});
-                        break;
-                    case OP_4:
-                        stack.push(new byte[]{4});
-                        break;
-                    case OP_5:
-                        stack.push(new byte[]{5});
-                        break;
-                    case OP_6:
-                        stack.push(new byte[]{6});
-                        break;
-                    case OP_7:
-                        stack.push(new byte[]{7});
-                        break;
-                    case OP_8:
-                        stack.push(new byte[]{8});
-                        break;
-                    case OP_16:
-                        stack.push(new byte[]{16});
+                        stack.pushEmpty();
                         break;
                     case OP_1NEGATE:
-                        stack.push(new byte[]{-1});
+                        stack.pushNumber(-1);
                         break;
                     case OP_CHECKMULTISIG:
                         throw new NotImplementedException("OP_CHECKMULTISIG not implemented");
                     case OP_CHECKMULTISIGVERIFY:
                         throw new NotImplementedException("OP_CHECKMULTISIGVERIFY not implemented");
                     case OP_SWAP:
-                        byte[] a = stack.pop();
-                        byte[] b = stack.pop();
-                        stack.push(b);
-                        stack.push(a);
+                        stack.swap();
                         break;
-                    case OP_PICK:
-                        int n = stack.pop()[0] & 0xff;
-                        byte[] d = stack.get(stack.size() - 1 - n);
-                        stack.push(d);
+                    case OP_PICK: {
+                        long n = stack.popNumber(minimalData);
+                        if (n < 0 || n >= stack.size()) {
+                            return false;
+                        }
+                        stack.pick((int) n);
                         break;
-                    case OP_SHA256:
-                        stack.push(BTCUtils.sha256(stack.pop()));
+                    }
+                    case OP_SHA256: {
+                        byte[] hash = new byte[Hashes.SHA256_LENGTH];
+                        Hashes.sha256Into(stack.array(0), stack.offset(0), stack.length(0), hash, 0);
+                        stack.pop();
+                        stack.push(hash);
                         break;
-                    case OP_BOOLAND:
-                        byte av = stack.pop()[0];
-                        byte bv = stack.pop()[0];
-                        stack.push(new byte[]{(byte) (av != 0 && bv != 0 ? 1 : 0)});
+                    }
+                    case OP_BOOLAND: {
+                        long b = stack.popNumber(minimalData);
+                        long a = stack.popNumber(minimalData);
+                        stack.pushBool(a != 0 && b != 0);
                         break;
+                    }
                     case OP_SIZE:
-                        stack.push(new byte[]{(byte) (stack.peek().length)});
+                        stack.pushNumber(stack.length(0));
                         break;
                     case OP_NIP:
-                        a = stack.pop();
-                        stack.pop();
-                        stack.push(a);
+                        stack.nip();
                         break;
-                    case OP_WITHIN:
-                        long x = new BigInteger(stack.pop()).longValue();
-                        long min = new BigInteger(stack.pop()).longValue();
-                        long max = new BigInteger(stack.pop()).longValue();
-                        stack.push(new byte[]{(byte) (x >= min && x < max ? 1 : 0)});
-                        break;
-                    case OP_IF:
-                        withinIf = true;
-                        a = stack.pop();
-                        skip = a.length == 0 || a[0] == 0;
+                    case OP_WITHIN: {
+                        long max = stack.popNumber(minimalData);
+                        long min = stack.popNumber(minimalData);
+                        long x = stack.popNumber(minimalData);
+                        stack.pushBool(x >= min && x < max);
                         break;
+                    }
                     case OP_NOT:
-                        av = stack.pop()[0];
-                        stack.push(new byte[]{(byte) (av == 0 ? 1 : 0)});
+                        stack.pushBool(stack.popNumber(minimalData) == 0);
                         break;
                     case OP_1ADD:
-                        a = stack.pop();
-                        BigInteger ab = a.length == 0 ? BigInteger.ZERO : new BigInteger(a);
-                        stack.push(ab.add(BigInteger.ONE).toByteArray());
+                        stack.pushNumber(stack.popNumber(minimalData) + 1);
                         break;
                     case OP_1SUB:
-                        a = stack.pop();
-                        ab = a.length == 0 ? BigInteger.ZERO : new BigInteger(a);
-                        stack.push(ab.subtract(BigInteger.ONE).toByteArray());
+                        stack.pushNumber(stack.popNumber(minimalData) - 1);
                         break;
-                    case OP_ADD:
-                        a = stack.pop();
-                        b = stack.pop();
-                        ab = a.length == 0 ? BigInteger.ZERO : new BigInteger(a);
-                        BigInteger bb = b.length == 0 ? BigInteger.ZERO : new BigInteger(b);
-                        stack.push(ab.add(bb).toByteArray());
+                    case OP_ADD: {
+                        long b = stack.popNumber(minimalData);
+                        long a = stack.popNumber(minimalData);
+                        stack.pushNumber(a + b);
                         break;
-                    case OP_SUB:
-                        a = stack.pop();
-                        b = stack.pop();
-                        ab = a.length == 0 ? BigInteger.ZERO : new BigInteger(a);
-                        bb = b.length == 0 ? BigInteger.ZERO : new BigInteger(b);
-                        stack.push(bb.subtract(ab).toByteArray());
+                    }
+                    case OP_SUB: {
+                        long b = stack.popNumber(minimalData);
+                        long a = stack.popNumber(minimalData);
+                        stack.pushNumber(a - b);
                         break;
+                    }
                     case OP_CODESEPARATOR:
-                        pbegincodehash = pos + 1;
+                        pbegincodehash = program.ends[pc];
                         break;
-                    case OP_CHECKLOCKTIMEVERIFY:
+                    case OP_CHECKLOCKTIMEVERIFY: {
                         if (stack.isEmpty()) {
                             return false;
                         }
-                        a = stack.peek();
-                        if (a.length > 5) {
-                            return false;
-                        }
-                        long nLockTime = a.length == 0 ? 0 : new BigInteger(a).longValue();
+                        long nLockTime = stack.number(0, minimalData, ScriptNum.LOCKTIME_MAX_SIZE);
                         if (nLockTime < 0) {
                             return false;
                         }
@@ -766,26 +1082,21 @@ public final class Transaction {
                             return false;
                         }
                         break;
+                    }
                     case OP_CHECKSEQUENCEVERIFY:
                         throw new NotImplementedException("OP_CHECKSEQUENCEVERIFY (BIP68) not implemented");
                     default:
-                        int op = bytes[pos] & 0xff;
-                        int len;
-                        if (op < OP_PUSHDATA1) {
-                            len = op;
-                            byte[] data = new byte[len];
-                            System.arraycopy(bytes, pos + 1, data, 0, len);
-                            stack.push(data);
-                            pos += data.length;
-                        } else if (op == OP_PUSHDATA1) {
-                            len = bytes[pos + 1] & 0xff;
-                            byte[] data = new byte[len];
-                            System.arraycopy(bytes, pos + 2, data, 0, len);
-                            stack.push(data);
-                            pos += 1 + data.length;
+                        int op = opcode & 0xff;
+                        if (op <= OP_PUSHDATA4) {
+                            if (minimalData && !isMinimalPush(op, bytes, program.operands[pc], program.dataLengths[pc])) {
+                                return false;
+                            }
+                            stack.push(bytes, program.operands[pc], program.dataLengths[pc]);
+                        } else if (op >= (OP_TRUE & 0xff) && op <= OP_16) {
+                            stack.pushByte(op - (OP_TRUE - 1));
                         } else {
                             throw new IllegalArgumentException("I cannot execute this data or operation: 0x" +
-                                    Integer.toHexString(bytes[pos] & 0xff).toUpperCase(Locale.ENGLISH));
+                                    Integer.toHexString(op).toUpperCase(Locale.ENGLISH));
                         }
                         break;
                 }
@@ -793,27 +1104,47 @@ public final class Transaction {
             return true;
         }
 
-        private static boolean checkSignatureEncoding(byte[] vchSig, int flags) {
+        /**
+         * @return false if the data could be pushed by a shorter opcode, as MINIMALDATA requires
+         */
+        static boolean isMinimalPush(int op, byte[] data, int offset, int length) {
+            if (length == 0) {
+                return op == OP_FALSE;
+            } else if (length == 1 && data[offset] >= 1 && data[offset] <= 16) {
+                return false;//OP_1..OP_16
+            } else if (length == 1 && data[offset] == (byte) 0x81) {
+                return false;//OP_1NEGATE
+            } else if (length <= 75) {
+                return op == length;
+            } else if (length <= 255) {
+                return op == OP_PUSHDATA1;
+            } else if (length <= 65535) {
+                return op == OP_PUSHDATA2;
+            }
+            return true;
+        }
+
+        static boolean checkSignatureEncoding(byte[] vchSig, int offset, int length, int flags) {
             // Empty signature. Not strictly DER encoded, but allowed to provide a
             // compact way to provide an invalid signature for use with CHECK(MULTI)SIG
-            if (vchSig.length == 0) {
+            if (length == 0) {
                 return true;
             }
-            if ((flags & (SCRIPT_VERIFY_DERSIG | SCRIPT_VERIFY_LOW_S | SCRIPT_VERIFY_STRICTENC)) != 0 && !isValidSignatureEncoding(vchSig)) {
+            if ((flags & (SCRIPT_VERIFY_DERSIG | SCRIPT_VERIFY_LOW_S | SCRIPT_VERIFY_STRICTENC)) != 0 && !isValidSignatureEncoding(vchSig, offset, length)) {
                 return false;
 //            }else if ((flags & SCRIPT_VERIFY_LOW_S) != 0 && !IsLowDERSignature(vchSig, serror)) {
 //                return false;
-            } else if ((flags & SCRIPT_VERIFY_STRICTENC) != 0 && !isDefinedHashtypeSignature(vchSig, (flags & SCRIPT_ENABLE_SIGHASH_FORKID) != 0)) {
+            } else if ((flags & SCRIPT_VERIFY_STRICTENC) != 0 && !isDefinedHashtypeSignature(vchSig, offset, length, (flags & SCRIPT_ENABLE_SIGHASH_FORKID) != 0)) {
                 return false;
             }
             return true;
         }
 
-        private static boolean isDefinedHashtypeSignature(byte[] vchSig, boolean bitcoinCash) {
-            if (vchSig.length == 0) {
+        private static boolean isDefinedHashtypeSignature(byte[] vchSig, int offset, int length, boolean bitcoinCash) {
+            if (length == 0) {
                 return false;
             }
-            byte sighHashTypeFlags = vchSig[vchSig.length - 1];
+            byte sighHashTypeFlags = vchSig[offset + length - 1];
             if (bitcoinCash != ((sighHashTypeFlags & SIGHASH_FORKID) == SIGHASH_FORKID)) {
                 return false;
             }
@@ -821,7 +1152,7 @@ public final class Transaction {
             return !(nHashType < SIGHASH_ALL || nHashType > SIGHASH_SINGLE);
         }
 
-        private static boolean isValidSignatureEncoding(byte[] sig) {
+        private static boolean isValidSignatureEncoding(byte[] sig, int offset, int length) {
             // Format: 0x30 [total-length] 0x02 [R-length] [R] 0x02 [S-length] [S] [sighash]
             // * total-length: 1-byte length descriptor of everything that follows,
             //   excluding the sighash byte.
@@ -835,42 +1166,42 @@ public final class Transaction {
             //   signature)
 
             // Minimum and maximum size constraints.
-            if (sig.length < 9) {
+            if (length < 9) {
                 return false;
             }
-            if (sig.length > 73) {
+            if (length > 73) {
                 return false;
             }
 
             // A signature is of type 0x30 (compound).
-            if (sig[0] != 0x30) {
+            if (sig[offset] != 0x30) {
                 return false;
             }
 
             // Make sure the length covers the entire signature.
-            if (sig[1] != sig.length - 3) {
+            if (sig[offset + 1] != length - 3) {
                 return false;
             }
 
             // Extract the length of the R element.
-            int lenR = sig[3] & 0xff;
+            int lenR = sig[offset + 3] & 0xff;
 
             // Make sure the length of the S element is still inside the signature.
-            if (5 + lenR >= sig.length) {
+            if (5 + lenR >= length) {
                 return false;
             }
 
             // Extract the length of the S element.
-            int lenS = sig[5 + lenR] & 0xff;
+            int lenS = sig[offset + 5 + lenR] & 0xff;
 
             // Verify that the length of the signature matches the sum of the length
             // of the elements.
-            if (lenR + lenS + 7 != sig.length) {
+            if (lenR + lenS + 7 != length) {
                 return false;
             }
 
             // Check whether the R element is an integer.
-            if (sig[2] != 0x02) {
+            if (sig[offset + 2] != 0x02) {
                 return false;
             }
 
@@ -880,18 +1211,18 @@ public final class Transaction {
             }
 
             // Negative numbers are not allowed for R.
-            if ((sig[4] & 0x80) != 0) {
+            if ((sig[offset + 4] & 0x80) != 0) {
                 return false;
             }
 
             // Null bytes at the start of R are not allowed, unless R would
             // otherwise be interpreted as a negative number.
-            if (lenR > 1 && (sig[4] == 0x00) && (sig[5] & 0x80) == 0) {
+            if (lenR > 1 && (sig[offset + 4] == 0x00) && (sig[offset + 5] & 0x80) == 0) {
                 return false;
             }
 
             // Check whether the S element is an integer.
-            if (sig[lenR + 4] != 0x02) {
+            if (sig[offset + lenR + 4] != 0x02) {
                 return false;
             }
 
@@ -901,13 +1232,39 @@ public final class Transaction {
             }
 
             // Negative numbers are not allowed for S.
-            if ((sig[lenR + 6] & 0x80) != 0) {
+            if ((sig[offset + lenR + 6] & 0x80) != 0) {
                 return false;
             }
 
             // Null bytes at the start of S are not allowed, unless S would otherwise be
             // interpreted as a negative number.
-            return !(lenS > 1 && (sig[lenR + 6] == 0x00) && (sig[lenR + 7] & 0x80) == 0);
+            return !(lenS > 1 && (sig[offset + lenR + 6] == 0x00) && (sig[offset + lenR + 7] & 0x80) == 0);
+        }
+
+        /**
+         * @return push of data[offset..offset+length), the way {@link #convertDataToScript(byte[])} writes it
+         */
+        static byte[] convertDataToScript(byte[] data, int offset, int length) {
+            int headerLength = scriptDataSize(length) - length;
+            byte[] script = new byte[headerLength + length];
+            if (headerLength == 1) {
+                script[0] = (byte) length;
+            } else if (headerLength == 2) {
+                script[0] = OP_PUSHDATA1;
+                script[1] = (byte) length;
+            } else if (headerLength == 3) {
+                script[0] = OP_PUSHDATA2;
+                script[1] = (byte) length;
+                script[2] = (byte) (length >> 8);
+            } else {
+                script[0] = OP_PUSHDATA4;
+                script[1] = (byte) length;
+                script[2] = (byte) (length >> 8);
+                script[3] = (byte) (length >> 16);
+                script[4] = (byte) (length >>> 24);
+            }
+            System.arraycopy(data, offset, script, headerLength, length);
+            return script;
         }
 
         static byte[] convertDataToScript(byte[] bytes) {
@@ -921,28 +1278,93 @@ public final class Transaction {
             return baos.toByteArray();
         }
 
-        private static byte[] findAndDelete(byte[] script, byte[] scriptTokenToDelete) {
-            for (int i = 0; i < script.length; ) {
-                int tokenLength = getScriptTokenLengthAt(script, i);
-                if (tokenLength == scriptTokenToDelete.length) {
-                    boolean equals = true;
-                    for (int j = 0; j < tokenLength; j++) {
-                        if (script[i + j] != scriptTokenToDelete[j]) {
-                            equals = false;
-                            break;
-                        }
-                    }
-                    if (equals) {
-                        byte[] updatedScript = new byte[script.length - tokenLength];
-                        System.arraycopy(script, 0, updatedScript, 0, i);
-                        System.arraycopy(script, i + tokenLength, updatedScript, i, updatedScript.length - i);
-                        script = updatedScript;
-                        i -= tokenLength;
-                    }
+        /**
+         * @return script without the instructions equal to scriptTokenToDelete, script itself if there are none
+         */
+        static byte[] findAndDelete(byte[] script, byte[] scriptTokenToDelete) {
+            return findAndDelete(script, 0, scriptTokenToDelete[0], scriptTokenToDelete.length, scriptTokenToDelete, 1, scriptTokenToDelete.length - 1);
+        }
+
+        /**
+         * Deletes pushes of data[dataOffset..dataOffset+dataLength) encoded the way {@link #convertDataToScript(byte[])} does it
+         * from script[offset..], as the legacy OP_CHECKSIG does with its signature.
+         *
+         * @return script itself if there is no such push, the slice from offset is the subScript then.
+         * Otherwise a new array of what is left of script[offset..].
+         */
+        static byte[] findAndDeletePush(byte[] script, int offset, byte[] data, int dataOffset, int dataLength) {
+            int instructionLength = scriptDataSize(dataLength);
+            int opcode;
+            if (dataLength < OP_PUSHDATA1) {
+                opcode = dataLength;
+            } else if (dataLength < 0xff) {
+                opcode = OP_PUSHDATA1;
+            } else if (dataLength < 0xffff) {
+                opcode = OP_PUSHDATA2;
+            } else {
+                opcode = OP_PUSHDATA4;
+            }
+            return findAndDelete(script, offset, opcode, instructionLength, data, dataOffset, dataLength);
+        }
+
+        /**
+         * Same as {@link #findAndDeletePush(byte[], int, byte[], int, int)} for OP_CODESEPARATOR, which legacy signatures do not sign
+         */
+        static byte[] removeCodeSeparators(byte[] script, int offset) {
+            return findAndDelete(script, offset, OP_CODESEPARATOR, 1, script, 0, 0);
+        }
+
+        /**
+         * Deletes the instructions of script[offset..] which are instructionLength bytes long, start with opcode and end with
+         * data[dataOffset..dataOffset+dataLength). Counts first and copies only if something is deleted, into an array of the exact size.
+         *
+         * @return script itself if nothing is deleted
+         */
+        private static byte[] findAndDelete(byte[] script, int offset, int opcode, int instructionLength, byte[] data, int dataOffset, int dataLength) {
+            int deleted = 0;
+            for (int pos = offset; pos < script.length; ) {
+                int end = ScriptProgram.instructionEnd(script, pos);
+                if (end < 0) {
+                    break;//the rest is not parsable and is kept as it is
                 }
-                i += tokenLength;
+                if (instructionMatches(script, pos, end, opcode, instructionLength, data, dataOffset, dataLength)) {
+                    deleted += instructionLength;
+                }
+                pos = end;
+            }
+            if (deleted == 0) {
+                return script;
+            }
+            byte[] result = new byte[script.length - offset - deleted];
+            int written = 0;
+            int keptFrom = offset;
+            for (int pos = offset; pos < script.length; ) {
+                int end = ScriptProgram.instructionEnd(script, pos);
+                if (end < 0) {
+                    break;
+                }
+                if (instructionMatches(script, pos, end, opcode, instructionLength, data, dataOffset, dataLength)) {
+                    System.arraycopy(script, keptFrom, result, written, pos - keptFrom);
+                    written += pos - keptFrom;
+                    keptFrom = end;
+                }
+                pos = end;
             }
-            return script;
+            System.arraycopy(script, keptFrom, result, written, script.length - keptFrom);
+            return result;
+        }
+
+        private static boolean instructionMatches(byte[] script, int pos, int end, int opcode, int instructionLength,
+                                                  byte[] data, int dataOffset, int dataLength) {
+            if (end - pos != instructionLength || (script[pos] & 0xff) != (opcode & 0xff)) {
+                return false;
+            }
+            for (int i = 0, dataStart = end - dataLength; i < dataLength; i++) {
+                if (script[dataStart + i] != data[dataOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         public static int getScriptTokenLengthAt(byte[] script, int pos) {
@@ -959,30 +1381,23 @@ public final class Transaction {
             throw new NotImplementedException("No large data load implemented");
         }
 
-        public WitnessProgram getWitnessProgram() {
-            if (bytes.length < 4 || bytes.length > 42) {
-                return null;
+        /**
+         * @return classification of the script, computed once
+         */
+        ScriptType getType() {
+            ScriptType t = type;
+            if (t == null) {
+                t = ScriptType.of(bytes);
+                type = t;
             }
-            int versionByte = bytes[0] & 0xFF;
-            if (versionByte != 0 && (versionByte < Script.OP_TRUE || versionByte > Transaction.Script.OP_16)) {
-                return null;
-            }
-            int witnessProgramLen = bytes[1] & 0xff;
-            if (witnessProgramLen == bytes.length - 2) {
-                byte[] witnessProgram = new byte[witnessProgramLen];
-                System.arraycopy(bytes, 2, witnessProgram, 0, witnessProgram.length);
-                return new WitnessProgram(decodeOpN(versionByte), witnessProgram);
-            }
-            return null;
+            return t;
         }
 
-        private static int decodeOpN(int opcode) {
-            if (opcode == OP_FALSE)
-                return 0;
-            if (opcode < OP_TRUE || opcode > OP_16) {
-                throw new IllegalArgumentException("decodeOpN " + opcode);
-            }
-            return opcode - (OP_TRUE - 1);
+        /**
+         * @return the same instance on every call, or null if the script is not a witness program
+         */
+        public WitnessProgram getWitnessProgram() {
+            return getType().witnessProgram;
         }
 
         static class WitnessProgram {
@@ -1025,185 +1440,145 @@ public final class Transaction {
 
         //https://bitcoin.org/en/developer-guide#standard-transactions
         public boolean isPay2PublicKeyHash() {
-            return bytes.length == 25 &&
-                    bytes[0] == Script.OP_DUP &&
-                    bytes[1] == Script.OP_HASH160 &&
-                    bytes[2] == 20;
+            return getType().kind == ScriptType.P2PKH;
         }
 
         public boolean isPayToScriptHash() {
-            return bytes.length == 23 &&
-                    bytes[0] == OP_HASH160 &&
-                    bytes[1] == 0x14 &&
-                    bytes[22] == OP_EQUAL;
+            return getType().kind == ScriptType.P2SH;
         }
 
-
         public boolean isPubkey() {
-            return bytes.length > 2 &&
-                    getScriptTokenLengthAt(bytes, 0) == bytes.length - 1 &&
-                    bytes[bytes.length - 1] == Script.OP_CHECKSIG;
+            return getType().kind == ScriptType.P2PK;
         }
 
         public boolean isNull() {
             return bytes.length == 0;
         }
 
-        @SuppressWarnings("unused")
         public boolean isPushOnly() {
-            for (int i = 0; i < bytes.length; ) {
-                int tokenLength = getScriptTokenLengthAt(bytes, i);
-                if ((bytes[i] & 0xff) > OP_16) {
-                    return false;
-                }
-                i += tokenLength;
-            }
-            return true;
+            return getType().pushOnly;
         }
 
         public static byte[] hashTransaction(int inputIndex, byte[] subScript, Transaction tx, int hashType, long amount, int sigVersion) {
+            return hashTransaction(inputIndex, subScript, tx, tx == null ? null : new SigHashContext(tx), hashType, amount, sigVersion);
+        }
+
+        /**
+         * @param sigHashContext context of tx, pass the same instance for all inputs of tx to hash them in linear time
+         */
+        public static byte[] hashTransaction(int inputIndex, byte[] subScript, Transaction tx, SigHashContext sigHashContext, int hashType, long amount, int sigVersion) {
+            return hashTransaction(inputIndex, subScript, 0, tx, sigHashContext, hashType, amount, sigVersion);
+        }
+
+        /**
+         * @param subScriptOffset the signed script is subScript from this offset to its end
+         */
+        static byte[] hashTransaction(int inputIndex, byte[] subScript, int subScriptOffset, Transaction tx, SigHashContext sigHashContext,
+                                      int hashType, long amount, int sigVersion) {
             boolean bitcoinCash = (hashType & Script.SIGHASH_FORKID) == Script.SIGHASH_FORKID;
             if (tx != null && (hashType & Transaction.Script.SIGHASH_MASK) == Transaction.Script.SIGHASH_SINGLE && inputIndex >= tx.outputs.length && sigVersion == SIGVERSION_BASE) {
                 byte[] hash = new byte[32];
                 hash[0] = 1;
                 return hash;
             }
-            if (!bitcoinCash && sigVersion == SIGVERSION_BASE) {
-                subScript = findAndDelete(subScript, new byte[]{OP_CODESEPARATOR});
-            }
-            int inputsCount = tx == null ? 0 : tx.inputs.length;
-            Input[] unsignedInputs = new Input[inputsCount];
-            for (int i = 0; i < inputsCount; i++) {
-                Input txInput = tx.inputs[i];
-                if (i == inputIndex) {
-                    unsignedInputs[i] = new Input(txInput.outPoint, new Script(subScript), txInput.sequence);
-                } else {
-                    unsignedInputs[i] = new Input(txInput.outPoint, new Script(new byte[0]), txInput.sequence);
-                }
-            }
-            Output[] outputs;
-            if (sigVersion == SIGVERSION_BASE) {
-                switch (hashType & Transaction.Script.SIGHASH_MASK) {
-                    case Script.SIGHASH_NONE:
-                        outputs = new Output[0];
-                        for (int i = 0; i < inputsCount; i++) {
-                            if (i != inputIndex) {
-                                unsignedInputs[i] = new Input(unsignedInputs[i].outPoint, unsignedInputs[i].scriptSig, 0);
-                            }
-                        }
-                        break;
-                    case Script.SIGHASH_SINGLE:
-                        outputs = new Output[inputIndex + 1];
-                        for (int i = 0; i < inputIndex; i++) {
-                            outputs[i] = new Output(-1, new Script(new byte[0]));
-                        }
-                        if (tx == null) {
-                            throw new RuntimeException("Null TX in hashTransaction/SIGHASH_SINGLE");
-                        }
-                        outputs[inputIndex] = tx.outputs[inputIndex];
-                        for (int i = 0; i < inputsCount; i++) {
-                            if (i != inputIndex) {
-                                unsignedInputs[i] = new Input(unsignedInputs[i].outPoint, unsignedInputs[i].scriptSig, 0);
-                            }
-                        }
-                        break;
-                    default:
-                        outputs = tx == null ? new Output[0] : tx.outputs;
-                        break;
-                }
-
-                if ((hashType & Transaction.Script.SIGHASH_ANYONECANPAY) != 0) {
-                    unsignedInputs = new Input[]{unsignedInputs[inputIndex]};
-                }
-            } else {
-                outputs = tx == null ? new Output[0] : tx.outputs;
-            }
-            Transaction unsignedTransaction = new Transaction(tx == null ? 1 : tx.version, unsignedInputs, outputs, tx == null ? 0 : tx.lockTime);
             if (bitcoinCash || sigVersion == SIGVERSION_WITNESS_V0) {
                 if (tx == null) {
                     throw new RuntimeException("null tx");
                 }
-                return bip143Hash(inputIndex, unsignedTransaction, hashType, subScript, amount);
-            } else {
-                byte[] txUnsignedBytes = unsignedTransaction.getBytes(false);
-                BitcoinOutputStream baos = new BitcoinOutputStream();
-                try {
-                    baos.write(txUnsignedBytes);
-                    baos.writeInt32(hashType);
-                    baos.close();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                //BIP143 commits to the original inputs and outputs, there is no need to build a stripped copy of tx
+                return bip143Hash(inputIndex, sigHashContext, hashType, subScript, subScriptOffset, amount);
+            }
+            byte[] withoutCodeSeparators = removeCodeSeparators(subScript, subScriptOffset);
+            if (withoutCodeSeparators != subScript) {
+                subScript = withoutCodeSeparators;
+                subScriptOffset = 0;
+            }
+            if (tx == null) {
+                if ((hashType & Transaction.Script.SIGHASH_MASK) == Transaction.Script.SIGHASH_SINGLE) {
+                    throw new RuntimeException("Null TX in hashTransaction/SIGHASH_SINGLE");
                 }
-                return BTCUtils.doubleSha256(baos.toByteArray());
+                tx = new Transaction(new Input[0], new Output[0], 0);
+            }
+            int hashTypeBase = hashType & SIGHASH_MASK;
+            Sha256OutputStream os;
+            if (sigHashContext != null && hashTypeBase != SIGHASH_NONE && hashTypeBase != SIGHASH_SINGLE && (hashType & SIGHASH_ANYONECANPAY) == 0) {
+                os = sigHashContext.getLegacyPrefix(inputIndex);
+                tx.writeForHashing(os, inputIndex, subScript, subScriptOffset, hashType, inputIndex);
+            } else {
+                os = new Sha256OutputStream();
+                tx.writeForHashing(os, inputIndex, subScript, subScriptOffset, hashType);
             }
+            os.writeInt32(hashType);
+            return os.doubleSha256();
         }
 
         public static byte[] bip143Hash(int inputIndex, Transaction tx, int hashType, byte[] script, long amount) {
+            return bip143Hash(inputIndex, new SigHashContext(tx), hashType, script, amount);
+        }
+
+        public static byte[] bip143Hash(int inputIndex, SigHashContext sigHashContext, int hashType, byte[] script, long amount) {
+            return bip143Hash(inputIndex, sigHashContext, hashType, script, 0, amount);
+        }
+
+        /**
+         * @param scriptOffset the scriptCode is script from this offset to its end
+         */
+        static byte[] bip143Hash(int inputIndex, SigHashContext sigHashContext, int hashType, byte[] script, int scriptOffset, long amount) {
+            int scriptLength = script.length - scriptOffset;
+            Transaction tx = sigHashContext.tx;
             boolean single = (hashType & Transaction.Script.SIGHASH_MASK) == Transaction.Script.SIGHASH_SINGLE;
             boolean none = (hashType & Transaction.Script.SIGHASH_MASK) == Script.SIGHASH_NONE;
-            BitcoinOutputStream baos = new BitcoinOutputStream();
-            try {
+            //hashes are taken before the preimage writer, they use the same per-thread pool
+            byte[] hashPrevouts = (hashType & Script.SIGHASH_ANYONECANPAY) == 0 ? sigHashContext.getHashPrevouts() : ZERO_HASH;
+            byte[] hashSequence = (hashType & Script.SIGHASH_ANYONECANPAY) == 0 && !single && !none ? sigHashContext.getHashSequence() : ZERO_HASH;
+            byte[] hashOutputs;
+            if (!single && !none) {
+                hashOutputs = sigHashContext.getHashOutputs();
+            } else if (single && inputIndex < tx.outputs.length) {
+                BitcoinWriter outputWriter = BitcoinWriter.pooled(SigHashContext.outputSize(tx.outputs[inputIndex]));
+                SigHashContext.writeOutput(tx.outputs[inputIndex], outputWriter);
+                hashOutputs = SigHashContext.doubleSha256(outputWriter);
+            } else {
+                hashOutputs = ZERO_HASH;
+            }
+            BitcoinWriter writer = BitcoinWriter.pooled(4 + 32 + 32 + 36 + BitcoinWriter.varIntSize(scriptLength) + scriptLength + 8 + 4 + 32 + 4 + 4);
 //                    1. nVersion of the transaction (4-byte little endian)
-                baos.writeInt32(tx.version);
+            writer.writeInt32(tx.version);
 //                    2. hashPrevouts (32-byte hash)
-                if ((hashType & Script.SIGHASH_ANYONECANPAY) == 0) {
-                    BitcoinOutputStream prevOuts = new BitcoinOutputStream();
-                    for (Input input : tx.inputs) {
-                        prevOuts.write(BTCUtils.reverse(input.outPoint.hash));
-                        prevOuts.writeInt32(input.outPoint.index);
-                    }
-                    prevOuts.close();
-                    baos.write(BTCUtils.doubleSha256(prevOuts.toByteArray()));
-                } else {
-                    baos.write(new byte[32]);
-                }
+            writer.write(hashPrevouts);
 //                    3. hashSequence (32-byte hash)
-                if ((hashType & Script.SIGHASH_ANYONECANPAY) == 0 && !single && !none) {
-                    BitcoinOutputStream sequences = new BitcoinOutputStream();
-                    for (Input input : tx.inputs) {
-                        sequences.writeInt32(input.sequence);
-                    }
-                    sequences.close();
-                    baos.write(BTCUtils.doubleSha256(sequences.toByteArray()));
-                } else {
-                    baos.write(new byte[32]);
-                }
+            writer.write(hashSequence);
 //                    4. outpoint (32-byte hash + 4-byte little endian)
-                baos.write(BTCUtils.reverse(tx.inputs[inputIndex].outPoint.hash));
-                baos.writeInt32(tx.inputs[inputIndex].outPoint.index);
+            writer.writeReversed(tx.inputs[inputIndex].outPoint.hash);
+            writer.writeInt32(tx.inputs[inputIndex].outPoint.index);
 //                    5. scriptCode of the input (serialized as scripts inside CTxOuts)
-                baos.write(convertDataToScript(script));
+            writer.writeVarInt(scriptLength);
+            writer.write(script, scriptOffset, scriptLength);
 //                    6. value of the output spent by this input (8-byte little endian)
-                baos.writeInt64(amount);
+            writer.writeInt64(amount);
 //                    7. nSequence of the input (4-byte little endian)
-                baos.writeInt32(tx.inputs[inputIndex].sequence);
+            writer.writeInt32(tx.inputs[inputIndex].sequence);
 //                    8. hashOutputs (32-byte hash)
-                BitcoinOutputStream outputStream = new BitcoinOutputStream();
-                if (!single && !none) {
-                    for (Output output : tx.outputs) {
-                        outputStream.writeInt64(output.value);
-                        outputStream.write(convertDataToScript(output.scriptPubKey == null ?
-                                new byte[0] : output.scriptPubKey.bytes));
-                    }
-                    outputStream.close();
-                    baos.write(BTCUtils.doubleSha256(outputStream.toByteArray()));
-                } else if (single && inputIndex < tx.outputs.length) {
-                    outputStream.writeInt64(tx.outputs[inputIndex].value);
-                    outputStream.write(convertDataToScript(tx.outputs[inputIndex].scriptPubKey == null ?
-                            new byte[0] : tx.outputs[inputIndex].scriptPubKey.bytes));
-                    outputStream.close();
-                    baos.write(BTCUtils.doubleSha256(outputStream.toByteArray()));
-                } else {
-                    baos.write(new byte[32]);
-                }
+            writer.write(hashOutputs);
 //                    9. nLocktime of the transaction (4-byte little endian)
-                baos.writeInt32(tx.lockTime);
+            writer.writeInt32(tx.lockTime);
 //                    10. sighash type of the signature (4-byte little endian)
-                baos.writeInt32(hashType);
-                return BTCUtils.doubleSha256(baos.toByteArray());
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            writer.writeInt32(hashType);
+            return SigHashContext.doubleSha256(writer);
+        }
+
+        /**
+         * Pops the top item, an empty stack fails
+         *
+         * @return true if the item is false
+         */
+        static boolean verifyFails(ScriptStack stack) {
+            if (stack.isEmpty()) {
+                return true;
             }
+            boolean valid = stack.castToBool(0);
+            stack.pop();
+            return !valid;
         }
 
         public static boolean verifyFails(Stack<byte[]> stack) {
@@ -1320,9 +1695,18 @@ public final class Transaction {
                             }
                         } else {
                             try {
-                                byte[] value = BigInteger.valueOf(Long.parseLong(token)).toByteArray();
-                                os.write(value.length);
-                                os.write(value);
+                                long value = Long.parseLong(token);
+                                if (value == -1) {
+                                    os.write(OP_1NEGATE);
+                                } else if (value == 0) {
+                                    os.write(OP_FALSE);
+                                } else if (value >= 1 && value <= 16) {
+                                    os.write(OP_TRUE - 1 + (int) value);
+                                } else {
+                                    byte[] number = ScriptNum.encode(value);
+                                    os.write(number.length);
+                                    os.write(number);
+                                }
                             } catch (Exception e) {
                                 throw new IllegalArgumentException("convertReadableStringToBytesCoreStyle - I don't know what does this token mean '" + token + "' in '" + readableString + "'");
                             }
@@ -1590,7 +1974,26 @@ public final class Transaction {
 
         @Override
         public int hashCode() {
-            return Arrays.hashCode(bytes);
+            int h = hashCode;
+            if (h == 0) {
+                h = Arrays.hashCode(bytes);
+                hashCode = h;
+            }
+            return h;
+        }
+
+        /**
+         * @return DUP HASH160 &lt;hash&gt; EQUALVERIFY CHECKSIG with the 20 byte hash taken from hash160 at offset
+         */
+        static byte[] pay2PublicKeyHashScript(byte[] hash160, int offset) {
+            byte[] script = new byte[25];
+            script[0] = OP_DUP;
+            script[1] = OP_HASH160;
+            script[2] = 20;
+            System.arraycopy(hash160, offset, script, 3, 20);
+            script[23] = OP_EQUALVERIFY;
+            script[24] = OP_CHECKSIG;
+            return script;
         }
 
         public static Script buildOutput(String addressStr) throws BitcoinException {
@@ -1598,13 +2001,7 @@ public final class Transaction {
                 Address address = new Address(addressStr);
                 if (address.keyhashType == Address.TYPE_MAINNET || address.keyhashType == Address.TYPE_TESTNET) {
                     //P2PKH
-                    ByteArrayOutputStream buf = new ByteArrayOutputStream(25);
-                    buf.write(OP_DUP);
-                    buf.write(OP_HASH160);
-                    writeBytes(address.hash160, buf);
-                    buf.write(OP_EQUALVERIFY);
-                    buf.write(OP_CHECKSIG);
-                    return new Script(buf.toByteArray());
+                    return new Script(pay2PublicKeyHashScript(address.hash160, 0));
                 } else if (address.keyhashType == Address.TYPE_NONE && address.witnessProgram != null && address.witnessProgram.version == 0) {
                     //P2WSH & P2WKH
                     return new Script(address.witnessProgram.getBytes());
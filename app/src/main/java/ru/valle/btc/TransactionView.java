@@ -0,0 +1,280 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import java.io.EOFException;
+import java.security.MessageDigest;
+
+/**
+ * Read-only view of a serialized transaction. The constructor scans the bytes once, checking the structure and
+ * recording where every input, output and witness starts, nothing is copied. Outpoints, scripts and witnesses are
+ * created only when they are read and txid/wtxid are hashed straight from the byte ranges.
+ * <p/>
+ * The bytes must be the whole transaction, with canonical var ints and nothing after the lock time, so a view
+ * exists only for bytes {@link Transaction#getBytes()} would produce for the decoded transaction.
+ * The array is not copied and must not be modified while the view is used.
+ */
+public final class TransactionView {
+    private static final int MAX_SIZE = 10_000_000;
+
+    private final byte[] bytes;
+    public final int version;
+    public final int lockTime;
+    private final boolean witness;
+    //offsets of outpoints, values and witness stacks
+    private final int[] inputOffsets;
+    private final int[] outputOffsets;
+    private final int[] witnessOffsets;
+    //first byte after the inputs and outputs, where the witness or the lock time starts
+    private final int outputsEnd;
+
+    public TransactionView(byte[] bytes) throws BitcoinException {
+        if (bytes == null) {
+            throw new BitcoinException(BitcoinException.ERR_NO_INPUT, "empty input");
+        }
+        this.bytes = bytes;
+        try {
+            BitcoinReader reader = new BitcoinReader(bytes);
+            version = reader.readInt32();
+            //BIP144 marker and flag
+            witness = bytes.length > 5 && bytes[4] == 0 && bytes[5] != 0;
+            if (witness) {
+                if (bytes[5] != 1) {
+                    throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "Unknown witness flag " + (bytes[5] & 0xff));
+                }
+                reader.readSlice(2);
+            }
+            int inputsCount = readCount(reader, "Inputs count", -1, -1);
+            inputOffsets = new int[inputsCount];
+            for (int i = 0; i < inputsCount; i++) {
+                inputOffsets[i] = reader.readSlice(36);
+                reader.readSlice(readCount(reader, "Script size for input", i, -1));
+                reader.readSlice(4);
+            }
+            int outputsCount = readCount(reader, "Outputs count", -1, -1);
+            outputOffsets = new int[outputsCount];
+            for (int i = 0; i < outputsCount; i++) {
+                outputOffsets[i] = reader.readSlice(8);
+                reader.readSlice(readCount(reader, "Script size for output", i, -1));
+            }
+            outputsEnd = reader.position();
+            witnessOffsets = new int[witness ? inputsCount : 0];
+            for (int i = 0; i < witnessOffsets.length; i++) {
+                witnessOffsets[i] = reader.position();
+                int stackItemsCount = readCount(reader, "Stack count size", i, -1);
+                for (int j = 0; j < stackItemsCount; j++) {
+                    reader.readSlice(readCount(reader, "Item length", i, j));
+                }
+            }
+            lockTime = reader.readInt32();
+            if (reader.remaining() != 0) {
+                throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, reader.remaining() + " unexpected bytes after TX");
+            }
+        } catch (EOFException e) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, "TX incomplete");
+        }
+    }
+
+    /**
+     * i and j are indexes of the input or output and of the stack item, -1 when not applicable.
+     * The error message is built only when it is thrown.
+     */
+    private static int readCount(BitcoinReader reader, String what, int i, int j) throws EOFException, BitcoinException {
+        int start = reader.position();
+        long value = reader.readVarInt();
+        if (value < 0 || value > MAX_SIZE) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, Transaction.describe(what, i, j) + " is strange (" + value + ").");
+        }
+        if (reader.position() - start != (value < 0xfd ? 1 : value <= 0xffff ? 3 : 5)) {
+            throw new BitcoinException(BitcoinException.ERR_BAD_FORMAT, Transaction.describe(what, i, j) + " is not canonically encoded");
+        }
+        if (value > reader.remaining()) {
+            throw new EOFException();
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return size of the var int at offset
+     */
+    private int varIntSize(int offset) {
+        int first = bytes[offset] & 0xff;
+        return first < 0xfd ? 1 : first == 0xfd ? 3 : first == 0xfe ? 5 : 9;
+    }
+
+    /**
+     * @return value of the var int at offset, it was checked to fit into int by the constructor
+     */
+    private int varInt(int offset) {
+        int first = bytes[offset] & 0xff;
+        if (first < 0xfd) {
+            return first;
+        } else if (first == 0xfd) {
+            return (bytes[offset + 1] & 0xff) | (bytes[offset + 2] & 0xff) << 8;
+        } else if (first == 0xfe) {
+            return BitcoinReader.int32At(bytes, offset + 1);
+        } else {
+            return (int) BitcoinReader.int64At(bytes, offset + 1);
+        }
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    public boolean hasWitness() {
+        return witness;
+    }
+
+    public int getInputsCount() {
+        return inputOffsets.length;
+    }
+
+    public int getOutputsCount() {
+        return outputOffsets.length;
+    }
+
+    /**
+     * @return hash of the transaction being spent, in the same byte order as {@link Transaction.OutPoint#hash}
+     */
+    public byte[] getOutPointHash(int inputIndex) {
+        return BTCUtils.reverseInPlace(copy(bytes, inputOffsets[inputIndex], 32));
+    }
+
+    public int getOutPointIndex(int inputIndex) {
+        return BitcoinReader.int32At(bytes, inputOffsets[inputIndex] + 32);
+    }
+
+    public Transaction.Script getScriptSig(int inputIndex) {
+        int offset = inputOffsets[inputIndex] + 36;
+        return new Transaction.Script(copy(bytes, offset + varIntSize(offset), varInt(offset)));
+    }
+
+    public int getSequence(int inputIndex) {
+        int offset = inputOffsets[inputIndex] + 36;
+        return BitcoinReader.int32At(bytes, offset + varIntSize(offset) + varInt(offset));
+    }
+
+    public Transaction.Input getInput(int inputIndex) {
+        return new Transaction.Input(new Transaction.OutPoint(getOutPointHash(inputIndex), getOutPointIndex(inputIndex)),
+                getScriptSig(inputIndex), getSequence(inputIndex));
+    }
+
+    public long getValue(int outputIndex) {
+        return BitcoinReader.int64At(bytes, outputOffsets[outputIndex]);
+    }
+
+    public Transaction.Script getScriptPubKey(int outputIndex) {
+        int offset = outputOffsets[outputIndex] + 8;
+        return new Transaction.Script(copy(bytes, offset + varIntSize(offset), varInt(offset)));
+    }
+
+    /**
+     * Compares the script of an output with the given one without creating the script
+     */
+    public boolean isScriptPubKeyEqualTo(int outputIndex, byte[] script) {
+        int offset = outputOffsets[outputIndex] + 8;
+        int length = varInt(offset);
+        if (length != script.length) {
+            return false;
+        }
+        offset += varIntSize(offset);
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != script[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Transaction.Output getOutput(int outputIndex) {
+        return new Transaction.Output(getValue(outputIndex), getScriptPubKey(outputIndex));
+    }
+
+    /**
+     * @return witness stack items of the input, empty if the transaction has no witness data
+     */
+    public byte[][] getWitness(int inputIndex) {
+        if (!witness) {
+            return new byte[0][];
+        }
+        int offset = witnessOffsets[inputIndex];
+        byte[][] items = new byte[varInt(offset)][];
+        offset += varIntSize(offset);
+        for (int i = 0; i < items.length; i++) {
+            int length = varInt(offset);
+            offset += varIntSize(offset);
+            items[i] = copy(bytes, offset, length);
+            offset += length;
+        }
+        return items;
+    }
+
+    /**
+     * @return txid in the same byte order as {@link Transaction#hash()}, witness data is skipped
+     */
+    public byte[] hash() {
+        MessageDigest sha256 = Hashes.threadSha256();
+        if (witness) {
+            sha256.update(bytes, 0, 4);
+            sha256.update(bytes, 6, outputsEnd - 6);
+            sha256.update(bytes, bytes.length - 4, 4);
+        } else {
+            sha256.update(bytes, 0, bytes.length);
+        }
+        byte[] hash = sha256.digest();
+        Hashes.sha256Into(hash, 0, hash.length, hash, 0);
+        return BTCUtils.reverseInPlace(hash);
+    }
+
+    /**
+     * @return wtxid, the hash of all the bytes, in the same byte order as {@link Transaction#hash()}
+     */
+    public byte[] witnessHash() {
+        byte[] hash = new byte[32];
+        Hashes.doubleSha256Into(bytes, 0, bytes.length, hash, 0);
+        return BTCUtils.reverseInPlace(hash);
+    }
+
+    /**
+     * @return transaction with all the inputs, outputs and witnesses created
+     */
+    public Transaction toTransaction() {
+        Transaction.Input[] inputs = new Transaction.Input[getInputsCount()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = getInput(i);
+        }
+        Transaction.Output[] outputs = new Transaction.Output[getOutputsCount()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = getOutput(i);
+        }
+        byte[][][] scriptWitnesses = new byte[witnessOffsets.length][][];
+        for (int i = 0; i < scriptWitnesses.length; i++) {
+            scriptWitnesses[i] = getWitness(i);
+        }
+        return new Transaction(version, inputs, outputs, lockTime, scriptWitnesses);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ The MIT License (MIT)
+
+ Copyright (c) 2018 Valentin Konovalov
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.*/
+
+package ru.valle.btc;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches for a key with P2PKH address (compressed public key) starting with the given prefix.
+ * <p/>
+ * Every worker picks a random private key k and then checks k, k+1, k+2... computing public keys as P+G, which is
+ * a single point addition instead of a scalar multiplication. Points are converted to affine coordinates in batches
+ * with one field inversion per batch. The prefix is translated once into ranges of hash160 values which produce
+ * matching addresses, so a candidate is checked by comparing its first 8 bytes of hash160 to these ranges,
+ * only a hit is Base58-encoded to confirm it.
+ */
+public final class VanitySearch {
+    private static final int BATCH_SIZE = 256;
+    private static final int MAX_ADDRESS_LENGTH = 35;//58^35 > 2^200
+    private static final BigInteger BASE = BigInteger.valueOf(58);
+
+    private final String prefix;
+    private final boolean testNet;
+    //inclusive [from, to] pairs of the first 64 bits of matching hash160 values, xor Long.MIN_VALUE to compare them as signed
+    private final long[] ranges;
+    private final double expectedKeysToCheck;
+    private final AtomicLong keysChecked = new AtomicLong();
+    private volatile long startTime;
+    private volatile boolean cancelled;
+    private volatile KeyPair result;
+
+    /**
+     * @throws IllegalArgumentException if no address of the given network can start with prefix
+     */
+    public VanitySearch(@NonNull String prefix, boolean testNet) {
+        this.prefix = prefix;
+        this.testNet = testNet;
+        BigInteger versionStart = BigInteger.valueOf(testNet ? Address.TYPE_TESTNET : Address.TYPE_MAINNET).shiftLeft(192);
+        ArrayList<BigInteger[]> payloadRanges = getPayloadRanges(prefix, versionStart, versionStart.add(BigInteger.ONE.shiftLeft(192)));
+        if (payloadRanges.isEmpty()) {
+            throw new IllegalArgumentException((testNet ? "Testnet" : "Mainnet") + " addresses can't start with " + prefix);
+        }
+        ranges = new long[payloadRanges.size() * 2];
+        BigInteger matchingHashesCount = BigInteger.ZERO;
+        for (int i = 0; i < payloadRanges.size(); i++) {
+            //address payload is version, hash160 and 4 bytes of checksum
+            BigInteger hashFrom = payloadRanges.get(i)[0].subtract(versionStart).shiftRight(32);
+            BigInteger hashTo = payloadRanges.get(i)[1].subtract(BigInteger.ONE).subtract(versionStart).shiftRight(32);
+            matchingHashesCount = matchingHashesCount.add(hashTo.subtract(hashFrom).add(BigInteger.ONE));
+            ranges[i * 2] = hashFrom.shiftRight(96).longValue() ^ Long.MIN_VALUE;
+            ranges[i * 2 + 1] = hashTo.shiftRight(96).longValue() ^ Long.MIN_VALUE;
+        }
+        expectedKeysToCheck = Math.pow(2, 160) / matchingHashesCount.doubleValue();
+    }
+
+    /**
+     * @return ranges [from, to) of 25-byte address payloads (as numbers) in [payloadStart, payloadEnd) which are encoded
+     * with the prefix
+     */
+    private static ArrayList<BigInteger[]> getPayloadRanges(String prefix, BigInteger payloadStart, BigInteger payloadEnd) {
+        int ones = 0;
+        while (ones < prefix.length() && prefix.charAt(ones) == '1') {
+            ones++;
+        }
+        String rest = prefix.substring(ones);
+        byte[] restBytes = BTCUtils.decodeBase58(rest);
+        if (restBytes == null || !rest.trim().equals(rest) || rest.indexOf(' ') >= 0 || ones > 25) {
+            throw new IllegalArgumentException("Invalid characters in prefix " + prefix);
+        }
+        //each leading zero byte of the payload is encoded as '1'
+        BigInteger from = payloadStart;
+        BigInteger to = payloadEnd.min(BigInteger.ONE.shiftLeft(8 * (25 - ones)));
+        ArrayList<BigInteger[]> result = new ArrayList<>();
+        if (rest.isEmpty()) {
+            if (from.compareTo(to) < 0) {
+                result.add(new BigInteger[]{from, to});
+            }
+            return result;
+        }
+        if (ones < 25) {
+            from = from.max(BigInteger.ONE.shiftLeft(8 * (24 - ones)));
+        }
+        BigInteger restValue = new BigInteger(1, restBytes);
+        for (int length = rest.length(); length <= MAX_ADDRESS_LENGTH; length++) {
+            //numbers with exactly 'length' base58 digits starting with rest
+            BigInteger scale = BASE.pow(length - rest.length());
+            BigInteger rangeFrom = restValue.multiply(scale).max(from);
+            BigInteger rangeTo = restValue.add(BigInteger.ONE).multiply(scale).min(to);
+            if (rangeFrom.compareTo(rangeTo) < 0) {
+                result.add(new BigInteger[]{rangeFrom, rangeTo});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return how many keys have to be checked on average to find a match
+     */
+    public double getExpectedKeysToCheck() {
+        return expectedKeysToCheck;
+    }
+
+    public long getKeysChecked() {
+        return keysChecked.get();
+    }
+
+    public double getKeysPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        return elapsed <= 0 ? 0 : keysChecked.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Makes running {@link #search} return null as soon as possible
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Blocks until a key is found or the search is cancelled.
+     *
+     * @param executor runs additional workers, null to search on the calling thread only
+     * @param threads  number of workers, including the calling thread
+     * @return key with address starting with the prefix or null if cancelled
+     */
+    @Nullable
+    public KeyPair search(@Nullable Executor executor, int threads) {
+        startTime = SystemClock.elapsedRealtime();
+        BTCUtils.SECURE_RANDOM.addSeedMaterial(startTime);
+        Parallel.forEach(executor, threads, new Parallel.IndexedTask<RuntimeException>() {
+            @Override
+            public void run(int index) {
+                searchFromRandomKey();
+            }
+        });
+        return result;
+    }
+
+    private void searchFromRandomKey() {
+        ECCurve curve = Secp256k1.EC_PARAMS.getCurve();
+        ECPoint g = Secp256k1.EC_PARAMS.getG();
+        BigInteger n = Secp256k1.EC_PARAMS.getN();
+        byte[] hash160 = new byte[20];
+        ECPoint[] batch = new ECPoint[BATCH_SIZE];
+
+        BigInteger startKey = randomPrivateKey();
+        ECPoint next = Secp256k1.multiplyGenerator(startKey);
+        long offset = 0;
+        while (result == null && !cancelled) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch[i] = next;
+                next = next.add(g);
+            }
+            curve.normalizeAll(batch);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                byte[] publicKey = batch[i].getEncoded(true);
+                Hashes.hash160Into(publicKey, 0, publicKey.length, hash160, 0);
+                if (mightMatch(hash160)) {
+                    KeyPair keyPair = toKeyPair(startKey.add(BigInteger.valueOf(offset + i)).mod(n));
+                    if (keyPair != null && keyPair.address.startsWith(prefix)) {
+                        result = keyPair;
+                        break;
+                    }
+                }
+            }
+            offset += BATCH_SIZE;
+            keysChecked.addAndGet(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * @return true if hash160 is in one of the ranges, its address may start with the prefix
+     */
+    boolean mightMatch(byte[] hash160) {
+        long head = 0;
+        for (int i = 0; i < 8; i++) {
+            head = (head << 8) | (hash160[i] & 0xff);
+        }
+        head ^= Long.MIN_VALUE;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (head >= ranges[i] && head <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(byte[] hash160) {
+        return mightMatch(hash160) && Address.ripemd160HashToAddress(testNet, hash160).startsWith(prefix);
+    }
+
+    @Nullable
+    private KeyPair toKeyPair(BigInteger privateKey) {
+        if (privateKey.signum() == 0) {
+            return null;
+        }
+        String wif = BTCUtils.encodeWifKey(testNet, true, BTCUtils.getPrivateKeyBytes(privateKey));
+        return new KeyPair(new BTCUtils.PrivateKeyInfo(testNet, BTCUtils.PrivateKeyInfo.TYPE_WIF, wif, privateKey, true));
+    }
+
+    private static BigInteger randomPrivateKey() {
+        byte[] secret = new byte[32];
+        BigInteger privateKey;
+        do {
+            BTCUtils.SECURE_RANDOM.nextBytes(secret);
+            privateKey = new BigInteger(1, secret);
+        }
+        while (privateKey.signum() == 0 || privateKey.compareTo(BTCUtils.LARGEST_PRIVATE_KEY) > 0);
+        return privateKey;
+    }
+}
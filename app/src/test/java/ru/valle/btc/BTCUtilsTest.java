@@ -35,6 +35,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.HashSet;
 
 import static ru.valle.btc.TransactionTest.isToString;
 
@@ -82,6 +83,46 @@ public class BTCUtilsTest extends TestCase {
         assertEquals(BTCUtils.PrivateKeyInfo.TYPE_WIF, decodedPrivateKey.type);
     }
 
+    public void testGenerateWifKeys() throws Exception {
+        for (boolean testNet : new boolean[]{false, true}) {
+            //the batch on the calling thread, then batches on the shared executor
+            KeyPair[] keyPairs = BTCUtils.generateWifKeys(150, testNet, testNet ? Parallel.sharedExecutor() : null);
+            assertEquals(150, keyPairs.length);
+            HashSet<String> addresses = new HashSet<>();
+            for (KeyPair keyPair : keyPairs) {
+                BTCUtils.PrivateKeyInfo decodedPrivateKey = BTCUtils.decodePrivateKey(keyPair.privateKey.privateKeyEncoded);
+                assertNotNull(decodedPrivateKey);
+                assertEquals(testNet, decodedPrivateKey.testNet);
+                assertEquals(BTCUtils.PrivateKeyInfo.TYPE_WIF, decodedPrivateKey.type);
+                assertTrue(decodedPrivateKey.isPublicKeyCompressed);
+                assertEquals(keyPair.privateKey.privateKeyDecoded, decodedPrivateKey.privateKeyDecoded);
+                KeyPair expected = new KeyPair(decodedPrivateKey);
+                assertTrue(Arrays.equals(expected.publicKey, keyPair.publicKey));
+                assertEquals(expected.address, keyPair.address);
+                assertTrue(addresses.add(keyPair.address));
+            }
+        }
+    }
+
+    public void testGenerateMiniKeys() throws Exception {
+        KeyPair keyPair = BTCUtils.generateMiniKey();
+        assertNotNull(keyPair);
+        assertEquals(BTCUtils.PrivateKeyInfo.TYPE_MINI, keyPair.privateKey.type);
+        KeyPair[] keyPairs = BTCUtils.generateMiniKeys(100, Parallel.sharedExecutor());
+        HashSet<String> miniKeys = new HashSet<>();
+        for (KeyPair generated : keyPairs) {
+            String miniKey = generated.privateKey.privateKeyEncoded;
+            assertEquals(30, miniKey.length());
+            assertTrue(miniKey.startsWith("S"));
+            assertTrue(miniKeys.add(miniKey));
+            BTCUtils.PrivateKeyInfo decoded = BTCUtils.decodePrivateKey(miniKey);
+            assertNotNull(decoded);
+            assertEquals(BTCUtils.PrivateKeyInfo.TYPE_MINI, decoded.type);
+            assertEquals(decoded.privateKeyDecoded, generated.privateKey.privateKeyDecoded);
+            assertEquals(new KeyPair(decoded).address, generated.address);
+        }
+    }
+
     public void testGenPublicKey() throws Exception {
         byte[] publicKeyUncompressed = BTCUtils.generatePublicKey(privateKey, false);
         assertTrue(Arrays.equals(BTCUtils.fromHex("044f355bdcb7cc0af728ef3cceb9615d90684bb5b2ca5f859ab0f0b704075871aa385b6b1b8ead809ca67454d9683fcf2ba03456d6fe2c4abe2b07f0fbdbb2f1c1"), publicKeyUncompressed));
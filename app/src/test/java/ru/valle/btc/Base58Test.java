@@ -0,0 +1,89 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Base58Test extends TestCase {
+    private static final String ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+    private static final BigInteger BASE = BigInteger.valueOf(58);
+
+    public void testRoundTripMatchesBigInteger() {
+        Random random = new Random(58);
+        for (int length = 0; length <= 50; length++) {
+            for (int i = 0; i < 20; i++) {
+                byte[] bytes = new byte[length];
+                random.nextBytes(bytes);
+                int zeros = i % 4 == 0 ? Math.min(length, i / 4) : 0;
+                Arrays.fill(bytes, 0, zeros, (byte) 0);
+                String encoded = Base58.encode(bytes);
+                assertEquals(referenceEncode(bytes), encoded);
+                assertTrue(Arrays.equals(bytes, Base58.decode(encoded)));
+            }
+        }
+        for (int length : new int[]{25, 37, 38, 43}) {
+            byte[] ones = new byte[length];
+            Arrays.fill(ones, (byte) 0xff);
+            assertEquals(referenceEncode(ones), Base58.encode(ones));
+            assertTrue(Arrays.equals(ones, Base58.decode(Base58.encode(ones))));
+            byte[] zeros = new byte[length];
+            assertEquals(referenceEncode(zeros), Base58.encode(zeros));
+            assertTrue(Arrays.equals(zeros, Base58.decode(Base58.encode(zeros))));
+        }
+    }
+
+    public void testDecodeIntoBuffer() {
+        String text = "xx1113QJmnhxx";
+        byte[] output = new byte[20];
+        Arrays.fill(output, (byte) 0x55);
+        int length = Base58.decode(text, 2, text.length() - 2, output, 3);
+        byte[] expected = Base58.decode("1113QJmnh");
+        assertNotNull(expected);
+        assertEquals(expected.length, length);
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(output, 3, 3 + length)));
+        assertEquals(0x55, output[2]);
+        assertEquals(0x55, output[3 + length]);
+    }
+
+    public void testInvalidCharacters() {
+        assertNull(Base58.decode("1O"));
+        assertNull(Base58.decode("l23"));
+        assertNull(Base58.decode("0"));
+        assertNull(Base58.decode("I"));
+        assertNull(Base58.decode("2 3"));
+        assertNull(Base58.decode("2é3"));
+        assertNull(Base58.decode("2ı"));
+        assertEquals(0, Base58.decode("").length);
+    }
+
+    public void testChecked() {
+        byte[] payload = BTCUtils.fromHex("00010966776006953d5567439e5e39f86a0d273bee");
+        String address = Base58.encodeChecked(payload, 0, payload.length);
+        assertEquals("16UwLL9Risc3QfPqBUvKofHmBQ7wMtjvM", address);
+        byte[] output = new byte[Base58.maxDecodedLength(address.length())];
+        int length = Base58.decodeChecked(address, 0, address.length(), output, 0);
+        assertEquals(payload.length, length);
+        assertTrue(Arrays.equals(payload, Arrays.copyOf(output, length)));
+
+        String corrupted = address.substring(0, address.length() - 1) + 'N';
+        assertEquals(-1, Base58.decodeChecked(corrupted, 0, corrupted.length(), output, 0));
+        assertEquals(-1, Base58.decodeChecked("1111", 0, 4, output, 0));
+        assertEquals(-1, Base58.decodeChecked("16UwLL9Risc3QfPqBUvKofHmBQ7wMtjv0", 0, 33, output, 0));
+    }
+
+    private static String referenceEncode(byte[] input) {
+        StringBuilder sb = new StringBuilder();
+        BigInteger value = new BigInteger(1, input);
+        while (value.signum() > 0) {
+            BigInteger[] divideAndRemainder = value.divideAndRemainder(BASE);
+            sb.append(ALPHABET.charAt(divideAndRemainder[1].intValue()));
+            value = divideAndRemainder[0];
+        }
+        for (int i = 0; i < input.length && input[i] == 0; i++) {
+            sb.append('1');
+        }
+        return sb.reverse().toString();
+    }
+}
@@ -4,6 +4,7 @@ import junit.framework.TestCase;
 
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Random;
 
 public class Bech32Test extends TestCase {
     public void testValidChecksum() throws Exception {
@@ -265,4 +266,64 @@ public class Bech32Test extends TestCase {
         } catch (Exception ignored) {
         }
     }
-}
\ No newline at end of file
+
+    public void testValidateSegwitAddresses() throws BitcoinException {
+        String[] addresses = {
+                "BC1QW508D6QEJXTDG4Y5R3ZARVARY0C5XW7KV8F3T4",
+                "bc1pw508d6qejxtdg4y5r3zarvary0c5xw7kw508d6qejxtdg4y5r3zarvary0c5xw7k7grplx",
+                "BC1SW50QA3JX3S",
+                "bc1zw508d6qejxtdg4y5r3zarvaryvg6kdaj",
+                "tb1qrp33g0q5c5txsp9arysrx4k6zdkfs4nce4xj0gdcccefvpysxf3q0sl5k7",
+                "bc1qw508d6qejxtdg4y5r3zarvary0c5xw7kv8f3t5",
+                "BC13W508D6QEJXTDG4Y5R3ZARVARY0C5XW7KN40WF2",
+                "bc1rw5uspcuh",
+                "bc10w508d6qejxtdg4y5r3zarvary0c5xw7kw508d6qejxtdg4y5r3zarvary0c5xw7kw5rljs90",
+                "BC1QR508D6QEJXTDG4Y5R3ZARVARYV98GJ9P",
+                "bc1zw508d6qejxtdg4y5r3zarvaryvqyzf3du",
+                "bc1gmk9yu",
+                "bc1qw508d6qejxtdg4y5r3zarvary0c5xw7kV8F3T4",
+                "bc1qw508d6qejxtdg4y5r3zarvary0c5xw7kv8f3t\u0010",
+                null,
+        };
+        boolean[] valid = new boolean[addresses.length];
+        assertEquals(4, Bech32.validateSegwitAddresses("bc", addresses, valid));
+        for (int i = 0; i < addresses.length; i++) {
+            assertEquals(String.valueOf(addresses[i]), i < 4, valid[i]);
+            assertEquals(valid[i], Bech32.isValidSegwitAddress("bc", addresses[i]));
+            if (addresses[i] != null) {
+                try {
+                    Bech32.decodeSegwitAddress("bc", addresses[i]);
+                    assertTrue(valid[i]);
+                } catch (BitcoinException e) {
+                    assertFalse(valid[i]);
+                }
+            }
+        }
+        assertTrue(Bech32.isValidSegwitAddress("tb", addresses[4]));
+        assertFalse(Bech32.isValidSegwitAddress("bc", addresses[4]));
+    }
+
+    public void testRandomProgramsRoundTrip() throws BitcoinException {
+        Random random = new Random(173);
+        for (int i = 0; i < 1000; i++) {
+            int version = random.nextInt(17);
+            byte[] program = new byte[version == 0 ? (random.nextBoolean() ? 20 : 32) : 2 + random.nextInt(39)];
+            random.nextBytes(program);
+            String hrp = random.nextBoolean() ? "bc" : "TB";
+            String address = Bech32.encodeSegwitAddress(hrp, version, program);
+            Transaction.Script.WitnessProgram wp = Bech32.decodeSegwitAddress(hrp.toLowerCase(Locale.ENGLISH), address);
+            assertEquals(version, wp.version);
+            assertTrue(Arrays.equals(program, wp.program));
+            Bech32.DecodeResult decoded = Bech32.decode(address);
+            assertEquals(hrp.toLowerCase(Locale.ENGLISH), decoded.dechrp);
+            assertEquals(address, Bech32.encode(hrp, decoded.data));
+            char[] corrupted = address.toCharArray();
+            int position = 3 + random.nextInt(corrupted.length - 3);
+            corrupted[position] = corrupted[position] == 'q' || corrupted[position] == 'Q' ? 'p' : 'q';
+            if (hrp.equals("TB")) {
+                corrupted[position] = Character.toUpperCase(corrupted[position]);
+            }
+            assertFalse(Bech32.isValidSegwitAddress(hrp, new String(corrupted)));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BitcoinReaderTest extends TestCase {
+    private static final byte[] CONTENT = new byte[]{(byte) 0xfe, (byte) 0xdc, (byte) 0xba, (byte) 0x98, 0x76, 0x54, 0x32, 0x10};
+
+    public void testReadNumbers() throws Exception {
+        BitcoinReader reader = new BitcoinReader(CONTENT);
+        assertEquals(0xfe, reader.readByte());
+        assertEquals(0xbadc, reader.readInt16());
+        assertEquals(0x32547698, reader.readInt32());
+        assertEquals(7, reader.position());
+        try {
+            reader.readInt16();
+            fail();
+        } catch (EOFException ignored) {
+        }
+        assertEquals(7, reader.position());
+        assertEquals(0x10, reader.readByte());
+        assertEquals(0, reader.remaining());
+
+        reader = new BitcoinReader(CONTENT);
+        assertEquals(0x98badcfe, reader.readInt32());
+        assertEquals(0x10325476, reader.readInt32());
+        reader = new BitcoinReader(CONTENT);
+        assertEquals(0x1032547698badcfeL, reader.readInt64());
+        try {
+            reader.readInt32();
+            fail();
+        } catch (EOFException ignored) {
+        }
+    }
+
+    public void testReadVarInt() throws Exception {
+        BitcoinReader reader = new BitcoinReader(CONTENT);
+        assertEquals(0x7698badc, reader.readVarInt());//fe
+        assertEquals(0x54, reader.readVarInt());//<fd
+        reader = new BitcoinReader(new byte[]{(byte) 0xfd, 1, (byte) 0xff, (byte) 0xfe, (byte) 0xdc, (byte) 0xba, (byte) 0x98, (byte) 0x86,
+                (byte) 0xff, (byte) 0xdc, (byte) 0xba, (byte) 0x98, 0x76, 0x54, 0x32, 0x10, 0});
+        assertEquals(0xff01, reader.readVarInt());//fd
+        assertEquals(0x8698badcL, reader.readVarInt());//fe is unsigned
+        assertEquals(0x1032547698badcL, reader.readVarInt());//ff
+    }
+
+    public void testSlicesAndBytes() throws Exception {
+        BitcoinReader reader = new BitcoinReader(CONTENT, 2, 5);
+        assertSame(CONTENT, reader.array());
+        assertEquals(2, reader.position());
+        assertEquals(2, reader.readSlice(2));
+        byte[] dst = new byte[4];
+        reader.readBytes(dst, 1, 2);
+        assertTrue(Arrays.equals(new byte[]{0, 0x76, 0x54, 0}, dst));
+        try {
+            reader.readBytes(2);
+            fail();
+        } catch (EOFException ignored) {
+        }
+        try {
+            reader.readSlice(-1);
+            fail();
+        } catch (EOFException ignored) {
+        }
+        assertTrue(Arrays.equals(new byte[]{0x32}, reader.readBytes(1)));
+        try {
+            new BitcoinReader(CONTENT, 4, 5);
+            fail();
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+    }
+
+    public void testByteBuffer() throws Exception {
+        ByteBuffer heap = ByteBuffer.wrap(CONTENT, 1, 6).slice();
+        heap.position(1);
+        BitcoinReader reader = new BitcoinReader(heap);
+        assertSame(CONTENT, reader.array());
+        assertEquals(2, reader.position());
+        assertEquals(5, reader.remaining());
+        assertEquals(0xba, reader.readByte());
+        assertEquals(0x7698, reader.readInt16());
+        assertEquals(1, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(CONTENT.length);
+        direct.put(CONTENT);
+        direct.position(4);
+        reader = new BitcoinReader(direct);
+        assertEquals(4, reader.remaining());
+        assertEquals(0x10325476, reader.readInt32());
+        assertEquals(4, direct.position());
+    }
+
+    public void testParsingMatchesStream() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("tx_valid.json").getPath());
+        JSONArray all = new JSONArray(TransactionTest.isToString(new FileInputStream(file)));
+        for (int i = 0; i < all.length(); i++) {
+            JSONArray line = all.getJSONArray(i);
+            if (line.length() == 3) {
+                byte[] rawTx = BTCUtils.fromHex(line.getString(1));
+                assertTrue(Arrays.equals(decodeWithStream(rawTx).getBytes(), Transaction.decodeTransaction(rawTx).getBytes()));
+            }
+        }
+    }
+
+    /**
+     * Transaction parsing as it was done before BitcoinReader
+     */
+    private static Transaction decodeWithStream(byte[] rawBytes) throws Exception {
+        BitcoinInputStream bais = new BitcoinInputStream(rawBytes);
+        boolean withWitness = rawBytes.length > 5 && rawBytes[4] == 0 && rawBytes[5] != 0;
+        int version = bais.readInt32();
+        if (withWitness) {
+            bais.readInt16();
+        }
+        Transaction.Input[] inputs = new Transaction.Input[(int) bais.readVarInt()];
+        for (int i = 0; i < inputs.length; i++) {
+            Transaction.OutPoint outPoint = new Transaction.OutPoint(BTCUtils.reverse(bais.readChars(32)), bais.readInt32());
+            byte[] script = bais.readChars((int) bais.readVarInt());
+            inputs[i] = new Transaction.Input(outPoint, new Transaction.Script(script), bais.readInt32());
+        }
+        Transaction.Output[] outputs = new Transaction.Output[(int) bais.readVarInt()];
+        for (int i = 0; i < outputs.length; i++) {
+            long value = bais.readInt64();
+            outputs[i] = new Transaction.Output(value, new Transaction.Script(bais.readChars((int) bais.readVarInt())));
+        }
+        byte[][][] scriptWitnesses = new byte[withWitness ? inputs.length : 0][][];
+        for (int i = 0; i < scriptWitnesses.length; i++) {
+            scriptWitnesses[i] = new byte[(int) bais.readVarInt()][];
+            for (int j = 0; j < scriptWitnesses[i].length; j++) {
+                scriptWitnesses[i][j] = bais.readChars((int) bais.readVarInt());
+            }
+        }
+        return new Transaction(version, inputs, outputs, bais.readInt32(), scriptWitnesses);
+    }
+}
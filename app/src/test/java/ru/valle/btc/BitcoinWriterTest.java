@@ -0,0 +1,169 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BitcoinWriterTest extends TestCase {
+
+    public void testSameBytesAsStream() throws Exception {
+        BitcoinOutputStream os = new BitcoinOutputStream();
+        byte[] bytes = new byte[4 + 4 + 8 + 2 + 26 + 3];
+        BitcoinWriter writer = new BitcoinWriter(bytes);
+        long[] varInts = {0, 0xfc, 0xfd, 0xff0, 0xff11223344L, 0x1234567890L};
+        os.writeInt32(0x012345678);
+        writer.writeInt32(0x012345678);
+        os.writeInt32((int) 0xfedcba987L);
+        writer.writeInt32((int) 0xfedcba987L);
+        os.writeInt64(0xfedcba9876543210L);
+        writer.writeInt64(0xfedcba9876543210L);
+        os.writeInt16(0xabcd);
+        writer.writeInt16(0xabcd);
+        int size = 0;
+        for (long value : varInts) {
+            os.writeVarInt(value);
+            writer.writeVarInt(value);
+            size += BitcoinWriter.varIntSize(value);
+        }
+        os.write(new byte[]{1, 2, 3});
+        writer.writeReversed(new byte[]{3, 2, 1});
+        assertEquals(1 + 1 + 3 + 3 + 9 + 9, size);
+        assertEquals(bytes.length, writer.position());
+        assertEquals(os.size(), writer.position());
+        assertTrue(Arrays.equals(os.toByteArray(), Arrays.copyOf(bytes, writer.position())));
+        os.close();
+    }
+
+    public void testVarIntBoundaries() throws Exception {
+        long[] values = {0xfc, 0xfd, 0xfffe, 0xffff, 0x10000, 0xfffffffeL, 0xffffffffL, 0x100000000L};
+        int[] sizes = {1, 3, 3, 3, 5, 5, 5, 9};
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Long.toHexString(values[i]), sizes[i], BitcoinWriter.varIntSize(values[i]));
+            byte[] bytes = new byte[sizes[i]];
+            BitcoinWriter writer = new BitcoinWriter(bytes);
+            writer.writeVarInt(values[i]);
+            assertEquals(sizes[i], writer.position());
+            BitcoinReader reader = new BitcoinReader(bytes);
+            assertEquals(values[i], reader.readVarInt());
+            assertEquals(0, reader.remaining());
+
+            BitcoinOutputStream os = new BitcoinOutputStream();
+            os.writeVarInt(values[i]);
+            assertTrue(Arrays.equals(bytes, os.toByteArray()));
+            os.close();
+            Sha256OutputStream sha256 = new Sha256OutputStream();
+            sha256.writeVarInt(values[i]);
+            assertTrue(Arrays.equals(BTCUtils.doubleSha256(bytes), sha256.doubleSha256()));
+        }
+    }
+
+    public void testBounds() throws Exception {
+        byte[] bytes = new byte[6];
+        BitcoinWriter writer = new BitcoinWriter(bytes, 1);
+        writer.writeInt32(0x04030201);
+        try {
+            writer.writeInt16(0);
+            fail();
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+        assertEquals(5, writer.position());
+        writer.write(5);
+        assertTrue(Arrays.equals(new byte[]{0, 1, 2, 3, 4, 5}, bytes));
+    }
+
+    public void testByteBuffer() throws Exception {
+        byte[] expected = {0, 0x10, 0x32, 0x54, 0x76, (byte) 0x98, (byte) 0xba, (byte) 0xdc, (byte) 0xfe};
+        ByteBuffer heap = ByteBuffer.allocate(12);
+        heap.position(1);
+        BitcoinWriter writer = new BitcoinWriter(heap);
+        assertSame(heap.array(), writer.array());
+        writer.writeInt64(0xfedcba9876543210L);
+        assertEquals(1, heap.position());
+        assertTrue(Arrays.equals(expected, Arrays.copyOf(heap.array(), expected.length)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(9);
+        direct.position(1);
+        writer = new BitcoinWriter(direct);
+        assertNull(writer.array());
+        writer.writeInt64(0xfedcba9876543210L);
+        assertEquals(9, writer.position());
+        assertEquals(1, direct.position());
+        byte[] result = new byte[9];
+        direct.position(0);
+        direct.get(result);
+        assertTrue(Arrays.equals(expected, result));
+    }
+
+    public void testPooled() throws Exception {
+        BitcoinWriter writer = BitcoinWriter.pooled(10);
+        writer.writeInt64(1);
+        assertSame(writer, BitcoinWriter.pooled(1000));
+        assertEquals(0, writer.position());
+        assertTrue(writer.array().length >= 1000);
+        assertNotSame(writer, BitcoinWriter.pooled(1024 * 1024));
+    }
+
+    public void testTransactionSerialization() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("tx_valid.json").getPath());
+        JSONArray all = new JSONArray(TransactionTest.isToString(new FileInputStream(file)));
+        for (int i = 0; i < all.length(); i++) {
+            JSONArray line = all.getJSONArray(i);
+            if (line.length() == 3) {
+                Transaction tx = Transaction.decodeTransaction(BTCUtils.fromHex(line.getString(1)));
+                for (boolean withWitness : new boolean[]{false, true}) {
+                    byte[] bytes = tx.getBytes(withWitness);
+                    assertEquals(bytes.length, tx.getSerializedSize(withWitness));
+                    assertTrue(Arrays.equals(serializeWithStream(tx, withWitness && tx.scriptWitnesses.length > 0), bytes));
+                    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+                    tx.writeTo(new BitcoinWriter(direct), withWitness);
+                    byte[] fromDirect = new byte[bytes.length];
+                    direct.get(fromDirect);
+                    assertTrue(Arrays.equals(bytes, fromDirect));
+                }
+            }
+        }
+    }
+
+    /**
+     * Transaction serialization as it was done before BitcoinWriter
+     */
+    private static byte[] serializeWithStream(Transaction tx, boolean withWitness) throws Exception {
+        BitcoinOutputStream baos = new BitcoinOutputStream();
+        baos.writeInt32(tx.version);
+        if (withWitness) {
+            baos.write(0);
+            baos.write(1);
+        }
+        baos.writeVarInt(tx.inputs.length);
+        for (Transaction.Input input : tx.inputs) {
+            baos.write(BTCUtils.reverse(input.outPoint.hash));
+            baos.writeInt32(input.outPoint.index);
+            baos.writeVarInt(input.scriptSig.bytes.length);
+            baos.write(input.scriptSig.bytes);
+            baos.writeInt32(input.sequence);
+        }
+        baos.writeVarInt(tx.outputs.length);
+        for (Transaction.Output output : tx.outputs) {
+            baos.writeInt64(output.value);
+            baos.writeVarInt(output.scriptPubKey.bytes.length);
+            baos.write(output.scriptPubKey.bytes);
+        }
+        if (withWitness) {
+            for (byte[][] witness : tx.scriptWitnesses) {
+                baos.writeVarInt(witness.length);
+                for (byte[] stackEntry : witness) {
+                    baos.writeVarInt(stackEntry.length);
+                    baos.write(stackEntry);
+                }
+            }
+        }
+        baos.writeInt32(tx.lockTime);
+        baos.close();
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class HashesTest extends TestCase {
+    public void testKnownValues() throws Exception {
+        byte[] abc = "abc".getBytes("UTF-8");
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", BTCUtils.toHex(Hashes.sha256(abc)));
+        assertEquals("4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358", BTCUtils.toHex(Hashes.doubleSha256(abc)));
+        byte[] publicKey = BTCUtils.fromHex("0450863ad64a87ae8a2fe83c1af1a8403cb53f53e486d8511dad8a04887e5b23522cd470243453a299fa9e77237716103abc11a1df38855ed6f2ee187e9c582ba6");
+        assertEquals("010966776006953d5567439e5e39f86a0d273bee", BTCUtils.toHex(Hashes.hash160(publicKey)));
+        assertEquals(0x4f8b42c2, Hashes.checksum(abc, 0, abc.length));
+    }
+
+    public void testIntoWithOffsetsAndSameArray() throws Exception {
+        Random random = new Random(256);
+        for (int length = 0; length < 200; length += 7) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] buffer = new byte[length + 50];
+            System.arraycopy(data, 0, buffer, 5, length);
+
+            byte[] out = new byte[40];
+            Hashes.sha256Into(buffer, 5, length, out, 3);
+            assertTrue(Arrays.equals(reference(data, false), Arrays.copyOfRange(out, 3, 35)));
+            Hashes.doubleSha256Into(buffer, 5, length, out, 8);
+            assertTrue(Arrays.equals(reference(data, true), Arrays.copyOfRange(out, 8, 40)));
+            Hashes.hash160Into(buffer, 5, length, out, 0);
+            assertTrue(Arrays.equals(referenceHash160(data), Arrays.copyOf(out, 20)));
+
+            //output overwrites input
+            Hashes.doubleSha256Into(buffer, 5, length, buffer, 5);
+            assertTrue(Arrays.equals(reference(data, true), Arrays.copyOfRange(buffer, 5, 37)));
+        }
+    }
+
+    public void testThreadSha256IsReset() throws Exception {
+        MessageDigest sha256 = Hashes.threadSha256();
+        sha256.update((byte) 1);
+        assertTrue(Arrays.equals(reference(new byte[0], false), Hashes.threadSha256().digest()));
+    }
+
+    public void testConcurrentUse() throws Exception {
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 500; i++) {
+                            byte[] data = new byte[random.nextInt(100)];
+                            random.nextBytes(data);
+                            if (!Arrays.equals(reference(data, true), BTCUtils.doubleSha256(data)) ||
+                                    !Arrays.equals(referenceHash160(data), BTCUtils.sha256ripemd160(data))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] reference(byte[] data, boolean twice) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+        return twice ? MessageDigest.getInstance("SHA-256").digest(hash) : hash;
+    }
+
+    private static byte[] referenceHash160(byte[] data) throws Exception {
+        byte[] sha256 = reference(data, false);
+        RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+        ripemd160.update(sha256, 0, sha256.length);
+        byte[] hash = new byte[20];
+        ripemd160.doFinal(hash, 0);
+        return hash;
+    }
+}
@@ -0,0 +1,102 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+public class ScriptNumTest extends TestCase {
+
+    private static final Object[][] VECTORS = {
+            {0L, ""},
+            {1L, "01"},
+            {-1L, "81"},
+            {16L, "10"},
+            {127L, "7f"},
+            {-127L, "ff"},
+            {128L, "8000"},
+            {-128L, "8080"},
+            {255L, "ff00"},
+            {-255L, "ff80"},
+            {256L, "0001"},
+            {32767L, "ff7f"},
+            {-32768L, "008080"},
+            {2147483647L, "ffffff7f"},
+            {-2147483647L, "ffffffff"},
+            {2147483648L, "0000008000"},
+            {-2147483648L, "0000008080"},
+            {549755813887L, "ffffffff7f"},
+    };
+
+    public void testEncodeDecode() throws Exception {
+        for (Object[] vector : VECTORS) {
+            long value = (Long) vector[0];
+            byte[] encoded = BTCUtils.fromHex((String) vector[1]);
+            assertEquals(BTCUtils.toHex(encoded), ScriptNum.encodedLength(value), encoded.length);
+            assertEquals(BTCUtils.toHex(encoded), BTCUtils.toHex(ScriptNum.encode(value)));
+            byte[] buf = new byte[encoded.length + 2];
+            assertEquals(encoded.length, ScriptNum.encode(value, buf, 1));
+            assertEquals(value, ScriptNum.decode(buf, 1, encoded.length, true, ScriptNum.LOCKTIME_MAX_SIZE));
+            assertTrue(ScriptNum.isMinimal(encoded, 0, encoded.length));
+        }
+        for (long value = -70000; value <= 70000; value++) {
+            byte[] encoded = ScriptNum.encode(value);
+            assertEquals(value, ScriptNum.decode(encoded, 0, encoded.length, true, ScriptNum.MAX_SIZE));
+        }
+    }
+
+    public void testNonMinimal() throws Exception {
+        for (String hex : new String[]{"00", "80", "0100", "0180", "0080", "ff0000"}) {
+            byte[] encoded = BTCUtils.fromHex(hex);
+            assertFalse(hex, ScriptNum.isMinimal(encoded, 0, encoded.length));
+            try {
+                ScriptNum.decode(encoded, 0, encoded.length, true, ScriptNum.MAX_SIZE);
+                fail(hex);
+            } catch (Transaction.Script.ScriptInvalidException ignored) {
+            }
+        }
+        assertEquals(0, ScriptNum.decode(BTCUtils.fromHex("80"), 0, 1, false, ScriptNum.MAX_SIZE));
+        assertEquals(0, ScriptNum.decode(BTCUtils.fromHex("0000"), 0, 2, false, ScriptNum.MAX_SIZE));
+        assertEquals(-1, ScriptNum.decode(BTCUtils.fromHex("0180"), 0, 2, false, ScriptNum.MAX_SIZE));
+    }
+
+    public void testOverflow() throws Exception {
+        byte[] fiveBytes = BTCUtils.fromHex("0000008000");
+        try {
+            ScriptNum.decode(fiveBytes, 0, fiveBytes.length, false, ScriptNum.MAX_SIZE);
+            fail();
+        } catch (Transaction.Script.ScriptInvalidException ignored) {
+        }
+        assertEquals(2147483648L, ScriptNum.decode(fiveBytes, 0, fiveBytes.length, false, ScriptNum.LOCKTIME_MAX_SIZE));
+    }
+
+    public void testArithmeticOpcodes() throws Exception {
+        assertEquals("81", run("4f"));//OP_1NEGATE
+        assertEquals("", run("4f 8b"));//-1 + 1
+        assertEquals("8000", run("017f 8b"));//127 + 1
+        assertEquals("06", run("020500 8b"));//non-minimal 5 is fine without MINIMALDATA
+        assertEquals("e903", run("02e803 8b"));
+        assertEquals("e703", run("02e803 8c"));
+        assertEquals("feffffff00", run("04ffffff7f 04ffffff7f 93"));//results may exceed 4 bytes
+        assertEquals("88", run("52 5a 94"));//2 - 10
+        assertEquals("01", run("4f 4f 52 a5"));//-1 within [-1, 2)
+        assertEquals("01", run("020001 91 91"));//256 is true even though its first byte is 0
+        try {
+            run("04ffffff7f 8b 8b");//5 byte operand
+            fail();
+        } catch (Transaction.Script.ScriptInvalidException ignored) {
+        }
+        ScriptStack stack = new ScriptStack();
+        try {
+            new Transaction.Script(BTCUtils.fromHex("0180 8b".replace(" ", ""))).run(new Transaction.Checker(0, 0, null), stack,
+                    Transaction.Script.SCRIPT_VERIFY_MINIMALDATA, Transaction.Script.SIGVERSION_BASE);
+            fail();
+        } catch (Transaction.Script.ScriptInvalidException ignored) {
+        }
+    }
+
+    private static String run(String hexOps) throws Exception {
+        ScriptStack stack = new ScriptStack();
+        assertTrue(new Transaction.Script(BTCUtils.fromHex(hexOps.replace(" ", ""))).run(new Transaction.Checker(0, 0, null), stack,
+                0, Transaction.Script.SIGVERSION_BASE));
+        assertEquals(1, stack.size());
+        return BTCUtils.toHex(stack.get(0));
+    }
+}
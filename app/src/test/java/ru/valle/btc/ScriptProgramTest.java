@@ -0,0 +1,257 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Stack;
+
+public class ScriptProgramTest extends TestCase {
+
+    public void testCompile() throws Exception {
+        byte[] script = BTCUtils.fromHex("0102" + "63" + "4c020304" + "67" + "51" + "68" + "ab" + "4d010005" + "51");
+        ScriptProgram program = ScriptProgram.compile(script);
+        assertTrue(program.valid);
+        assertEquals(9, program.length);
+        assertEquals(1, program.operands[0]);//data offset of the first push
+        assertEquals(1, program.dataLengths[0]);
+        assertEquals(3, program.operands[1]);//OP_IF jumps to OP_ELSE
+        assertEquals(5, program.operands[2]);
+        assertEquals(2, program.dataLengths[2]);
+        assertEquals(5, program.operands[3]);//OP_ELSE jumps to OP_ENDIF
+        assertEquals(11, program.ends[6]);//OP_CODESEPARATOR
+        assertEquals(14, program.operands[7]);//PUSHDATA2
+        assertEquals(1, program.dataLengths[7]);
+
+        assertFalse(ScriptProgram.compile(BTCUtils.fromHex("030102")).valid);//push past the end
+        assertFalse(ScriptProgram.compile(BTCUtils.fromHex("4c")).valid);
+        assertFalse(ScriptProgram.compile(BTCUtils.fromHex("4dff")).valid);
+        assertFalse(ScriptProgram.compile(BTCUtils.fromHex("5163")).valid);//no OP_ENDIF
+        assertFalse(ScriptProgram.compile(BTCUtils.fromHex("5168")).valid);//OP_ENDIF without OP_IF
+        assertFalse(ScriptProgram.compile(BTCUtils.fromHex("67")).valid);
+        assertTrue(ScriptProgram.compile(new byte[0]).valid);
+    }
+
+    public void testConditionals() throws Exception {
+        assertEquals("", runToHex(""));
+        assertEquals("02", runToHex("51 63 52 67 53 68"));
+        assertEquals("03", runToHex("00 63 52 67 53 68"));
+        assertEquals("0305", runToHex("00 63 52 67 53 51 63 55 67 56 68 68"));//nested
+        assertEquals("04", runToHex("00 63 52 00 63 53 68 67 54 68"));//nested in the branch not taken
+        assertEquals("02", runToHex("00 64 52 67 53 68"));//OP_NOTIF
+        assertEquals("0203", runToHex("00 63 67 52 67 54 67 53 68"));//every OP_ELSE flips the branch
+        assertEquals("5c", runToHex("00 63 01 68 68 01 5c"));//data which looks like OP_ENDIF is skipped as data
+    }
+
+    public void testStackOperations() throws Exception {
+        assertEquals("0201", runToHex("51 52 7c"));//OP_SWAP
+        assertEquals("0101", runToHex("01 01 76"));//OP_DUP
+        assertEquals("02", runToHex("51 52 77"));//OP_NIP
+        assertEquals("01020301", runToHex("51 52 53 52 79"));//OP_PICK
+        assertEquals("0102", runToHex("51 52 53 75"));//OP_DROP
+        assertEquals("01abcd02", runToHex("51 02abcd 82"));//OP_SIZE
+        assertEquals("01", runToHex("02abcd 02abcd 87"));//OP_EQUAL
+        assertEquals("", runToHex("02abcd 02abcd 88"));//OP_EQUALVERIFY
+        assertEquals("", runToHex("02abcd 02abce 87"));//false is empty
+        assertEquals("01", runToHex("53 52 55 a5"));//3 is within [2, 5)
+        assertEquals("", runToHex("55 52 55 a5"));
+        assertEquals("0f10", runToHex("5f 60"));
+        assertEquals("b472a266d0bd89c13706a4132ccfb16f7c3b9fcb", runToHex("00 a9"));//OP_HASH160
+        try {
+            runToHex("51 7c");
+            fail();
+        } catch (RuntimeException ignored) {
+        }
+        Stack<byte[]> stack = new Stack<>();
+        byte[] item = BTCUtils.fromHex("abcd");
+        stack.push(item);
+        new Transaction.Script(BTCUtils.fromHex("765100")).run(stack);
+        assertEquals(4, stack.size());
+        assertSame(item, stack.get(0));
+        assertSame(item, stack.get(1));
+        assertTrue(Arrays.equals(new byte[]{1}, stack.get(2)));
+        assertEquals(0, stack.get(3).length);
+    }
+
+    /**
+     * Each case below differs between Bitcoin Core and the interpreter which ScriptProgram replaced
+     */
+    public void testRulesFollowCore() throws Exception {
+        assertEquals("0201", runToHex("51 52 7c"));//OP_SWAP swaps the top items, not leaves them as they were
+        assertEquals("", runToHex("52 53 55 a5"));//OP_WITHIN pops max, then min, then x: 2 is not within [3, 5)
+        assertEquals("", runToHex("55 53 55 a5"));//max is excluded
+        assertEquals("01", runToHex("53 53 55 a5"));//min is included
+
+        assertEquals("01", runToHex("51 0180 63 00 68"));//negative zero is false for OP_IF
+        assertEquals("01", runToHex("0180 64 51 68"));//and for OP_NOTIF
+        assertEquals("01", runToHex("51 020080 63 00 68"));//in any length
+        assertEquals("01", runToHex("020001 63 51 68"));//a zero byte first is not enough to be false
+        assertFails("0180 69");//OP_VERIFY of negative zero
+        assertFails("0100 69");
+        assertEquals("", runToHex("020001 69"));
+        assertFails("69");//OP_VERIFY on an empty stack
+        assertFalse(verifies("0180", ""));//negative zero left on the stack
+        assertTrue(verifies("0101", ""));
+
+        assertEquals("03", runToHex("51 64 00 63 52 68 67 51 64 52 67 53 68 68"));//OP_NOTIF, nested in OP_ELSE
+        assertFails("51 63");//unbalanced conditionals
+        assertFails("68");
+        assertFails("51 67 68");
+        assertFails("030102");//truncated push
+
+        assertEquals("aabbcc", runToHex("4d0300aabbcc"));//OP_PUSHDATA2
+        assertEquals("aabbcc", runToHex("4e03000000aabbcc"));//OP_PUSHDATA4
+        assertEquals("090f10", runToHex("59 5f 60"));//OP_9, OP_15, OP_16
+    }
+
+    public void testMinimalPushes() throws Exception {
+        assertTrue(runsWithMinimalData("00"));
+        assertTrue(runsWithMinimalData("01ff"));
+        assertTrue(runsWithMinimalData("0180"));
+        assertFalse(runsWithMinimalData("4c00"));//empty data is OP_0
+        assertFalse(runsWithMinimalData("0105"));//OP_5
+        assertFalse(runsWithMinimalData("0181"));//OP_1NEGATE
+        assertFalse(runsWithMinimalData("4c01ff"));
+        assertFalse(runsWithMinimalData("4d0100ff"));
+        assertFalse(runsWithMinimalData("4e01000000ff"));
+        assertTrue(runsWithMinimalData("4b" + filler(75)));
+        assertTrue(runsWithMinimalData("4c4c" + filler(76)));
+        assertFalse(runsWithMinimalData("4d4c00" + filler(76)));
+        assertTrue(runsWithMinimalData("4d0001" + filler(256)));
+        assertFalse(runsWithMinimalData("4e00010000" + filler(256)));
+        assertTrue(runsWithMinimalData("00 63 4c00 68"));//pushes in the branch not taken are not checked
+        assertEquals("", runToHex("4c00"));//nor without the flag
+    }
+
+    private static boolean runsWithMinimalData(String hexOps) throws Exception {
+        return new Transaction.Script(BTCUtils.fromHex(hexOps.replace(" ", ""))).run(new Transaction.Checker(0, -1, null),
+                new Stack<byte[]>(), Transaction.Script.SCRIPT_VERIFY_MINIMALDATA, Transaction.Script.SIGVERSION_BASE);
+    }
+
+    private static String filler(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append("11");
+        }
+        return sb.toString();
+    }
+
+    private static void assertFails(String hexOps) {
+        try {
+            assertFalse(new Transaction.Script(BTCUtils.fromHex(hexOps.replace(" ", ""))).run(new Stack<byte[]>()));
+        } catch (Transaction.Script.ScriptInvalidException | RuntimeException ignored) {
+        }
+    }
+
+    private static boolean verifies(String scriptSigHex, String scriptPubKeyHex) {
+        byte[] scriptPubKey = BTCUtils.fromHex(scriptPubKeyHex);
+        try {
+            BTCUtils.verify(new Transaction.Script[]{new Transaction.Script(scriptPubKey)}, new long[]{0},
+                    buildSpendingTransaction(BTCUtils.fromHex(scriptSigHex), scriptPubKey), Transaction.Script.SCRIPT_VERIFY_P2SH);
+            return true;
+        } catch (Transaction.Script.ScriptInvalidException e) {
+            return false;
+        }
+    }
+
+    public void testStackGrowsFromZeroCapacity() {
+        ScriptStack stack = new ScriptStack(0);
+        for (int i = 0; i < 20; i++) {
+            stack.pushNumber(i);
+        }
+        assertEquals(20, stack.size());
+        ScriptStack copy = new ScriptStack(0);
+        copy.copyFrom(stack);
+        assertEquals(20, copy.size());
+        assertEquals("13", BTCUtils.toHex(copy.get(0)));
+    }
+
+    private static String runToHex(String hexOps) throws Exception {
+        Stack<byte[]> stack = new Stack<>();
+        new Transaction.Script(BTCUtils.fromHex(hexOps.replace(" ", ""))).run(stack);
+        StringBuilder sb = new StringBuilder();
+        for (byte[] item : stack) {
+            sb.append(BTCUtils.toHex(item));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Core's errors for checks which are not made here, vectors expecting them are skipped
+     */
+    private static final Set<String> UNCHECKED_ERRORS = new HashSet<>(Arrays.asList(
+            "OP_COUNT",//more than 201 opcodes
+            "SIG_HIGH_S",
+            "PUBKEYTYPE",
+            "CLEANSTACK"//the flag is not parsed
+    ));
+
+    /**
+     * Comments or scriptPubKeys of vectors which give another result than Core's, for reasons which predate ScriptProgram
+     */
+    private static final Set<String> KNOWN_DIFFERENCES = new HashSet<>(Arrays.asList(
+            "1,000 stack size (0x6f is 3DUP)",//OP_3DUP is not implemented
+            "CHECKLOCKTIMEVERIFY 1",//it is checked without the flag, not a NOP
+            "BIP66 example 5, without DERSIG",//an empty signature verifies, see Secp256k1.verify
+            "BIP66 example 6, without DERSIG"
+    ));
+
+    /**
+     * Verifies scriptSig and scriptPubKey of script_tests.json entries and expects Core's result: "OK" or some error
+     */
+    public void testScriptTests() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("script_tests.json").getPath());
+        JSONArray all = new JSONArray(TransactionTest.isToString(new FileInputStream(file)));
+        int checked = 0;
+        for (int i = 0; i < all.length(); i++) {
+            JSONArray line = all.getJSONArray(i);
+            if (line.length() < 4 || !(line.get(0) instanceof String)) {
+                continue;//comments and witness tests
+            }
+            String expected = line.getString(3);
+            if (UNCHECKED_ERRORS.contains(expected) || KNOWN_DIFFERENCES.contains(line.optString(4)) ||
+                    KNOWN_DIFFERENCES.contains(line.getString(1))) {
+                continue;
+            }
+            byte[] scriptSig, scriptPubKey;
+            try {
+                scriptSig = Transaction.Script.convertReadableStringToBytesCoreStyle(line.getString(0));
+                scriptPubKey = Transaction.Script.convertReadableStringToBytesCoreStyle(line.getString(1));
+            } catch (IllegalArgumentException e) {
+                continue;//syntax which the converter does not support
+            }
+            int flags = TransactionTest.parseScriptFlags(line.getString(2));
+            boolean valid;
+            try {
+                BTCUtils.verify(new Transaction.Script[]{new Transaction.Script(scriptPubKey)}, new long[]{0},
+                        buildSpendingTransaction(scriptSig, scriptPubKey), flags);
+                valid = true;
+            } catch (NotImplementedException e) {
+                continue;
+            } catch (Exception e) {
+                valid = false;
+            }
+            assertEquals(line.toString(), expected.equals("OK"), valid);
+            checked++;
+        }
+        assertTrue(checked > 290);
+    }
+
+    /**
+     * Spending transaction of script_tests.json: it spends the only output of a coinbase-like transaction
+     * paying to scriptPubKey, both with zero lock time and max sequence
+     */
+    private static Transaction buildSpendingTransaction(byte[] scriptSig, byte[] scriptPubKey) {
+        Transaction credit = new Transaction(
+                new Transaction.Input[]{new Transaction.Input(new Transaction.OutPoint(new byte[32], -1), new Transaction.Script(new byte[]{0, 0}), -1)},
+                new Transaction.Output[]{new Transaction.Output(0, new Transaction.Script(scriptPubKey))}, 0);
+        return new Transaction(
+                new Transaction.Input[]{new Transaction.Input(new Transaction.OutPoint(credit.hash(), 0), new Transaction.Script(scriptSig), -1)},
+                new Transaction.Output[]{new Transaction.Output(0, new Transaction.Script(new byte[0]))}, 0);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class ScriptTypeTest extends TestCase {
+
+    public void testClassification() throws Exception {
+        Transaction.Script p2pkh = Transaction.Script.buildOutput("mymHGRN9LhQHqPLobnR1fkeHMzLbmN9rZV");
+        ScriptType type = p2pkh.getType();
+        assertEquals(ScriptType.P2PKH, type.kind);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(p2pkh.bytes, 3, 23), type.hash160));
+        assertTrue(p2pkh.isPay2PublicKeyHash());
+        assertFalse(p2pkh.isPushOnly());
+        assertNull(p2pkh.getWitnessProgram());
+        Transaction.Output output = new Transaction.Output(1, p2pkh);
+        assertEquals("mymHGRN9LhQHqPLobnR1fkeHMzLbmN9rZV", output.getP2pkhAddress(true));
+        assertNull(output.getP2shAddress(true));
+
+        byte[] notP2pkh = p2pkh.bytes.clone();
+        notP2pkh[24] = Transaction.Script.OP_NOP;
+        assertFalse(new Transaction.Script(notP2pkh).isPay2PublicKeyHash());
+
+        Transaction.Script p2sh = new Transaction.Script(BTCUtils.fromHex("a914" + "0123456789abcdef0123456789abcdef01234567" + "87"));
+        assertTrue(p2sh.isPayToScriptHash());
+        assertEquals("0123456789abcdef0123456789abcdef01234567", BTCUtils.toHex(p2sh.getType().hash160));
+
+        Transaction.Script p2pk = new Transaction.Script(BTCUtils.fromHex("21" + "02" + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef" + "ac"));
+        assertTrue(p2pk.isPubkey());
+        assertFalse(p2pk.isPushOnly());
+
+        Transaction.Script p2wpkh = new Transaction.Script(BTCUtils.fromHex("0014" + "0123456789abcdef0123456789abcdef01234567"));
+        assertEquals(ScriptType.WITNESS_PROGRAM, p2wpkh.getType().kind);
+        assertTrue(p2wpkh.isPushOnly());
+        Transaction.Script.WitnessProgram wp = p2wpkh.getWitnessProgram();
+        assertEquals(0, wp.version);
+        assertTrue(wp.isWitnessKeyHashType());
+        assertSame(wp, p2wpkh.getWitnessProgram());
+        assertTrue(Arrays.equals(p2wpkh.bytes, wp.getBytes()));
+
+        Transaction.Script v1 = new Transaction.Script(BTCUtils.fromHex("5120" + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef"));
+        assertEquals(1, v1.getWitnessProgram().version);
+        assertTrue(v1.getWitnessProgram().isWitnessSha256Type());
+        assertNull(new Transaction.Script(BTCUtils.fromHex("6102abcd")).getWitnessProgram());
+    }
+
+    public void testPushOnly() throws Exception {
+        assertTrue(new Transaction.Script(new byte[0]).isPushOnly());
+        assertTrue(new Transaction.Script(BTCUtils.fromHex("00 4f 51 60 02abcd 4c01ff 4d0200abcd 4e01000000ff".replace(" ", ""))).isPushOnly());
+        assertFalse(new Transaction.Script(BTCUtils.fromHex("5161")).isPushOnly());
+        assertFalse(new Transaction.Script(BTCUtils.fromHex("03abcd")).isPushOnly());//push past the end
+        assertFalse(new Transaction.Script(BTCUtils.fromHex("4d01")).isPushOnly());
+    }
+
+    public void testCachedHashCode() throws Exception {
+        byte[] bytes = BTCUtils.fromHex("76a914000000000000000000000000000000000000000088ac");
+        Transaction.Script script = new Transaction.Script(bytes);
+        assertEquals(Arrays.hashCode(bytes), script.hashCode());
+        assertEquals(Arrays.hashCode(bytes), script.hashCode());
+        assertEquals(new Transaction.Script(bytes.clone()), script);
+        assertSame(script.getType(), script.getType());
+    }
+}
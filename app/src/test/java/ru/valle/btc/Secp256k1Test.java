@@ -0,0 +1,102 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.ASN1Sequence;
+import org.spongycastle.asn1.sec.SECNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Secp256k1Test extends TestCase {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 40;
+
+    private BigInteger[] privateKeys;
+    private byte[][] publicKeys;
+    private byte[][] hashes;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        int count = THREADS * OPERATIONS_PER_THREAD;
+        privateKeys = new BigInteger[count];
+        publicKeys = new byte[count][];
+        hashes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            privateKeys[i] = new BigInteger(1, BTCUtils.sha256(("key " + i).getBytes("UTF-8")));
+            publicKeys[i] = BTCUtils.generatePublicKey(privateKeys[i], i % 2 == 0);
+            hashes[i] = BTCUtils.sha256(("message " + i).getBytes("UTF-8"));
+        }
+    }
+
+    public void testSignatureIsDeterministic() {
+        byte[] signature = BTCUtils.sign(privateKeys[0], hashes[0]);
+        assertTrue(Arrays.equals(signature, BTCUtils.sign(privateKeys[0], hashes[0])));
+        assertTrue(BTCUtils.verify(publicKeys[0], signature, hashes[0]));
+        assertFalse(BTCUtils.verify(publicKeys[1], signature, hashes[0]));
+        assertFalse(BTCUtils.verify(publicKeys[0], signature, hashes[1]));
+    }
+
+    public void testConcurrentSignVerifyAndPublicKeys() throws Exception {
+        final byte[][] expectedSignatures = new byte[privateKeys.length][];
+        for (int i = 0; i < privateKeys.length; i++) {
+            expectedSignatures[i] = BTCUtils.sign(privateKeys[i], hashes[i]);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int first = t * OPERATIONS_PER_THREAD;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int i = first; i < first + OPERATIONS_PER_THREAD; i++) {
+                            if (!Arrays.equals(publicKeys[i], BTCUtils.generatePublicKey(privateKeys[i], i % 2 == 0))) {
+                                return false;
+                            }
+                            byte[] signature = BTCUtils.sign(privateKeys[i], hashes[i]);
+                            if (!Arrays.equals(expectedSignatures[i], signature) || !Secp256k1.verify(publicKeys[i], signature, hashes[i])) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testResultsMatchGenericCurve() {
+        X9ECParameters generic = SECNamedCurves.getByName("secp256k1");
+        ECDomainParameters genericParams = new ECDomainParameters(generic.getCurve(), generic.getG(), generic.getN(), generic.getH());
+        for (int i = 0; i < 16; i++) {
+            assertTrue(Arrays.equals(generic.getG().multiply(privateKeys[i]).getEncoded(i % 2 == 0), publicKeys[i]));
+            byte[] signature = Secp256k1.sign(privateKeys[i], hashes[i]);
+            ECDSASigner genericVerifier = new ECDSASigner();
+            genericVerifier.init(false, new ECPublicKeyParameters(generic.getCurve().decodePoint(publicKeys[i]), genericParams));
+            ASN1Sequence seq = ASN1Sequence.getInstance(signature);
+            assertTrue(genericVerifier.verifySignature(hashes[i], ((ASN1Integer) seq.getObjectAt(0)).getPositiveValue(),
+                    ((ASN1Integer) seq.getObjectAt(1)).getPositiveValue()));
+            //arbitrary point multiplication, as in BIP38 EC multiply
+            assertTrue(Arrays.equals(generic.getCurve().decodePoint(publicKeys[i]).multiply(privateKeys[i + 1]).getEncoded(false),
+                    Secp256k1.EC_PARAMS.getCurve().decodePoint(publicKeys[i]).multiply(privateKeys[i + 1]).getEncoded(false)));
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 public class SegWitTest extends TestCase {
     public void testSimpleWitnessTxParsing() throws BitcoinException {
@@ -33,6 +34,38 @@ public class SegWitTest extends TestCase {
         assertTrue(Arrays.equals(BTCUtils.fromHex("36c6483c901d82f55a6557b5060653036f3ba96cd8c55ddb0f204c9e1fbd5b15"), BTCUtils.reverseInPlace(hash)));
     }
 
+    /**
+     * The 6-of-6 P2SH-P2WSH example of BIP143: its 207 byte witnessScript is the scriptCode and is prefixed by a varint,
+     * not by OP_PUSHDATA1. The six signatures use six hash types.
+     */
+    public void testBip143HashOfLongScriptCode() throws BitcoinException {
+        Transaction tx = Transaction.decodeTransaction(BTCUtils.fromHex("0100000000010136641869ca081e70f394c6948e8af409e18b619df2ed74aa106c1ca29787b96e0100000023220020a16b5755f7" +
+                "f6f96dbd65f5f0d6ab9418b89af4b1f14a1bb8a09062c35f0dcb54ffffffff0200e9a435000000001976a914389ffce9cd9ae88dcc0631e88a821ffdbe9bfe2688acc0832f05" +
+                "000000001976a9147480a33f950689af511e6e84c138dbbd3c3ee41588ac080047304402206ac44d672dac41f9b00e28f4df20c52eeb087207e8d758d76d92c6fab3b73e2b" +
+                "0220367750dbbe19290069cba53d096f44530e4f98acaa594810388cf7409a1870ce01473044022068c7946a43232757cbdf9176f009a928e1cd9a1a8c212f15c1e11ac9f2" +
+                "925d9002205b75f937ff2f9f3c1246e547e54f62e027f64eefa2695578cc6432cdabce271502473044022059ebf56d98010a932cf8ecfec54c48e6139ed6adb0728c09cbe1" +
+                "e4fa0915302e022007cd986c8fa870ff5d2b3a89139c9fe7e499259875357e20fcbb15571c76795403483045022100fbefd94bd0a488d50b79102b5dad4ab6ced30c4069f1" +
+                "eaa69a4b5a763414067e02203156c6a5c9cf88f91265f5a942e96213afae16d83321c8b31bb342142a14d16381483045022100a5263ea0553ba89221984bd7f0b13613db16" +
+                "e7a70c549a86de0cc0444141a407022005c360ef0ae5a5d4f9f2f87a56c1546cc8268cab08c73501d6b3be2e1e1a8a08824730440220525406a1482936d5a21888260dc165" +
+                "497a90a15669636d8edca6b9fe490d309c022032af0c646a34a44d1f4576bf6a4a74b67940f8faa84c7df9abe12a01a11e2b4783cf56210307b8ae49ac90a048e9b53357a2" +
+                "354b3334e9c8bee813ecb98e99a7e07e8c3ba32103b28f0c28bfab54554ae8c658ac5c3e0ce6e79ad336331f78c428dd43eea8449b21034b8113d703413d57761b8b978195" +
+                "7b8c0ac1dfe69f492580ca4195f50376ba4a21033400f6afecb833092a9a21cfdf1ed1376e58c5d1f47de74683123987e967a8f42103a6d48b1131e94ba04d9737d61acdaa" +
+                "1322008af9602b3b14862c07a1789aac162102d8b661b0b3302ee2f162b09e07a55ad5dfbe673a9f01d9f0c19617681024306b56ae00000000"));
+        byte[][] witness = tx.scriptWitnesses[0];
+        byte[] witnessScript = witness[7];
+        assertEquals(207, witnessScript.length);
+        Transaction.SigHashContext sigHashContext = new Transaction.SigHashContext(tx);
+        for (int i = 0; i < 6; i++) {
+            byte[] signatureAndHashType = witness[i + 1];
+            int hashType = signatureAndHashType[signatureAndHashType.length - 1] & 0xff;
+            byte[] signature = Arrays.copyOf(signatureAndHashType, signatureAndHashType.length - 1);
+            byte[] publicKey = Arrays.copyOfRange(witnessScript, 2 + i * 34, 2 + i * 34 + 33);
+            byte[] hash = Transaction.Script.bip143Hash(0, tx, hashType, witnessScript, 987654321);
+            assertTrue(BTCUtils.verify(publicKey, signature, hash));
+            assertTrue(Arrays.equals(hash, Transaction.Script.bip143Hash(0, sigHashContext, hashType, witnessScript, 987654321)));
+        }
+    }
+
     public void testVerifySegWitBip143ByCheckingSignedTxFromSampleNativeP2wpkh() throws BitcoinException, Transaction.Script.ScriptInvalidException, IOException {
         //The following is an unsigned transaction:
         Transaction tx = Transaction.decodeTransaction(BTCUtils.fromHex("0100000002fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f0000000000eeffffffef51e1b804cc89d182d279655c3aa8" +
@@ -322,4 +355,23 @@ public class SegWitTest extends TestCase {
         //807d661dd32b3d8557c798b72c6e50eee0f410f62d219c0a9f3099d2aed72052
         //683afbfadc7f5fdc5fcca447c0f418758dd7b3117ff442961673fad56b727bdb
     }
+
+    public void testBip143HashOfManyInputs() throws Exception {
+        int[] hashTypes = {Transaction.Script.SIGHASH_ALL, Transaction.Script.SIGHASH_NONE, Transaction.Script.SIGHASH_SINGLE,
+                Transaction.Script.SIGHASH_ALL | Transaction.Script.SIGHASH_ANYONECANPAY};
+        for (int inputsCount : new int[]{1, 2, 100}) {
+            List<UnspentOutputInfo> unspentOutputs = TransactionTest.createUnspentOutputs(inputsCount, false);
+            Transaction tx = TransactionTest.createUnsignedSweep(unspentOutputs);
+            Transaction.SigHashContext sigHashContext = new Transaction.SigHashContext(tx);
+            for (int hashType : hashTypes) {
+                for (int i = 0; i < inputsCount; i++) {
+                    byte[] scriptCode = unspentOutputs.get(i).scriptPubKey.bytes;
+                    long amount = unspentOutputs.get(i).value;
+                    //a new context for every input rehashes all prevouts, sequences and outputs, as it was before the context
+                    assertTrue(Arrays.equals(Transaction.Script.bip143Hash(i, tx, hashType, scriptCode, amount),
+                            Transaction.Script.bip143Hash(i, sigHashContext, hashType, scriptCode, amount)));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+
+public class SignatureCacheTest extends TestCase {
+
+    public void testHitsAndMisses() {
+        SignatureCache cache = new SignatureCache(64 * 1024);
+        byte[] publicKey = {2, 1, 2, 3};
+        byte[] signature = {48, 4, 5, 6};
+        byte[] hash = {7, 8, 9};
+        assertFalse(cache.contains(publicKey, signature, hash));
+        cache.put(publicKey, signature, hash);
+        assertTrue(cache.contains(publicKey, signature, hash));
+        assertFalse(cache.contains(publicKey, signature, new byte[]{7, 8, 10}));
+        //same bytes split differently must not match
+        assertFalse(cache.contains(new byte[]{2, 1, 2}, new byte[]{3, 48, 4, 5, 6}, hash));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    public void testSizeIsBounded() {
+        SignatureCache cache = new SignatureCache(16 * SignatureCache.ENTRY_SIZE_BYTES * 4);
+        assertEquals(64, cache.getMaxSize());
+        for (int i = 0; i < 10000; i++) {
+            cache.put(new byte[]{2}, BigInteger.valueOf(i).toByteArray(), new byte[]{1});
+        }
+        assertTrue(cache.size() <= cache.getMaxSize());
+        //most recently added entries survive
+        assertTrue(cache.contains(new byte[]{2}, BigInteger.valueOf(9999).toByteArray(), new byte[]{1}));
+    }
+
+    public void testRepeatedVerificationSkipsEcdsa() {
+        BigInteger privateKey = new BigInteger(1, BTCUtils.sha256("signature cache".getBytes()));
+        byte[] publicKey = BTCUtils.generatePublicKey(privateKey, true);
+        byte[] hash = BTCUtils.sha256("message".getBytes());
+        byte[] signature = BTCUtils.sign(privateKey, hash);
+        byte[] otherHash = BTCUtils.sha256("other message".getBytes());
+
+        assertTrue(BTCUtils.verify(publicKey, signature, hash));
+        long hits = BTCUtils.SIGNATURE_CACHE.getHits();
+        assertTrue(BTCUtils.verify(publicKey, signature, hash));
+        assertEquals(hits + 1, BTCUtils.SIGNATURE_CACHE.getHits());
+
+        //invalid signatures are never remembered
+        assertFalse(BTCUtils.verify(publicKey, signature, otherHash));
+        assertFalse(BTCUtils.verify(publicKey, signature, otherHash));
+        assertFalse(BTCUtils.SIGNATURE_CACHE.contains(publicKey, signature, otherHash));
+    }
+}
@@ -35,9 +35,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Stack;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public final class TransactionTest extends TestCase {
     //    public static final String TX_HASH = "ba3d64e55402f04ce03822f5bcf5a99e3cae675b7dc4ac743e6474bc72b46b48";
@@ -335,6 +340,313 @@ public final class TransactionTest extends TestCase {
         }
     }
 
+    public void testParallelVerificationMatchesSerial() throws FileNotFoundException, JSONException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (String fileName : new String[]{"tx_valid.json", "tx_invalid.json"}) {
+                File file = new File(getClass().getClassLoader().getResource(fileName).getPath());
+                JSONArray all = new JSONArray(isToString(new FileInputStream(file)));
+                for (int i = 0; i < all.length(); i++) {
+                    JSONArray line = all.getJSONArray(i);
+                    if (line.length() == 3) {
+                        JSONArray inputsJson = line.getJSONArray(0);
+                        Transaction.Script[] unspentOutputsScripts = new Transaction.Script[inputsJson.length()];
+                        long[] amounts = new long[inputsJson.length()];
+                        for (int j = 0; j < inputsJson.length(); j++) {
+                            JSONArray inputJson = inputsJson.getJSONArray(j);
+                            if (inputJson.length() > 3) {
+                                amounts[j] = inputJson.getLong(3);
+                            }
+                            unspentOutputsScripts[j] = new Transaction.Script(Transaction.Script.convertReadableStringToBytesCoreStyle(inputJson.getString(2)));
+                        }
+                        Transaction tx;
+                        try {
+                            tx = Transaction.decodeTransaction(BTCUtils.fromHex(line.getString(1)));
+                        } catch (Exception e) {
+                            continue;
+                        }
+                        int flags = parseScriptFlags(line.getString(2));
+                        String serialResult = verificationResult(unspentOutputsScripts, amounts, tx, flags, null);
+                        String parallelResult = verificationResult(unspentOutputsScripts, amounts, tx, flags, executor);
+                        assertEquals(fileName + " " + line.getString(1), serialResult, parallelResult);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testParallelVerificationReportsFirstInvalidInput() throws Exception {
+        List<UnspentOutputInfo> unspentOutputs = createUnspentOutputs(60, false);
+        Transaction tx = BTCUtils.sign(unspentOutputs, createUnsignedSweep(unspentOutputs), BTCUtils.TRANSACTION_TYPE_LEGACY);
+        Transaction.Script[] scripts = scriptsOf(unspentOutputs);
+        long[] amounts = amountsOf(unspentOutputs);
+        int flags = parseScriptFlags("P2SH,STRICTENC,DERSIG,MINIMALDATA");
+        //inputs 23 and 41 fail with different errors, so the reported error tells which one was reported
+        scripts[23] = new Transaction.Script(Transaction.Script.convertReadableStringToBytesCoreStyle("DROP DROP 0x05 0x0100000000 1ADD"));
+        scripts[41] = new Transaction.Script(Transaction.Script.convertReadableStringToBytesCoreStyle("DROP DROP 0x02 0x0100 1ADD"));
+        String firstError = verificationResult(scripts, amounts, tx, flags, null);
+        assertTrue(firstError, firstError.endsWith("script number overflow"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(firstError, verificationResult(scripts, amounts, tx, flags, executor));
+            }
+            scripts[23] = unspentOutputs.get(23).scriptPubKey;
+            String secondError = verificationResult(scripts, amounts, tx, flags, null);
+            assertTrue(secondError, secondError.endsWith("non-minimally encoded script number"));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(secondError, verificationResult(scripts, amounts, tx, flags, executor));
+            }
+            scripts[41] = unspentOutputs.get(41).scriptPubKey;
+            assertEquals("valid", verificationResult(scripts, amounts, tx, flags, null));
+            assertEquals("valid", verificationResult(scripts, amounts, tx, flags, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testStandardInputsMatchInterpreter() throws Exception {
+        int standardInputs = 0;
+        for (String fileName : new String[]{"tx_valid.json", "tx_invalid.json"}) {
+            File file = new File(getClass().getClassLoader().getResource(fileName).getPath());
+            JSONArray all = new JSONArray(isToString(new FileInputStream(file)));
+            for (int i = 0; i < all.length(); i++) {
+                JSONArray line = all.getJSONArray(i);
+                if (line.length() == 3) {
+                    JSONArray inputsJson = line.getJSONArray(0);
+                    Transaction tx;
+                    try {
+                        tx = Transaction.decodeTransaction(BTCUtils.fromHex(line.getString(1)));
+                    } catch (Exception e) {
+                        continue;
+                    }
+                    int flags = parseScriptFlags(line.getString(2));
+                    Transaction.SigHashContext sigHashContext = new Transaction.SigHashContext(tx);
+                    for (int j = 0; j < inputsJson.length() && j < tx.inputs.length; j++) {
+                        JSONArray inputJson = inputsJson.getJSONArray(j);
+                        Transaction.Script scriptPubKey = new Transaction.Script(Transaction.Script.convertReadableStringToBytesCoreStyle(inputJson.getString(2)));
+                        Transaction.Checker checker = new Transaction.Checker(j, inputJson.length() > 3 ? inputJson.getLong(3) : 0, tx, sigHashContext);
+                        boolean standard;
+                        try {
+                            standard = BTCUtils.verifyStandardInput(scriptPubKey, tx, checker, flags);
+                        } catch (RuntimeException e) {
+                            standard = false;
+                        }
+                        if (standard) {
+                            //must not throw
+                            BTCUtils.verifyInputWithInterpreter(scriptPubKey, tx, checker, flags);
+                            standardInputs++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(standardInputs > 10);
+
+        //a 1 byte signature pushed directly instead of by OP_1 fails MINIMALDATA in the interpreter
+        byte[] publicKey = BTCUtils.generatePublicKey(BigInteger.ONE, true);
+        Transaction.Script scriptPubKey = new Transaction.Script(BTCUtils.fromHex("76a914" + BTCUtils.toHex(BTCUtils.sha256ripemd160(publicKey)) + "88ac"));
+        Transaction tx = new Transaction(
+                new Transaction.Input[]{new Transaction.Input(new Transaction.OutPoint(new byte[32], 0),
+                        new Transaction.Script(BTCUtils.fromHex("010121" + BTCUtils.toHex(publicKey))), -1)},
+                new Transaction.Output[]{new Transaction.Output(0, new Transaction.Script(new byte[0]))}, 0);
+        int flags = Transaction.Script.SCRIPT_VERIFY_P2SH | Transaction.Script.SCRIPT_VERIFY_MINIMALDATA;
+        assertFalse(BTCUtils.verifyStandardInput(scriptPubKey, tx, new Transaction.Checker(0, 0, tx), flags));
+        try {
+            BTCUtils.verify(new Transaction.Script[]{scriptPubKey}, new long[]{0}, tx, flags);
+            fail();
+        } catch (Transaction.Script.ScriptInvalidException ignored) {
+        }
+    }
+
+    public void testFindAndDeleteOnSlices() throws Exception {
+        byte[] signature = BTCUtils.fromHex("3006020101020101" + "01");
+        byte[] push = Transaction.Script.convertDataToScript(signature);
+        byte[] script = BTCUtils.fromHex("ab" + "09" + BTCUtils.toHex(signature) + "51" + "ab" + "4c09" + BTCUtils.toHex(signature) + "09" + BTCUtils.toHex(signature) + "ac");
+        byte[] noMatch = BTCUtils.fromHex("76a914000000000000000000000000000000000000000088ac");
+        assertSame(noMatch, Transaction.Script.findAndDeletePush(noMatch, 0, signature, 0, signature.length));
+        assertSame(noMatch, Transaction.Script.removeCodeSeparators(noMatch, 3));
+        for (int offset : new int[]{0, 1, 11, 12}) {
+            byte[] tail = Arrays.copyOfRange(script, offset, script.length);
+            byte[] withSignature = new byte[signature.length + 4];
+            System.arraycopy(signature, 0, withSignature, 2, signature.length);
+            byte[] result = Transaction.Script.findAndDeletePush(script, offset, withSignature, 2, signature.length);
+            assertNotSame(script, result);
+            assertEquals(BTCUtils.toHex(findAndDeleteWithCopies(tail, push)), BTCUtils.toHex(result));
+            result = Transaction.Script.removeCodeSeparators(script, offset);
+            assertEquals(BTCUtils.toHex(findAndDeleteWithCopies(tail, new byte[]{Transaction.Script.OP_CODESEPARATOR})),
+                    BTCUtils.toHex(result == script ? tail : result));
+        }
+        //non-minimal PUSHDATA1 push of the signature is kept
+        assertEquals("ab51ab4c09" + BTCUtils.toHex(signature) + "ac", BTCUtils.toHex(Transaction.Script.findAndDeletePush(script, 0, signature, 0, signature.length)));
+
+        Transaction tx = Transaction.decodeTransaction(BTCUtils.fromHex("01000000010001000000000000000000000000000000000000000000000000000000000000000000006a473044022067288ea50aa799543a536ff9306f8e1cba05b9c6b10951175b924f96732555ed022026d7b5265f38d21541519e4a1e55044d5b9e17e15cdbaf29ae3792e99e883e7a012103ba8c8b86dea131c22ab967e6dd99bdae8eff7a1f75a2c35f1f944109e3fe5e22ffffffff010000000000000000015100000000"));
+        for (int hashType : new int[]{Transaction.Script.SIGHASH_ALL, Transaction.Script.SIGHASH_NONE, Transaction.Script.SIGHASH_ALL | Transaction.Script.SIGHASH_ANYONECANPAY}) {
+            assertEquals(BTCUtils.toHex(Transaction.Script.hashTransaction(0, Arrays.copyOfRange(script, 12, script.length), tx, hashType, 0, Transaction.Script.SIGVERSION_BASE)),
+                    BTCUtils.toHex(Transaction.Script.hashTransaction(0, script, 12, tx, new Transaction.SigHashContext(tx), hashType, 0, Transaction.Script.SIGVERSION_BASE)));
+            assertEquals(BTCUtils.toHex(Transaction.Script.hashTransaction(0, Arrays.copyOfRange(script, 12, script.length), tx, hashType, 10, Transaction.Script.SIGVERSION_WITNESS_V0)),
+                    BTCUtils.toHex(Transaction.Script.hashTransaction(0, script, 12, tx, new Transaction.SigHashContext(tx), hashType, 10, Transaction.Script.SIGVERSION_WITNESS_V0)));
+        }
+
+        //subScript of a legacy OP_CHECKSIG after OP_CODESEPARATOR, with a DER signature that is not in the script
+        byte[] derSignature = BTCUtils.fromHex("3044022067288ea50aa799543a536ff9306f8e1cba05b9c6b10951175b924f96732555ed022026d7b5265f38d21541519e4a1e55044d5b9e17e15cdbaf29ae3792e99e883e7a01");
+        byte[] codeSeparated = BTCUtils.fromHex("ab" + BTCUtils.toHex(Transaction.Script.buildOutput("mymHGRN9LhQHqPLobnR1fkeHMzLbmN9rZV").bytes));
+        byte[] subScript = Transaction.Script.findAndDeletePush(codeSeparated, 1, derSignature, 0, derSignature.length);
+        assertSame(codeSeparated, subScript);
+        assertSame(codeSeparated, Transaction.Script.removeCodeSeparators(subScript, 1));
+    }
+
+    /**
+     * findAndDelete as it was done before slices: a new array for the token and for every match
+     */
+    private static byte[] findAndDeleteWithCopies(byte[] script, byte[] scriptTokenToDelete) {
+        for (int i = 0; i < script.length; ) {
+            int tokenLength = Transaction.Script.getScriptTokenLengthAt(script, i);
+            if (tokenLength == scriptTokenToDelete.length) {
+                boolean equals = true;
+                for (int j = 0; j < tokenLength; j++) {
+                    if (script[i + j] != scriptTokenToDelete[j]) {
+                        equals = false;
+                        break;
+                    }
+                }
+                if (equals) {
+                    byte[] updatedScript = new byte[script.length - tokenLength];
+                    System.arraycopy(script, 0, updatedScript, 0, i);
+                    System.arraycopy(script, i + tokenLength, updatedScript, i, updatedScript.length - i);
+                    script = updatedScript;
+                    i -= tokenLength;
+                }
+            }
+            i += tokenLength;
+        }
+        return script;
+    }
+
+    public void testParallelSigningMatchesSerial() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int transactionType : new int[]{BTCUtils.TRANSACTION_TYPE_LEGACY, BTCUtils.TRANSACTION_TYPE_BITCOIN_CASH, BTCUtils.TRANSACTION_TYPE_SEGWIT}) {
+                List<UnspentOutputInfo> unspentOutputs = createUnspentOutputs(60, transactionType == BTCUtils.TRANSACTION_TYPE_SEGWIT);
+                Transaction unsignedTx = createUnsignedSweep(unspentOutputs);
+                Transaction serial = BTCUtils.sign(unspentOutputs, unsignedTx, transactionType);
+                Transaction parallel = BTCUtils.sign(unspentOutputs, unsignedTx, transactionType, executor);
+                assertEquals(serial.toHexEncodedString(), parallel.toHexEncodedString());
+                BTCUtils.verify(scriptsOf(unspentOutputs), amountsOf(unspentOutputs), parallel, transactionType == BTCUtils.TRANSACTION_TYPE_BITCOIN_CASH);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param mixed whether to spend P2WPKH and P2SH-P2WPKH outputs along with P2PKH ones
+     */
+    static List<UnspentOutputInfo> createUnspentOutputs(int count, boolean mixed) throws Exception {
+        KeyPair[] keys = new KeyPair[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new KeyPair(new BTCUtils.PrivateKeyInfo(true, BTCUtils.PrivateKeyInfo.TYPE_WIF, null,
+                    new BigInteger(1, BTCUtils.sha256(("sweep key " + i).getBytes("UTF-8"))), true));
+        }
+        List<UnspentOutputInfo> unspentOutputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            KeyPair keyPair = keys[i % keys.length];
+            String address;
+            switch (mixed ? i % 3 : 0) {
+                case 1:
+                    address = Address.publicKeyToP2wkhAddress(true, keyPair.publicKey);
+                    break;
+                case 2:
+                    address = Address.publicKeyToP2shP2wkhAddress(true, keyPair.publicKey);
+                    break;
+                default:
+                    address = keyPair.address;
+                    break;
+            }
+            byte[] txHash = BTCUtils.sha256(("funding tx " + i).getBytes("UTF-8"));
+            unspentOutputs.add(new UnspentOutputInfo(keyPair, txHash, Transaction.Script.buildOutput(address), 10000 + i, i % 3));
+        }
+        return unspentOutputs;
+    }
+
+    static Transaction createUnsignedSweep(List<UnspentOutputInfo> unspentOutputs) throws BitcoinException {
+        Transaction.Input[] inputs = new Transaction.Input[unspentOutputs.size()];
+        long total = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            UnspentOutputInfo unspentOutput = unspentOutputs.get(i);
+            inputs[i] = new Transaction.Input(new Transaction.OutPoint(unspentOutput.txHash, unspentOutput.outputIndex), null, 0xffffffff);
+            total += unspentOutput.value;
+        }
+        Transaction.Output[] outputs = {new Transaction.Output(total / 2, Transaction.Script.buildOutput("msVcNhmpHEMiNCmw3NNeN7JD3vTDsrMUnY"))};
+        return new Transaction(inputs, outputs, 0);
+    }
+
+    static Transaction.Script[] scriptsOf(List<UnspentOutputInfo> unspentOutputs) {
+        Transaction.Script[] scripts = new Transaction.Script[unspentOutputs.size()];
+        for (int i = 0; i < scripts.length; i++) {
+            scripts[i] = unspentOutputs.get(i).scriptPubKey;
+        }
+        return scripts;
+    }
+
+    static long[] amountsOf(List<UnspentOutputInfo> unspentOutputs) {
+        long[] amounts = new long[unspentOutputs.size()];
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = unspentOutputs.get(i).value;
+        }
+        return amounts;
+    }
+
+    private static String verificationResult(Transaction.Script[] scripts, long[] amounts, Transaction tx, int flags, Executor executor) {
+        try {
+            BTCUtils.verify(scripts, amounts, tx, flags, executor);
+            return "valid";
+        } catch (Exception e) {
+            return e.toString();
+        }
+    }
+
+    public void testLegacySigHashOfManyInputs() throws Exception {
+        for (int inputsCount : new int[]{1, 15, 16, 17, 100}) {
+            List<UnspentOutputInfo> unspentOutputs = createUnspentOutputs(inputsCount, false);
+            Transaction tx = createUnsignedSweep(unspentOutputs);
+            Transaction.SigHashContext sigHashContext = new Transaction.SigHashContext(tx);
+            for (int i = 0; i < inputsCount; i++) {
+                byte[] fromScratch = Transaction.Script.hashTransaction(i, unspentOutputs.get(i).scriptPubKey.bytes, tx, null,
+                        Transaction.Script.SIGHASH_ALL, -1, Transaction.Script.SIGVERSION_BASE);
+                byte[] fromMidstate = Transaction.Script.hashTransaction(i, unspentOutputs.get(i).scriptPubKey.bytes, tx, sigHashContext,
+                        Transaction.Script.SIGHASH_ALL, -1, Transaction.Script.SIGVERSION_BASE);
+                assertTrue(Arrays.equals(fromScratch, fromMidstate));
+            }
+        }
+    }
+
+    public void testMemoizedBytesHashesAndWeight() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("tx_valid.json").getPath());
+        JSONArray all = new JSONArray(isToString(new FileInputStream(file)));
+        for (int i = 0; i < all.length(); i++) {
+            JSONArray line = all.getJSONArray(i);
+            if (line.length() == 3) {
+                Transaction tx = Transaction.decodeTransaction(BTCUtils.fromHex(line.getString(1)));
+                byte[] legacyBytes = tx.getBytes(false);
+                byte[] bytes = tx.getBytes(true);
+                assertEquals(3 * legacyBytes.length + bytes.length, tx.getWeight());
+                assertEquals((tx.getWeight() + 3) / 4, tx.getVirtualSize());
+                byte[] txid = tx.hash();
+                assertTrue(Arrays.equals(BTCUtils.reverse(BTCUtils.doubleSha256(legacyBytes)), txid));
+                assertTrue(Arrays.equals(BTCUtils.reverse(BTCUtils.doubleSha256(bytes)), tx.witnessHash()));
+                //returned arrays are copies, changing them does not affect the cached values
+                txid[0]++;
+                bytes[0]++;
+                assertFalse(Arrays.equals(txid, tx.hash()));
+                assertFalse(Arrays.equals(bytes, tx.getBytes()));
+                assertEquals(BTCUtils.toHex(tx.getBytes()), tx.toHexEncodedString());
+            }
+        }
+    }
+
     public void testSighashes() throws FileNotFoundException, JSONException, BitcoinException, Transaction.Script.ScriptInvalidException {
         File file = new File(getClass().getClassLoader().getResource("sighash.json").getPath());
         assertTrue(file.exists());
@@ -343,6 +655,7 @@ public final class TransactionTest extends TestCase {
             JSONArray line = all.getJSONArray(i);
             if (line.length() == 5) {
                 Transaction tx = Transaction.decodeTransaction(BTCUtils.fromHex(line.getString(0)));
+                assertTrue(Arrays.equals(BTCUtils.reverse(BTCUtils.doubleSha256(tx.getBytes(false))), tx.hash()));
                 byte[] scriptBytes = BTCUtils.fromHex(line.getString(1));
                 Transaction.Script script = new Transaction.Script(scriptBytes);
                 assertTrue(Arrays.equals(scriptBytes, script.bytes));
@@ -357,7 +670,7 @@ public final class TransactionTest extends TestCase {
         }
     }
 
-    private int parseScriptFlags(String flagsStr) {
+    static int parseScriptFlags(String flagsStr) {
         String[] flagsStrArray = flagsStr.split(",");
         int flags = 0;
         for (String flagStr : flagsStrArray) {
@@ -379,6 +692,9 @@ public final class TransactionTest extends TestCase {
                 case "SIGPUSHONLY":
                     flags |= Transaction.Script.SCRIPT_VERIFY_SIGPUSHONLY;
                     break;
+                case "MINIMALDATA":
+                    flags |= Transaction.Script.SCRIPT_VERIFY_MINIMALDATA;
+                    break;
                 case "WITNESS":
                     flags |= Transaction.Script.SCRIPT_VERIFY_WITNESS;
                     break;
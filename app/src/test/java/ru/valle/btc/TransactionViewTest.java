@@ -0,0 +1,120 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TransactionViewTest extends TestCase {
+    private static final String SEGWIT_TX = "01000000000102fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f00000000494830450221008b9d1dc26ba6a9cb62127b02742fa9d754cd3bebf337f7a55d114c8e5cdd30be022040529b194ba3f9281a99f2b1c0a19c0489bc22ede944ccf4ecbab4cc618ef3ed01eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac000247304402203609e17b84f6a7d30c80bfa610b5b4542f32a8a0d5447a12fb1366d7f01cc44a0220573a954c4518331561406f90300e8f3358f51928d43c212a8caed02de67eebee0121025476c2e83188368da1ff3e292e7acafcdb3566bb0ad253f62fc70f07aeee635711000000";
+
+    public void testMatchesTransaction() throws Exception {
+        List<byte[]> rawTransactions = new ArrayList<>();
+        rawTransactions.add(BTCUtils.fromHex(SEGWIT_TX));
+        for (String fileName : new String[]{"tx_valid.json", "tx_invalid.json"}) {
+            for (String tx : transactionsFrom(fileName)) {
+                rawTransactions.add(BTCUtils.fromHex(tx));
+            }
+        }
+        int views = 0;
+        for (byte[] rawTx : rawTransactions) {
+            Transaction tx;
+            try {
+                tx = Transaction.decodeTransaction(rawTx);
+            } catch (Exception e) {
+                continue;
+            }
+            TransactionView view;
+            try {
+                view = new TransactionView(rawTx);
+            } catch (BitcoinException e) {
+                //only transactions which don't survive the round trip are rejected
+                assertFalse(Arrays.equals(rawTx, tx.getBytes()));
+                continue;
+            }
+            views++;
+            assertTrue(Arrays.equals(rawTx, tx.getBytes()));
+            assertEquals(tx.version, view.version);
+            assertEquals(tx.lockTime, view.lockTime);
+            assertEquals(tx.scriptWitnesses.length > 0, view.hasWitness());
+            assertEquals(tx.inputs.length, view.getInputsCount());
+            for (int i = 0; i < tx.inputs.length; i++) {
+                assertTrue(Arrays.equals(tx.inputs[i].outPoint.hash, view.getOutPointHash(i)));
+                assertEquals(tx.inputs[i].outPoint.index, view.getOutPointIndex(i));
+                assertTrue(Arrays.equals(tx.inputs[i].scriptSig.bytes, view.getScriptSig(i).bytes));
+                assertEquals(tx.inputs[i].sequence, view.getSequence(i));
+                if (view.hasWitness()) {
+                    assertTrue(Arrays.deepEquals(tx.scriptWitnesses[i], view.getWitness(i)));
+                } else {
+                    assertEquals(0, view.getWitness(i).length);
+                }
+            }
+            assertEquals(tx.outputs.length, view.getOutputsCount());
+            for (int i = 0; i < tx.outputs.length; i++) {
+                assertEquals(tx.outputs[i].value, view.getValue(i));
+                assertTrue(Arrays.equals(tx.outputs[i].scriptPubKey.bytes, view.getScriptPubKey(i).bytes));
+                assertTrue(view.isScriptPubKeyEqualTo(i, tx.outputs[i].scriptPubKey.bytes));
+                assertFalse(view.isScriptPubKeyEqualTo(i, Arrays.copyOf(tx.outputs[i].scriptPubKey.bytes, tx.outputs[i].scriptPubKey.bytes.length + 1)));
+            }
+            assertTrue(Arrays.equals(tx.hash(), view.hash()));
+            assertTrue(Arrays.equals(BTCUtils.reverse(BTCUtils.doubleSha256(rawTx)), view.witnessHash()));
+            assertTrue(Arrays.equals(tx.witnessHash(), view.witnessHash()));
+            assertTrue(Arrays.equals(rawTx, view.toTransaction().getBytes()));
+        }
+        assertTrue(views > 100);
+    }
+
+    public void testRejectsWhatDoesNotRoundTrip() throws Exception {
+        byte[] rawTx = BTCUtils.fromHex(SEGWIT_TX);
+        new TransactionView(rawTx);
+        assertInvalid(Arrays.copyOf(rawTx, rawTx.length + 1));
+        assertInvalid(Arrays.copyOf(rawTx, rawTx.length - 1));
+        assertInvalid(Arrays.copyOf(rawTx, 3));
+        assertInvalid(new byte[0]);
+        //inputs count 2 written as 0xfd 0x02 0x00
+        byte[] nonCanonical = new byte[rawTx.length + 2];
+        System.arraycopy(rawTx, 0, nonCanonical, 0, 6);
+        nonCanonical[6] = (byte) 0xfd;
+        nonCanonical[7] = 2;
+        nonCanonical[8] = 0;
+        System.arraycopy(rawTx, 7, nonCanonical, 9, rawTx.length - 7);
+        assertInvalid(nonCanonical);
+        //getBytes() always writes the BIP144 flag 1
+        byte[] otherFlag = rawTx.clone();
+        otherFlag[5] = 2;
+        assertInvalid(otherFlag);
+        try {
+            new TransactionView(null);
+            fail();
+        } catch (BitcoinException e) {
+            assertEquals(BitcoinException.ERR_NO_INPUT, e.errorCode);
+        }
+    }
+
+    private static void assertInvalid(byte[] rawTx) {
+        try {
+            new TransactionView(rawTx);
+            fail();
+        } catch (BitcoinException e) {
+            assertEquals(BitcoinException.ERR_BAD_FORMAT, e.errorCode);
+        }
+    }
+
+    private List<String> transactionsFrom(String fileName) throws Exception {
+        File file = new File(getClass().getClassLoader().getResource(fileName).getPath());
+        JSONArray all = new JSONArray(TransactionTest.isToString(new FileInputStream(file)));
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < all.length(); i++) {
+            JSONArray line = all.getJSONArray(i);
+            if (line.length() == 3) {
+                result.add(line.getString(1));
+            }
+        }
+        return result;
+    }
+}
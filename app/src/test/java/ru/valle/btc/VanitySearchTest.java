@@ -0,0 +1,65 @@
+package ru.valle.btc;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class VanitySearchTest extends TestCase {
+
+    public void testPrefixRangesMatchEncodedAddresses() {
+        String[][] prefixes = {{"1", "1A", "1Pa", "1z", "11", "111", "1QL"}, {"m", "n", "mz", "n2", "mzV"}};
+        Random random = new Random(42);
+        byte[] hash160 = new byte[20];
+        for (int net = 0; net < 2; net++) {
+            boolean testNet = net == 1;
+            for (String prefix : prefixes[net]) {
+                VanitySearch search = new VanitySearch(prefix, testNet);
+                int matches = 0;
+                for (int i = 0; i < 20000; i++) {
+                    random.nextBytes(hash160);
+                    //skew towards leading zero bytes to hit '1's after the version
+                    int zeros = random.nextInt(4) == 0 ? random.nextInt(4) : 0;
+                    for (int j = 0; j < zeros; j++) {
+                        hash160[j] = 0;
+                    }
+                    boolean expected = Address.ripemd160HashToAddress(testNet, hash160).startsWith(prefix);
+                    if (expected) {
+                        matches++;
+                        assertTrue(prefix, search.mightMatch(hash160));
+                    }
+                    assertEquals(prefix, expected, search.matches(hash160));
+                }
+                assertTrue(prefix, matches > 0);
+            }
+        }
+    }
+
+    public void testImpossiblePrefixes() {
+        String[][] invalid = {{"10", "3", "mA", "1l", "1A "}, {"1A", "2", "o"}};
+        for (int net = 0; net < 2; net++) {
+            for (String prefix : invalid[net]) {
+                try {
+                    new VanitySearch(prefix, net == 1);
+                    fail(prefix);
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+    }
+
+    public void testSearch() throws Exception {
+        VanitySearch search = new VanitySearch("1A", false);
+        KeyPair keyPair = search.search(Parallel.sharedExecutor(), Parallel.parallelism());
+        assertNotNull(keyPair);
+        assertTrue(keyPair.address.startsWith("1A"));
+        KeyPair decoded = new KeyPair(BTCUtils.decodePrivateKey(keyPair.privateKey.privateKeyEncoded));
+        assertEquals(keyPair.address, decoded.address);
+        assertTrue(search.getKeysChecked() > 0);
+
+        //a cancelled search stops before checking any key
+        search = new VanitySearch("1QLa", false);
+        search.cancel();
+        assertNull(search.search(Parallel.sharedExecutor(), Parallel.parallelism()));
+        assertEquals(0, search.getKeysChecked());
+    }
+}